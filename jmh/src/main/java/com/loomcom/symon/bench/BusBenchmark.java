@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.bench;
+
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.machines.SymonMachine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bus access cost on the Symon machine's memory map. The addresses are
+ * chosen at random, once, with a fixed seed, so every run makes the same
+ * accesses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BusBenchmark {
+
+    private static final int ACCESSES = 4096;
+
+    /* The 6522 VIA in the Symon memory map. */
+    private static final int VIA_BASE = 0x8000;
+
+    /* VIA registers that can be read without side effects: DDRB, DDRA, ACR and PCR. */
+    private static final int[] VIA_REGISTERS = {2, 3, 11, 12};
+
+    private Bus bus;
+
+    // Addresses for the mix, and whether each access is a write.
+    private final int[] addresses = new int[ACCESSES];
+    private final boolean[] writes = new boolean[ACCESSES];
+
+    // Addresses for device reads.
+    private final int[] deviceAddresses = new int[ACCESSES];
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SymonMachine machine = new SymonMachine();
+        bus = machine.getBus();
+
+        int romBase = machine.getRomBase();
+        int romSize = machine.getRomSize();
+        int ramSize = machine.getMemorySize();
+
+        // Three reads to each write, and reads split evenly between RAM and ROM.
+        // Writes only go to RAM.
+        Random random = new Random(6502);
+        for (int i = 0; i < ACCESSES; i++) {
+            writes[i] = random.nextInt(4) == 0;
+            if (writes[i] || random.nextBoolean()) {
+                addresses[i] = random.nextInt(ramSize);
+            } else {
+                addresses[i] = romBase + random.nextInt(romSize);
+            }
+            deviceAddresses[i] = VIA_BASE + VIA_REGISTERS[random.nextInt(VIA_REGISTERS.length)];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public int readWriteMix() throws Exception {
+        int sum = 0;
+        for (int i = 0; i < ACCESSES; i++) {
+            if (writes[i]) {
+                bus.write(addresses[i], i & 0xff);
+            } else {
+                sum += bus.read(addresses[i]);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public int deviceRead() throws Exception {
+        int sum = 0;
+        for (int i = 0; i < ACCESSES; i++) {
+            sum += bus.read(deviceAddresses[i]);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.bench;
+
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.devices.Memory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instruction throughput of each CPU engine, running Klaus Dormann's 6502
+ * functional test suite from <code>samples/tests</code>. The suite is
+ * reloaded whenever it reaches its success trap, so every measured
+ * instruction is part of the test.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CpuBenchmark {
+
+    private static final int BATCH = 10000;
+    private static final int START_ADDRESS = 0x0400;
+
+    @Param({CpuRunner.INTERPRETER, CpuRunner.BLOCK})
+    public String engine;
+
+    private Cpu cpu;
+    private Memory memory;
+    private CpuRunner runner;
+    private byte[] image;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        image = Files.readAllBytes(new File("samples/tests/6502_functional_test.bin").toPath());
+
+        cpu = new Cpu();
+        memory = new Memory(0x0000, 0xffff);
+        Bus bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(memory);
+
+        runner = new CpuRunner(cpu, engine);
+        restart();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int step() throws Exception {
+        runner.run(BATCH);
+        if (runner.isTrapped()) {
+            restart();
+        }
+        return cpu.getProgramCounter();
+    }
+
+    private void restart() throws Exception {
+        memory.writeRange(0, image, 0, image.length);
+        cpu.reset();
+        cpu.setProgramCounter(START_ADDRESS);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.bench;
+
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.CpuState;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+/**
+ * Steps a CPU with one of the simulator's execution engines, named the
+ * same way as the <code>-engine</code> option of batch mode.
+ */
+class CpuRunner {
+
+    static final String INTERPRETER = "interpreter";
+    static final String BLOCK = "block";
+
+    private final Cpu cpu;
+    private final CpuState state;
+    private final boolean blocks;
+
+    CpuRunner(Cpu cpu, String engine) {
+        this.cpu = cpu;
+        this.state = cpu.getCpuState();
+        switch (engine) {
+            case INTERPRETER:
+                this.blocks = false;
+                break;
+            case BLOCK:
+                this.blocks = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+        cpu.setClockPeriodInNs(0);
+    }
+
+    /**
+     * Execute at least the given number of instructions. The block engine
+     * may run a few more, to finish the block it is in.
+     */
+    void run(int instructions) throws MemoryAccessException {
+        if (blocks) {
+            long end = state.stepCounter + instructions;
+            while (state.stepCounter < end) {
+                cpu.stepBlock();
+            }
+        } else {
+            for (int i = 0; i < instructions; i++) {
+                cpu.step();
+            }
+        }
+    }
+
+    /**
+     * @return true if the last instruction jumped to itself.
+     */
+    boolean isTrapped() {
+        return state.pc == state.lastPc;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.bench;
+
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.machines.SymonMachine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instruction throughput of the Symon machine running Enhanced BASIC from
+ * <code>samples/ehbasic.rom</code>. BASIC is booted and a fixed program is
+ * typed in and started before measuring. The program never ends, and mixes
+ * floating point arithmetic, string handling and array access.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EhBasicBenchmark {
+
+    private static final int BATCH = 10000;
+
+    /* Enough instructions to boot, or to type and echo a line. */
+    private static final long MAX_INSTRUCTIONS = 10000000L;
+
+    static final String PROGRAM =
+            "10 DIM A(100)\r" +
+            "20 FOR I = 1 TO 100\r" +
+            "30 A(I) = SQR(I) * 3.14159 + I / 7\r" +
+            "40 S$ = STR$(A(I))\r" +
+            "50 T = T + LEN(S$)\r" +
+            "60 NEXT I\r" +
+            "70 GOTO 20\r";
+
+    @Param({CpuRunner.INTERPRETER, CpuRunner.BLOCK})
+    public String engine;
+
+    private SymonMachine machine;
+    private Acia acia;
+    private CpuRunner runner;
+    private final StringBuilder output = new StringBuilder();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        machine = new SymonMachine();
+        machine.setRom(Memory.makeROM(machine.getRomBase(),
+                                      machine.getRomBase() + machine.getRomSize() - 1,
+                                      new File("samples/ehbasic.rom")));
+        acia = machine.getAcia();
+
+        Cpu cpu = machine.getCpu();
+        runner = new CpuRunner(cpu, engine);
+        cpu.reset();
+
+        expect("[W]arm ?");
+        type("C");
+        expect("Memory size");
+        type("\r");
+        expect("Ready");
+        type(PROGRAM);
+        type("RUN\r");
+
+        // The program never ends, so BASIC should not be ready for input again.
+        runner.run(1000000);
+        drainOutput();
+        if (output.indexOf("Ready") >= 0) {
+            throw new IllegalStateException("The benchmark program stopped: " + output);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int run() throws Exception {
+        runner.run(BATCH);
+        drainOutput();
+        return output.length();
+    }
+
+    /**
+     * Run until the console shows the given text, then forget the output.
+     */
+    private void expect(String text) throws MemoryAccessException {
+        for (long i = 0; i < MAX_INSTRUCTIONS; i++) {
+            runner.run(1);
+            drainOutput();
+            if (output.indexOf(text) >= 0) {
+                output.setLength(0);
+                return;
+            }
+        }
+        throw new IllegalStateException("EhBASIC did not print \"" + text + "\", got: " + output);
+    }
+
+    /**
+     * Type characters into the ACIA, waiting for BASIC to read each one.
+     */
+    private void type(String text) throws MemoryAccessException {
+        for (int i = 0; i < text.length(); i++) {
+            acia.rxWrite(text.charAt(i));
+            long n = 0;
+            while (acia.hasRxChar()) {
+                if (n++ == MAX_INSTRUCTIONS) {
+                    throw new IllegalStateException("EhBASIC stopped reading input");
+                }
+                runner.run(1);
+                drainOutput();
+            }
+        }
+    }
+
+    private void drainOutput() {
+        while (acia.hasTxChar()) {
+            output.append((char) acia.txRead());
+        }
+        // Only the most recent output is ever searched.
+        if (output.length() > 4096) {
+            output.delete(0, output.length() - 256);
+        }
+    }
+}
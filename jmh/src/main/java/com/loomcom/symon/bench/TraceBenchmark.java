@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.bench;
+
+import com.loomcom.symon.CpuState;
+import com.loomcom.symon.util.TraceBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of appending one instruction to the trace log, which the simulator
+ * does after every step while the trace window is open. The buffer has the
+ * same capacity as the trace window's.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceBenchmark {
+
+    private static final int CAPACITY = 50000;
+
+    private TraceBuffer buffer;
+    private CpuState state;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        buffer = new TraceBuffer(CAPACITY);
+        state = new CpuState();
+        state.ir = 0xad;
+        state.args[0] = 0x00;
+        state.args[1] = 0x80;
+        state.instSize = 3;
+    }
+
+    @Benchmark
+    public void append() {
+        // Change the state a little, as a running CPU would.
+        state.lastPc = state.pc;
+        state.pc = (state.pc + state.instSize) & 0xffff;
+        state.a = state.pc & 0xff;
+        state.cycleCounter += 4;
+        buffer.record(state);
+    }
+}
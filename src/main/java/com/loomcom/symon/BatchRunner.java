@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.io.AciaEndpoint;
+import com.loomcom.symon.io.StreamEndpoint;
+import com.loomcom.symon.io.TcpEndpoint;
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.MulticompMachine;
+import com.loomcom.symon.machines.SimpleMachine;
+import com.loomcom.symon.machines.SymonMachine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs a ROM or program without the user interface, until a stop condition
+ * is met, then prints throughput figures and returns an exit status.
+ * Started by <code>Main</code> when given <code>--headless</code>.
+ */
+public class BatchRunner {
+
+    public static final int EXIT_SUCCESS = 0;
+    public static final int EXIT_FAILURE = 1;
+    public static final int EXIT_CYCLE_LIMIT = 2;
+    public static final int EXIT_ERROR = 3;
+
+    private static final String USAGE =
+            "Usage: --headless [options]\n" +
+            "  -machine symon|multicomp|simple   Machine to run (default: simple)\n" +
+            "  -rom <file>                       Load a ROM image\n" +
+            "  -program <file>                   Load a program into memory\n" +
+            "  -load <address>                   Program load address (default: $0300)\n" +
+            "  -start <address>                  Start address (default: load address, or reset vector)\n" +
+            "  -engine interpreter|block\n" +
+            "                                    CPU engine (default: interpreter)\n" +
+            "  -max-cycles <n>                   Stop after n cycles\n" +
+            "  -trap                             Stop when the PC jumps to itself\n" +
+            "  -success <address>                Stop on a trap, and succeed only if it is at this address\n" +
+            "  -brk                              Stop after a BRK\n" +
+            "  -mem <address>=<value>            Stop when memory (RAM or ROM) at address holds value\n" +
+            "  -profile <n>                      Print the n hottest addresses, subroutines and opcodes\n" +
+            "  -record <file>                    Record ACIA input and interrupts to a file\n" +
+            "  -replay <file>                    Replay a recording, ignoring the input stream\n" +
+            "  -metrics <seconds>                Log the effective speed this often\n" +
+            "  -acia-fifo <depth>                Give the ACIA receive and transmit FIFOs\n" +
+            "  -acia-in <file>                   Read ACIA input from a file instead of standard input\n" +
+            "  -acia-out <file>                  Write ACIA output to a file instead of standard output\n" +
+            "  -acia-tcp <port>                  Connect the ACIA to clients of a localhost TCP port\n" +
+            "Addresses and values may be decimal, 0x hex or $ hex.\n" +
+            "Exit status: 0 stop condition met, 1 trap at wrong address, 2 cycle limit, 3 error.";
+
+    /**
+     * Why a run stopped.
+     */
+    enum StopReason {
+        TRAP,
+        BRK,
+        MEMORY,
+        CYCLE_LIMIT
+    }
+
+    private final InputStream in;
+    private final PrintStream out;
+    private final PrintStream err;
+
+    // Options
+    private String machineName = "simple";
+    private File romFile;
+    private File programFile;
+    private int loadAddress = Preferences.DEFAULT_PROGRAM_LOAD_ADDRESS;
+    private int startAddress = -1;
+    private String engineName = "interpreter";
+    private long maxCycles = -1;
+    private boolean stopOnTrap = false;
+    private int successAddress = -1;
+    private boolean stopOnBrk = false;
+    private int memoryAddress = -1;
+    private int memoryValue;
+    private int profileLimit = -1;
+    private File recordFile;
+    private File replayFile;
+    private int metricsSeconds = -1;
+    private int aciaFifoDepth = 1;
+    private File aciaInputFile;
+    private File aciaOutputFile;
+    private int aciaPort = -1;
+
+    private StopReason stopReason;
+
+    /**
+     * @param in  Input for the machine's ACIA.
+     * @param out Output from the machine's ACIA.
+     * @param err Where to print the results of the run and any errors.
+     */
+    public BatchRunner(InputStream in, PrintStream out, PrintStream err) {
+        this.in = in;
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Run with the given command line arguments.
+     *
+     * @return The exit status.
+     */
+    public int run(String[] args) {
+        try {
+            parseArguments(args);
+        } catch (IllegalArgumentException ex) {
+            err.println(ex.getMessage());
+            err.println(USAGE);
+            return EXIT_ERROR;
+        }
+
+        try {
+            return execute();
+        } catch (Exception ex) {
+            err.println("Error: " + ex.getMessage());
+            return EXIT_ERROR;
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i].toLowerCase(Locale.ENGLISH);
+            switch (arg) {
+                case "--headless":
+                    break;
+                case "-machine":
+                    machineName = value(args, ++i, arg).toLowerCase(Locale.ENGLISH);
+                    break;
+                case "-rom":
+                    romFile = new File(value(args, ++i, arg));
+                    break;
+                case "-program":
+                    programFile = new File(value(args, ++i, arg));
+                    break;
+                case "-load":
+                    loadAddress = parseNumber(value(args, ++i, arg));
+                    break;
+                case "-start":
+                    startAddress = parseNumber(value(args, ++i, arg));
+                    break;
+                case "-engine":
+                    engineName = value(args, ++i, arg).toLowerCase(Locale.ENGLISH);
+                    break;
+                case "-max-cycles":
+                    maxCycles = Long.parseLong(value(args, ++i, arg));
+                    break;
+                case "-trap":
+                    stopOnTrap = true;
+                    break;
+                case "-success":
+                    stopOnTrap = true;
+                    successAddress = parseNumber(value(args, ++i, arg));
+                    break;
+                case "-brk":
+                    stopOnBrk = true;
+                    break;
+                case "-mem":
+                    String condition = value(args, ++i, arg);
+                    int separator = condition.indexOf('=');
+                    if (separator < 0) {
+                        throw new IllegalArgumentException("Expected <address>=<value> after -mem");
+                    }
+                    memoryAddress = parseNumber(condition.substring(0, separator));
+                    memoryValue = parseNumber(condition.substring(separator + 1));
+                    break;
+                case "-profile":
+                    profileLimit = parseNumber(value(args, ++i, arg));
+                    break;
+                case "-record":
+                    recordFile = new File(value(args, ++i, arg));
+                    break;
+                case "-replay":
+                    replayFile = new File(value(args, ++i, arg));
+                    break;
+                case "-acia-fifo":
+                    aciaFifoDepth = parseNumber(value(args, ++i, arg));
+                    if (aciaFifoDepth < 1) {
+                        throw new IllegalArgumentException("Expected a FIFO depth after -acia-fifo");
+                    }
+                    break;
+                case "-acia-in":
+                    aciaInputFile = new File(value(args, ++i, arg));
+                    break;
+                case "-acia-out":
+                    aciaOutputFile = new File(value(args, ++i, arg));
+                    break;
+                case "-acia-tcp":
+                    aciaPort = parseNumber(value(args, ++i, arg));
+                    if (aciaPort < 0 || aciaPort > 0xffff) {
+                        throw new IllegalArgumentException("Expected a port number after -acia-tcp");
+                    }
+                    break;
+                case "-metrics":
+                    metricsSeconds = parseNumber(value(args, ++i, arg));
+                    if (metricsSeconds < 1) {
+                        throw new IllegalArgumentException("Expected a number of seconds after -metrics");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (aciaPort >= 0 && (aciaInputFile != null || aciaOutputFile != null)) {
+            throw new IllegalArgumentException("-acia-tcp can't be used with -acia-in or -acia-out");
+        }
+    }
+
+    private int execute() throws Exception {
+        Machine machine = createMachine();
+        Cpu cpu = machine.getCpu();
+        cpu.setClockPeriodInNs(0);
+
+        SimulatorEngine engine = new SimulatorEngine(machine);
+        switch (engineName) {
+            case "interpreter":
+                break;
+            case "block":
+                engine.setBlockStepping(true);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + engineName);
+        }
+
+        if (romFile != null) {
+            if (machine.getRomSize() == 0) {
+                throw new IllegalArgumentException("Machine " + machine.getName() + " has no ROM");
+            }
+            machine.setRom(Memory.makeROM(machine.getRomBase(),
+                                          machine.getRomBase() + machine.getRomSize() - 1,
+                                          romFile));
+        }
+
+        if (programFile != null) {
+            engine.loadProgram(readProgram(machine), loadAddress);
+        } else {
+            cpu.reset();
+        }
+
+        if (startAddress >= 0) {
+            cpu.setProgramCounter(startAddress);
+        }
+
+        // Reading an I/O register would change the device, and the program.
+        if (memoryAddress >= 0 && !machine.getBus().isMemory(memoryAddress)) {
+            throw new IllegalArgumentException(String.format("-mem address $%04X is not memory", memoryAddress));
+        }
+
+        if (aciaFifoDepth > 1) {
+            if (machine.getAcia() == null) {
+                throw new IllegalArgumentException("Machine " + machine.getName() + " has no ACIA");
+            }
+            machine.getAcia().setFifoDepth(aciaFifoDepth);
+        }
+
+        try (AciaEndpoint endpoint = openEndpoint()) {
+            engine.setAciaInput(endpoint.getInputStream());
+            engine.setAciaOutput(endpoint.getOutputStream());
+            return runMachine(machine, engine, endpoint);
+        }
+    }
+
+    private int runMachine(Machine machine, SimulatorEngine engine, AciaEndpoint endpoint) throws Exception {
+        Cpu cpu = machine.getCpu();
+        engine.setStopCondition(new BatchStopCondition(machine.getBus()));
+
+        if (replayFile != null) {
+            // The recording holds the state to start from, so the machine,
+            // engine and ROM options must match the recorded run.
+            try (InputStream stream = new BufferedInputStream(new FileInputStream(replayFile))) {
+                engine.startReplay(EventRecording.readFrom(stream));
+            }
+        } else if (recordFile != null) {
+            engine.startRecording();
+        }
+
+        Profiler profiler = null;
+        if (profileLimit >= 0) {
+            profiler = new Profiler();
+            cpu.setProfiler(profiler);
+        }
+
+        // The metrics can be watched with any JMX client while the run lasts.
+        SimulatorMetrics metrics = engine.getMetrics();
+        if (metricsSeconds > 0) {
+            metrics.setLogIntervalNs(metricsSeconds * 1000000000L);
+        }
+        metrics.register();
+
+        long startTime = System.nanoTime();
+        try {
+            engine.run();
+        } finally {
+            metrics.unregister();
+        }
+        long elapsed = System.nanoTime() - startTime;
+
+        endpoint.getOutputStream().flush();
+        printResults(cpu.getCpuState(), elapsed);
+
+        EventRecording recording = engine.stopRecording();
+        if (recording != null) {
+            try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(recordFile))) {
+                recording.writeTo(stream);
+            }
+            err.println("Recorded " + recording.size() + " events to " + recordFile);
+        }
+        if (profiler != null) {
+            err.println();
+            profiler.writeReport(err, cpu, profileLimit);
+        }
+
+        if (stopReason == null) {
+            // The engine only stops by itself on an error, which it has logged.
+            return EXIT_ERROR;
+        }
+        if (stopReason == StopReason.CYCLE_LIMIT) {
+            return EXIT_CYCLE_LIMIT;
+        }
+        if (stopReason == StopReason.TRAP && successAddress >= 0 &&
+                cpu.getProgramCounter() != successAddress) {
+            return EXIT_FAILURE;
+        }
+        return EXIT_SUCCESS;
+    }
+
+    /**
+     * Open what the ACIA is connected to: standard input and output, files
+     * in place of either, or a TCP port.
+     */
+    private AciaEndpoint openEndpoint() throws IOException {
+        if (aciaPort >= 0) {
+            TcpEndpoint endpoint = new TcpEndpoint(aciaPort);
+            // With port 0, this is the only way to find out which port was chosen.
+            err.println("ACIA listening on " + endpoint.getDescription());
+            return endpoint;
+        }
+
+        InputStream input = in;
+        OutputStream output = out;
+        List<Closeable> owned = new ArrayList<>();
+        try {
+            if (aciaInputFile != null) {
+                input = new BufferedInputStream(new FileInputStream(aciaInputFile));
+                owned.add(input);
+            }
+            if (aciaOutputFile != null) {
+                output = new BufferedOutputStream(new FileOutputStream(aciaOutputFile));
+                owned.add(output);
+            }
+        } catch (IOException ex) {
+            for (Closeable stream : owned) {
+                stream.close();
+            }
+            throw ex;
+        }
+        String description = (aciaInputFile != null ? aciaInputFile.getPath() : "standard input") + " and " +
+                             (aciaOutputFile != null ? aciaOutputFile.getPath() : "standard output");
+        return new StreamEndpoint(input, output, description, owned.toArray(new Closeable[owned.size()]));
+    }
+
+    private Machine createMachine() throws Exception {
+        switch (machineName) {
+            case "symon":
+                return new SymonMachine();
+            case "multicomp":
+                return new MulticompMachine();
+            case "simple":
+                return new SimpleMachine();
+            default:
+                throw new IllegalArgumentException("Unknown machine: " + machineName);
+        }
+    }
+
+    private byte[] readProgram(Machine machine) throws IOException {
+        if (!programFile.canRead()) {
+            throw new IOException("Cannot open file " + programFile);
+        }
+        if (programFile.length() > machine.getMemorySize()) {
+            throw new IOException("File will not fit in available memory ($" +
+                                  Integer.toString(machine.getMemorySize(), 16) + " bytes)");
+        }
+        return Files.readAllBytes(programFile.toPath());
+    }
+
+    private void printResults(CpuState state, long elapsedNs) {
+        double seconds = elapsedNs / 1e9;
+        err.println("Stopped: " + describeStop(state));
+        err.println("Instructions: " + state.stepCounter);
+        err.println("Cycles: " + state.cycleCounter);
+        err.println(String.format(Locale.ENGLISH, "Time: %.3f s", seconds));
+        if (seconds > 0) {
+            err.println(String.format(Locale.ENGLISH, "Effective speed: %.2f MHz, %.2f MIPS",
+                                      state.cycleCounter / seconds / 1e6,
+                                      state.stepCounter / seconds / 1e6));
+        }
+    }
+
+    private String describeStop(CpuState state) {
+        if (stopReason == null) {
+            return "error at " + String.format("$%04X", state.lastPc);
+        }
+        switch (stopReason) {
+            case TRAP:
+                return "trap at " + String.format("$%04X", state.pc);
+            case BRK:
+                return "BRK at " + String.format("$%04X", state.lastPc);
+            case MEMORY:
+                return String.format("memory at $%04X is $%02X", memoryAddress, memoryValue);
+            default:
+                return "cycle limit reached at " + String.format("$%04X", state.pc);
+        }
+    }
+
+    StopReason getStopReason() {
+        return stopReason;
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    /**
+     * Parse a decimal, 0x hex or $ hex number.
+     */
+    static int parseNumber(String s) {
+        String value = s.trim();
+        try {
+            if (value.startsWith("$")) {
+                return Integer.parseInt(value.substring(1), 16);
+            }
+            return Integer.decode(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Not a number: " + s);
+        }
+    }
+
+    /**
+     * Checks every stop condition that was asked for, and records which one
+     * was met.
+     */
+    private class BatchStopCondition implements SimulatorEngine.StopCondition {
+        private final Bus bus;
+
+        BatchStopCondition(Bus bus) {
+            this.bus = bus;
+        }
+
+        @Override
+        public boolean shouldStop(Cpu cpu) {
+            CpuState state = cpu.getCpuState();
+            if (stopOnTrap && state.pc == state.lastPc) {
+                stopReason = StopReason.TRAP;
+            } else if (stopOnBrk && state.ir == 0x00) {
+                stopReason = StopReason.BRK;
+            } else if (memoryAddress >= 0 && readMemory() == memoryValue) {
+                stopReason = StopReason.MEMORY;
+            } else if (maxCycles >= 0 && state.cycleCounter >= maxCycles) {
+                stopReason = StopReason.CYCLE_LIMIT;
+            }
+            return stopReason != null;
+        }
+
+        private int readMemory() {
+            // Checked after every instruction, so it must not disturb the
+            // machine. The address was checked to be memory up front.
+            return bus.peek(memoryAddress);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A cache of decoded basic blocks, keyed by the address of their first
+ * instruction.
+ * <p/>
+ * A block is a run of straight-line instructions that ends with a branch,
+ * jump, JSR, RTS, RTI, BRK or illegal opcode. Each instruction is fetched
+ * from the bus once, when the block is built, and its effective address is
+ * worked out then too, unless it depends on the registers. Running a cached
+ * block skips all instruction fetches and most address decoding, and runs
+ * each instruction through the interpreter's own opcode switch, which the
+ * JIT compiles to a jump table. The per-step work of <code>Cpu.step()</code>,
+ * such as throttling, interrupt checks and peeking at the next instruction,
+ * is done once per block rather than once per instruction.
+ * <p/>
+ * The Bus reports every write to a byte that belongs to a cached block.
+ * Writes to operands are patched into the block, and writes to opcodes
+ * discard it. Only code in {@link com.loomcom.symon.devices.Memory}
+ * is cached, since reading any other device may have side effects.
+ */
+class BlockCache implements InstructionTable {
+
+    /* The longest block that will be built, in instructions. */
+    static final int MAX_BLOCK_INSTRUCTIONS = 32;
+
+    private static final int ADDRESS_SPACE = 0x10000;
+
+    /* Opcodes that may transfer control anywhere other than the next instruction. */
+    private static final boolean[] ENDS_BLOCK = new boolean[256];
+
+    static {
+        for (int opcode = 0; opcode < 256; opcode++) {
+            String name = opcodeNames[opcode];
+            ENDS_BLOCK[opcode] = name == null ||
+                                 instructionModes[opcode] == Mode.REL ||
+                                 name.equals("JMP") ||
+                                 name.equals("JSR") ||
+                                 name.equals("RTS") ||
+                                 name.equals("RTI") ||
+                                 name.equals("BRK");
+        }
+    }
+
+    /**
+     * A decoded basic block. Instruction fields are stored as parallel arrays.
+     */
+    static final class Block {
+        final int entryPc;
+        final int endAddress;
+        final int count;
+        final int[] pcs;
+        final int[] nextPcs;
+        final int[] opcodes;
+        final int[] sizes;
+        final int[] clocks;
+        final int[] args0;
+        final int[] args1;
+        // Effective addresses, or Cpu.DYNAMIC_ADDRESS if they must be worked out each time
+        final int[] addresses;
+        boolean valid = true;
+
+        private Block(int entryPc, int endAddress, int count) {
+            this.entryPc = entryPc;
+            this.endAddress = endAddress;
+            this.count = count;
+            this.pcs = new int[count];
+            this.nextPcs = new int[count];
+            this.opcodes = new int[count];
+            this.sizes = new int[count];
+            this.clocks = new int[count];
+            this.args0 = new int[count];
+            this.args1 = new int[count];
+            this.addresses = new int[count];
+        }
+
+        boolean includes(int address) {
+            return address >= entryPc && address <= endAddress;
+        }
+    }
+
+    private final Cpu cpu;
+    private final CpuState state;
+    private final CycleEventQueue events;
+
+    // Blocks, indexed by entry address
+    private final Block[] blocks = new Block[ADDRESS_SPACE];
+
+    // Blocks touching each page, used to find the blocks affected by a write
+    private final List<List<Block>> pageBlocks = new ArrayList<>(256);
+
+    // True for each address that is part of at least one cached block
+    private final boolean[] codeBytes = new boolean[ADDRESS_SPACE];
+
+    // Addresses that must always start a new block, such as breakpoints
+    private final boolean[] boundaries = new boolean[ADDRESS_SPACE];
+
+    BlockCache(Cpu cpu) {
+        this.cpu = cpu;
+        this.state = cpu.getCpuState();
+        this.events = cpu.getEventQueue();
+        for (int page = 0; page < 256; page++) {
+            pageBlocks.add(new ArrayList<Block>());
+        }
+    }
+
+    /**
+     * Return the block starting at an address, building it if necessary.
+     *
+     * @return The block, or null if the address is not in cacheable memory.
+     */
+    Block getBlock(int address) throws MemoryAccessException {
+        Block block = blocks[address];
+        if (block == null) {
+            block = build(address);
+            if (block != null) {
+                add(block);
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Run a block, one instruction at a time, leaving the CPU state exactly
+     * as single-stepping would. Stops early if the block is invalidated by
+     * one of its own instructions, or when a device event comes due, so
+     * that any interrupt it raises is serviced at the same instruction as
+     * when single-stepping.
+     *
+     * @return The number of instructions executed.
+     */
+    int execute(Block block) throws MemoryAccessException {
+        int i = 0;
+        while (i < block.count) {
+            state.lastPc = block.pcs[i];
+            state.ir = block.opcodes[i];
+            state.instSize = block.sizes[i];
+            state.args[0] = block.args0[i];
+            state.args[1] = block.args1[i];
+            state.pc = block.nextPcs[i];
+            state.opTrap = false;
+            state.stepCounter++;
+            state.cycleCounter += block.clocks[i];
+            int address = block.addresses[i++];
+            cpu.execute(address == Cpu.DYNAMIC_ADDRESS ? cpu.effectiveAddress() : address);
+            if (!block.valid || state.cycleCounter >= events.nextCycle) {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @return true if the address is part of a cached block.
+     */
+    boolean covers(int address) {
+        return codeBytes[address];
+    }
+
+    /**
+     * Update the cached blocks after a write to an address they include.
+     * Writes to an operand are patched into the decoded instruction, so code
+     * that modifies its own operands stays cached. Writes to an opcode
+     * discard the block.
+     */
+    void write(int address, int value) {
+        List<Block> candidates = pageBlocks.get(address >> 8);
+        for (Block block : new ArrayList<>(candidates)) {
+            if (!block.includes(address)) {
+                continue;
+            }
+            int i = block.count - 1;
+            while (block.pcs[i] > address) {
+                i--;
+            }
+            int offset = address - block.pcs[i];
+            if (offset == 0) {
+                remove(block);
+            } else {
+                if (offset == 1) {
+                    block.args0[i] = value & 0xff;
+                } else {
+                    block.args1[i] = value & 0xff;
+                }
+                block.addresses[i] = Cpu.fixedEffectiveAddress(block.opcodes[i], block.args0[i], block.args1[i]);
+            }
+        }
+    }
+
+    /**
+     * Discard every block that includes an address.
+     */
+    void invalidate(int address) {
+        List<Block> candidates = pageBlocks.get(address >> 8);
+        for (Block block : new ArrayList<>(candidates)) {
+            if (block.includes(address)) {
+                remove(block);
+            }
+        }
+    }
+
+    /**
+     * Discard every block that includes any address in a range.
+     */
+    void invalidateRange(int startAddress, int endAddress) {
+        int start = Math.max(startAddress, 0);
+        int end = Math.min(endAddress, ADDRESS_SPACE - 1);
+        for (int address = start; address <= end; address++) {
+            if (codeBytes[address]) {
+                invalidate(address);
+            }
+        }
+    }
+
+    /**
+     * Discard every cached block.
+     */
+    void flush() {
+        for (List<Block> list : pageBlocks) {
+            for (Block block : list) {
+                block.valid = false;
+            }
+            list.clear();
+        }
+        Arrays.fill(blocks, null);
+        Arrays.fill(codeBytes, false);
+    }
+
+    /**
+     * Force a block to start at an address, so that a caller checking the PC
+     * between blocks will always see it.
+     */
+    void addBoundary(int address) {
+        boundaries[address] = true;
+        if (codeBytes[address]) {
+            invalidate(address);
+        }
+    }
+
+    void removeBoundary(int address) {
+        boundaries[address] = false;
+    }
+
+    private Block build(int entryPc) throws MemoryAccessException {
+        Bus bus = cpu.getBus();
+
+        int[] pcs = new int[MAX_BLOCK_INSTRUCTIONS];
+        int[] opcodes = new int[MAX_BLOCK_INSTRUCTIONS];
+        int[] args0 = new int[MAX_BLOCK_INSTRUCTIONS];
+        int[] args1 = new int[MAX_BLOCK_INSTRUCTIONS];
+
+        int count = 0;
+        int pc = entryPc;
+
+        while (count < MAX_BLOCK_INSTRUCTIONS && pc < ADDRESS_SPACE) {
+            if (count > 0 && boundaries[pc]) {
+                break;
+            }
+            if (!bus.isMemory(pc)) {
+                break;
+            }
+
+            int opcode = bus.read(pc);
+            // Illegal opcodes have a size of 0, but still advance the PC.
+            int length = Math.max(instructionSizes[opcode], 1);
+            if (pc + length > ADDRESS_SPACE || !bus.isMemory(pc + length - 1)) {
+                break;
+            }
+
+            pcs[count] = pc;
+            opcodes[count] = opcode;
+            args0[count] = length > 1 ? bus.read(pc + 1) : 0;
+            args1[count] = length > 2 ? bus.read(pc + 2) : 0;
+            count++;
+            pc += length;
+
+            if (ENDS_BLOCK[opcode]) {
+                break;
+            }
+        }
+
+        if (count == 0) {
+            return null;
+        }
+
+        Block block = new Block(entryPc, pc - 1, count);
+        for (int i = 0; i < count; i++) {
+            block.pcs[i] = pcs[i];
+            block.opcodes[i] = opcodes[i];
+            block.sizes[i] = instructionSizes[opcodes[i]];
+            block.clocks[i] = instructionClocks[opcodes[i]];
+            block.args0[i] = args0[i];
+            block.args1[i] = args1[i];
+            block.nextPcs[i] = (i + 1 < count ? pcs[i + 1] : pc) & 0xffff;
+            block.addresses[i] = Cpu.fixedEffectiveAddress(opcodes[i], args0[i], args1[i]);
+        }
+        return block;
+    }
+
+    private void add(Block block) {
+        blocks[block.entryPc] = block;
+        for (int page = block.entryPc >> 8; page <= block.endAddress >> 8; page++) {
+            pageBlocks.get(page).add(block);
+        }
+        Arrays.fill(codeBytes, block.entryPc, block.endAddress + 1, true);
+    }
+
+    private void remove(Block block) {
+        block.valid = false;
+        if (blocks[block.entryPc] == block) {
+            blocks[block.entryPc] = null;
+        }
+
+        int firstPage = block.entryPc >> 8;
+        int lastPage = block.endAddress >> 8;
+
+        for (int page = firstPage; page <= lastPage; page++) {
+            pageBlocks.get(page).remove(block);
+        }
+
+        // Other blocks may overlap the removed one, so re-mark what they still cover.
+        Arrays.fill(codeBytes, block.entryPc, block.endAddress + 1, false);
+        for (int page = firstPage; page <= lastPage; page++) {
+            for (Block other : pageBlocks.get(page)) {
+                Arrays.fill(codeBytes, other.entryPc, other.endAddress + 1, true);
+            }
+        }
+    }
+}
@@ -5,29 +5,151 @@ import com.loomcom.symon.util.Utils;
 
 import javax.swing.table.AbstractTableModel;
 import java.util.ArrayList;
-import java.util.TreeSet;
+import java.util.TreeMap;
 
 public class Breakpoints extends AbstractTableModel {
 
-    private TreeSet<Integer> breakpoints;
+    /**
+     * A breakpoint, with an optional condition and hit count.
+     */
+    public static class Breakpoint {
+        private final int address;
+        private final Condition condition;
+        private final int hitCount;
+        private int hits = 0;
+
+        /**
+         * @param address   The address of the instruction to stop at.
+         * @param condition The condition that must be true to stop, or null
+         *                  to always stop.
+         * @param hitCount  Stop only once the condition has been true at this
+         *                  address this many times.
+         */
+        public Breakpoint(int address, Condition condition, int hitCount) {
+            this.address = address & 0xffff;
+            this.condition = condition;
+            this.hitCount = Math.max(hitCount, 1);
+        }
+
+        public int getAddress() {
+            return address;
+        }
+
+        public Condition getCondition() {
+            return condition;
+        }
+
+        public int getHitCount() {
+            return hitCount;
+        }
+
+        public int getHits() {
+            return hits;
+        }
+
+        public void resetHits() {
+            hits = 0;
+        }
+
+        /**
+         * Called when the CPU reaches the breakpoint's address.
+         *
+         * @return True if the simulator should stop.
+         */
+        boolean hit(Cpu cpu) {
+            if (condition != null && !condition.isTrue(cpu)) {
+                return false;
+            }
+            return ++hits >= hitCount;
+        }
+    }
+
+    private TreeMap<Integer, Breakpoint> breakpoints;
     private Simulator simulator;
 
+    /* Breakpoints by address, for the run loop. */
+    private final Breakpoint[] breakpointsByAddress = new Breakpoint[0x10000];
+
+    /*
+     * A bit per address, mirroring the set above, so the run loop can test
+     * an address with one array access and no boxing.
+     */
+    private final long[] addressBits = new long[0x10000 / 64];
+
+    /*
+     * True when no breakpoints are set. Written after addressBits, so a
+     * thread that reads it also sees the bits.
+     */
+    private volatile boolean empty = true;
+
     public Breakpoints(Simulator simulator) {
-        this.breakpoints = new TreeSet<>();
+        this.breakpoints = new TreeMap<>();
         this.simulator = simulator;
     }
 
+    /**
+     * Check for a breakpoint at an address. Cheap enough to call after
+     * every instruction, from any thread.
+     */
     public boolean contains(int address) {
-        return this.breakpoints.contains(address);
+        return !empty && (addressBits[(address & 0xffff) >>> 6] & (1L << address)) != 0;
+    }
+
+    /**
+     * Called after every instruction while the simulator runs. Counts a hit
+     * on any breakpoint at the PC, and checks its condition.
+     *
+     * @return True if the simulator should stop.
+     */
+    public boolean shouldBreak(Cpu cpu) {
+        int pc = cpu.getCpuState().pc;
+        if (!contains(pc)) {
+            return false;
+        }
+        Breakpoint breakpoint = breakpointsByAddress[pc & 0xffff];
+        return breakpoint == null || breakpoint.hit(cpu);
+    }
+
+    /**
+     * @return True if no breakpoints are set.
+     */
+    public boolean isEmpty() {
+        return empty;
     }
 
     public void addBreakpoint(int address) {
-        this.breakpoints .add(address);
+        addBreakpoint(new Breakpoint(address, null, 1));
+    }
+
+    /**
+     * Add a breakpoint, replacing any other at the same address.
+     */
+    public void addBreakpoint(Breakpoint breakpoint) {
+        int address = breakpoint.getAddress();
+        this.breakpoints.put(address, breakpoint);
+        breakpointsByAddress[address] = breakpoint;
+        setAddressBit(address, true);
         fireTableDataChanged();
     }
 
     public void removeBreakpoint(int address) {
         this.breakpoints.remove(address);
+        setAddressBit(address, false);
+        breakpointsByAddress[address & 0xffff] = null;
+        fireTableDataChanged();
+    }
+
+    public Breakpoint getBreakpoint(int address) {
+        return breakpoints.get(address & 0xffff);
+    }
+
+    /**
+     * Start counting hits on every breakpoint from zero.
+     */
+    public void resetHits() {
+        for (Breakpoint breakpoint : breakpoints.values()) {
+            breakpoint.resetHits();
+        }
         fireTableDataChanged();
     }
 
@@ -36,10 +158,8 @@ public class Breakpoints extends AbstractTableModel {
             return;
         }
 
-        ArrayList<Integer> values = new ArrayList<>(breakpoints);
-        int value = values.get(index);
-        this.breakpoints.remove(value);
-        fireTableDataChanged();
+        ArrayList<Integer> values = new ArrayList<>(breakpoints.keySet());
+        removeBreakpoint(values.get(index));
     }
 
     public void refresh() {
@@ -48,10 +168,15 @@ public class Breakpoints extends AbstractTableModel {
 
     @Override
     public String getColumnName(int index) {
-        if (index == 0) {
-            return "Address";
-        } else {
-            return "Inst";
+        switch (index) {
+            case 0:
+                return "Address";
+            case 1:
+                return "Inst";
+            case 2:
+                return "Condition";
+            default:
+                return "Hits";
         }
     }
 
@@ -62,24 +187,41 @@ public class Breakpoints extends AbstractTableModel {
 
     @Override
     public int getColumnCount() {
-        return 2;
+        return 4;
     }
 
     @Override
     public Object getValueAt(int rowIndex, int columnIndex) {
-        ArrayList<Integer> values = new ArrayList<>(breakpoints);
+        ArrayList<Breakpoint> values = new ArrayList<>(breakpoints.values());
+        Breakpoint breakpoint = values.get(rowIndex);
 
         if (columnIndex == 0) {
-            return "$" + Utils.wordToHex(values.get(rowIndex));
+            return "$" + Utils.wordToHex(breakpoint.getAddress());
         } else if (columnIndex == 1) {
-            int address = values.get(rowIndex);
             try {
-                return simulator.disassembleOpAtAddress(address);
+                return simulator.disassembleOpAtAddress(breakpoint.getAddress());
             } catch (MemoryAccessException ex) {
                 return "???";
             }
+        } else if (columnIndex == 2) {
+            return breakpoint.getCondition() == null ? "" : breakpoint.getCondition().toString();
+        } else if (columnIndex == 3) {
+            if (breakpoint.getHitCount() > 1) {
+                return breakpoint.getHits() + "/" + breakpoint.getHitCount();
+            }
+            return Integer.toString(breakpoint.getHits());
         } else {
             return null;
         }
     }
+
+    private void setAddressBit(int address, boolean isSet) {
+        int word = (address & 0xffff) >>> 6;
+        if (isSet) {
+            addressBits[word] |= 1L << address;
+        } else {
+            addressBits[word] &= ~(1L << address);
+        }
+        empty = breakpoints.isEmpty();
+    }
 }
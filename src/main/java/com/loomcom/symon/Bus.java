@@ -24,6 +24,7 @@
 package com.loomcom.symon;
 
 import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.Memory;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
@@ -51,12 +52,35 @@ public class Bus {
     // The CPU
     private Cpu cpu;
 
+    // The CPU's decoded block cache, which must hear about writes to cached code
+    private BlockCache blockCache;
+
     // Ordered sets of IO devices, associated with their priority
     private Map<Integer, SortedSet<Device>> deviceMap;
 
     // an array for quick lookup of adresses, brute-force style
     private Device[] deviceAddressArray;
 
+    // Pages of 256 bytes that are entirely backed by one page-aligned Memory
+    // device map straight to the array holding that page, skipping the device
+    // lookup. Pages with any other device, or none, are null and take the
+    // slow path. Read-only memory and shared pages have no write page, so
+    // writes to them still go through the device, which fails or copies the
+    // page first.
+    private Memory[] pageMemories;
+    private byte[][] readPages;
+    private byte[][] writePages;
+
+    // Watchpoints, checked on the slow path. Watched pages are left out of
+    // the page tables above so that every access to them is checked. The
+    // watchpoints may be edited from another thread while the CPU runs, so
+    // the page tables are only rebuilt for them at a step boundary, on the
+    // thread running the CPU.
+    private Watchpoints watchpoints;
+    private volatile boolean watchpointsChanged = false;
+
+    // Journal of the old values of written Memory locations, for rewinding
+    private RewindBuffer rewindBuffer;
 
     public Bus(int size) {
         this(0, size - 1);
@@ -88,6 +112,52 @@ public class Bus {
             }
         }
 
+        buildPageTables();
+    }
+
+    private void buildPageTables() {
+        int pageCount = (this.endAddress >> 8) + 1;
+        pageMemories = new Memory[pageCount];
+        readPages = new byte[pageCount][];
+        writePages = new byte[pageCount][];
+
+        for (int page = this.startAddress >> 8; page < pageCount; page++) {
+            int pageStart = page << 8;
+            int pageEnd = pageStart + 0xff;
+            if (pageStart < this.startAddress || pageEnd > this.endAddress) {
+                continue;
+            }
+
+            Device device = deviceAddressArray[pageStart - this.startAddress];
+            if (!(device instanceof Memory) || (device.startAddress() & 0xff) != 0) {
+                continue;
+            }
+
+            boolean wholePage = true;
+            for (int address = pageStart + 1; address <= pageEnd; address++) {
+                if (deviceAddressArray[address - this.startAddress] != device) {
+                    wholePage = false;
+                    break;
+                }
+            }
+            if (wholePage) {
+                pageMemories[page] = (Memory) device;
+                updatePage(page);
+            }
+        }
+    }
+
+    private void updatePage(int page) {
+        Memory memory = pageMemories[page];
+        if (memory == null) {
+            return;
+        }
+        int index = ((page << 8) - memory.startAddress()) >> 8;
+        byte[] contents = memory.getPage(index);
+        boolean readWatched = watchpoints != null && watchpoints.isReadWatchedPage(page);
+        boolean writeWatched = watchpoints != null && watchpoints.isWriteWatchedPage(page);
+        readPages[page] = readWatched ? null : contents;
+        writePages[page] = memory.isReadOnly() || memory.isPageShared(index) || writeWatched ? null : contents;
     }
 
     /**
@@ -119,6 +189,8 @@ public class Bus {
         device.setBus(this);
         deviceSet.add(device);
         buildDeviceAddressArray();
+        flushBlockCache();
+        clearRewindBuffer();
     }
 
     /**
@@ -142,13 +214,89 @@ public class Bus {
             deviceSet.remove(device);
         }
         buildDeviceAddressArray();
+        flushBlockCache();
+        clearRewindBuffer();
     }
 
     public void addCpu(Cpu cpu) {
         this.cpu = cpu;
+        this.blockCache = cpu.getBlockCache();
         cpu.setBus(this);
     }
 
+    /**
+     * Called by the CPU when it builds its block cache.
+     */
+    void setBlockCache(BlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    /**
+     * Check every access to the bus against a set of watchpoints.
+     *
+     * @param watchpoints The watchpoints, or null for none.
+     */
+    public void setWatchpoints(Watchpoints watchpoints) {
+        if (this.watchpoints != null) {
+            this.watchpoints.setBus(null);
+        }
+        this.watchpoints = watchpoints;
+        if (watchpoints != null) {
+            watchpoints.setBus(this);
+        }
+        watchpointsChanged();
+        applyWatchpointChanges();
+    }
+
+    public Watchpoints getWatchpoints() {
+        return watchpoints;
+    }
+
+    /**
+     * Called when the set of watched pages changes. May be called from any
+     * thread; the page tables are updated by the next call to
+     * <code>applyWatchpointChanges()</code>.
+     */
+    void watchpointsChanged() {
+        watchpointsChanged = true;
+    }
+
+    /**
+     * Bring the page tables up to date with changes to the watchpoints.
+     * Must be called on the thread running the CPU, between steps.
+     */
+    public void applyWatchpointChanges() {
+        if (watchpointsChanged) {
+            watchpointsChanged = false;
+            if (deviceAddressArray != null) {
+                buildPageTables();
+            }
+        }
+    }
+
+    /**
+     * Record the old value of every write to writable Memory in a rewind
+     * buffer.
+     *
+     * @param rewindBuffer The buffer, or null to stop recording.
+     */
+    void setRewindBuffer(RewindBuffer rewindBuffer) {
+        this.rewindBuffer = rewindBuffer;
+    }
+
+    // The old history can't be undone once the memory map changes.
+    private void clearRewindBuffer() {
+        if (rewindBuffer != null) {
+            rewindBuffer.clear();
+        }
+    }
+
+    private void flushBlockCache() {
+        if (blockCache != null) {
+            blockCache.flush();
+        }
+    }
+
     /**
      * Returns true if the memory map is full, i.e., there are no
      * gaps between any IO devices.  All memory locations map to some
@@ -169,28 +317,130 @@ public class Bus {
     }
 
     public int read(int address) throws MemoryAccessException {
+        int page = address >> 8;
+        byte[] memory = readPages[page];
+        if (memory != null) {
+            return memory[address & 0xff] & 0xff;
+        }
+
         Device d = deviceAddressArray[address - this.startAddress];
         if (d != null) {
             MemoryRange range = d.getMemoryRange();
             int devAddr = address - range.startAddress();
-            return d.read(devAddr) & 0xff;
+            int value = d.read(devAddr) & 0xff;
+            if (watchpoints != null) {
+                watchpoints.checkRead(address, value);
+            }
+            return value;
         }
 
         throw new MemoryAccessException("Bus read failed. No device at address " + String.format("$%04X", address));
     }
 
     public void write(int address, int value) throws MemoryAccessException {
+        int page = address >> 8;
+        byte[] memory = writePages[page];
+        if (memory != null) {
+            if (rewindBuffer != null) {
+                rewindBuffer.recordWrite(address, memory[address & 0xff]);
+            }
+            memory[address & 0xff] = (byte) value;
+            if (blockCache != null && blockCache.covers(address)) {
+                blockCache.write(address, value);
+            }
+            return;
+        }
+
         Device d = deviceAddressArray[address - this.startAddress];
         if (d != null) {
             MemoryRange range = d.getMemoryRange();
             int devAddr = address - range.startAddress();
+            if (rewindBuffer != null && d instanceof Memory && !((Memory) d).isReadOnly()) {
+                rewindBuffer.recordWrite(address, d.read(devAddr));
+            }
             d.write(devAddr, value);
+            if (blockCache != null && blockCache.covers(address)) {
+                blockCache.write(address, value);
+            }
+            if (watchpoints != null) {
+                watchpoints.checkWrite(address, value);
+            }
             return;
         }
 
         throw new MemoryAccessException("Bus write failed. No device at address " + String.format("$%04X", address));
     }
 
+    /**
+     * Put back a value recorded by the rewind buffer. Unlike
+     * <code>write()</code>, this skips watchpoints and the rewind buffer
+     * itself, and ignores addresses not backed by writable Memory.
+     */
+    void restoreMemory(int address, int value) throws MemoryAccessException {
+        Device d = deviceAddressArray[address - this.startAddress];
+        if (d instanceof Memory && !((Memory) d).isReadOnly()) {
+            d.write(address - d.startAddress(), value);
+            if (blockCache != null && blockCache.covers(address)) {
+                blockCache.write(address, value);
+            }
+        }
+    }
+
+    /**
+     * Read an address without side effects, and without checking
+     * watchpoints, for debugging tools. Only addresses backed by Memory are
+     * read, since reading an I/O device may change its state.
+     *
+     * @return The value at the address, or 0 if it is not backed by Memory.
+     */
+    public int peek(int address) {
+        if (!isMemory(address)) {
+            return 0;
+        }
+        Device d = deviceAddressArray[address - this.startAddress];
+        try {
+            return d.read(address - d.getMemoryRange().startAddress()) & 0xff;
+        } catch (MemoryAccessException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Called by devices whose contents change other than through
+     * <code>write()</code>, such as bulk loads into Memory.
+     */
+    public void memoryChanged(int startAddress, int endAddress) {
+        if (blockCache != null) {
+            blockCache.invalidateRange(startAddress, endAddress);
+        }
+    }
+
+    /**
+     * Called by Memory devices when they replace the arrays holding a range
+     * of addresses, or start or stop sharing them.
+     */
+    public void pagesReplaced(int startAddress, int endAddress) {
+        if (pageMemories == null) {
+            return;
+        }
+        int first = Math.max(startAddress, this.startAddress) >> 8;
+        int last = Math.min(endAddress, this.endAddress) >> 8;
+        for (int page = first; page <= last; page++) {
+            updatePage(page);
+        }
+    }
+
+    /**
+     * @return true if the address is backed by a Memory device, whose reads
+     *         have no side effects.
+     */
+    public boolean isMemory(int address) {
+        if (deviceAddressArray == null || address < startAddress || address > endAddress) {
+            return false;
+        }
+        return deviceAddressArray[address - startAddress] instanceof Memory;
+    }
+
     public void assertIrq() {
         if (cpu != null) {
             cpu.assertIrq();
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps the simulated CPU running at its configured clock speed.
+ * <p/>
+ * In <code>TIME_SLICE</code> mode, the CPU runs a slice of cycles as fast as
+ * it can, then parks the thread until the wall clock catches up with the
+ * simulated clock. Deadlines are absolute, so oversleeping in one slice is
+ * made up in the next. The drift between the two clocks is measured at the
+ * end of every slice.
+ * <p/>
+ * <code>BUSY_WAIT</code> mode spins on <code>System.nanoTime()</code> after
+ * every step. It is more precise over very short intervals, but it keeps a
+ * core busy even when the simulated CPU is slow.
+ */
+public class ClockThrottle {
+
+    public enum Mode {
+        BUSY_WAIT,
+        TIME_SLICE
+    }
+
+    public static final int DEFAULT_SLICE_CYCLES = 1000;
+
+    /* If the simulation falls this many slices behind, stop trying to catch up. */
+    private static final int MAX_LAG_SLICES = 100;
+
+    private final static Logger logger = LoggerFactory.getLogger(ClockThrottle.class.getName());
+
+    private Mode mode = Mode.TIME_SLICE;
+    private long clockPeriodInNs;
+    private int sliceCycles = DEFAULT_SLICE_CYCLES;
+
+    /* Wall clock time at which the current step started (BUSY_WAIT) */
+    private long stepBeginTime;
+
+    /* Wall clock time at which all cycles accounted so far should be finished (TIME_SLICE) */
+    private long deadline;
+    private boolean started = false;
+    private int pendingCycles;
+
+    /* Drift statistics, in nanoseconds. Positive drift means the simulation is running late. */
+    private long lastDriftNs;
+    private long maxDriftNs;
+    private long lagResets;
+
+    /* Total time spent waiting for the wall clock, never reset, so that callers can take differences. */
+    private volatile long totalWaitNs;
+
+    public ClockThrottle(long clockPeriodInNs) {
+        this.clockPeriodInNs = clockPeriodInNs;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+        reset();
+    }
+
+    public long getClockPeriodInNs() {
+        return clockPeriodInNs;
+    }
+
+    public void setClockPeriodInNs(long clockPeriodInNs) {
+        this.clockPeriodInNs = clockPeriodInNs;
+        reset();
+    }
+
+    public int getSliceCycles() {
+        return sliceCycles;
+    }
+
+    /**
+     * @param sliceCycles The number of cycles to run between synchronizations
+     *                    with the wall clock, in TIME_SLICE mode.
+     */
+    public void setSliceCycles(int sliceCycles) {
+        if (sliceCycles < 1) {
+            throw new IllegalArgumentException("Slice must be at least one cycle");
+        }
+        this.sliceCycles = sliceCycles;
+        reset();
+    }
+
+    /**
+     * Forget all timing history, so that the next slice starts from the
+     * current wall clock time. Call this whenever the CPU has been stopped.
+     */
+    public void reset() {
+        started = false;
+        pendingCycles = 0;
+        lastDriftNs = 0;
+        maxDriftNs = 0;
+        lagResets = 0;
+    }
+
+    /**
+     * Mark the start of a step. Must be called before the step's instructions
+     * are executed.
+     */
+    public void beginStep() {
+        if (mode == Mode.BUSY_WAIT) {
+            stepBeginTime = System.nanoTime();
+        } else if (!started) {
+            deadline = System.nanoTime();
+            started = true;
+        }
+    }
+
+    /**
+     * Account for the cycles used by the current step, waiting if the
+     * simulated clock has got ahead of the wall clock.
+     */
+    public void endStep(int cycles) {
+        if (mode == Mode.BUSY_WAIT) {
+            long end = stepBeginTime + cycles * clockPeriodInNs;
+            long start = System.nanoTime();
+            long now = start;
+            while (now < end) {
+                // Spin
+                now = System.nanoTime();
+            }
+            totalWaitNs += now - start;
+            return;
+        }
+
+        pendingCycles += cycles;
+        if (pendingCycles >= sliceCycles) {
+            deadline += pendingCycles * clockPeriodInNs;
+            pendingCycles = 0;
+            sync();
+        }
+    }
+
+    /**
+     * @return The drift measured at the end of the most recent slice.
+     */
+    public long getLastDriftNs() {
+        return lastDriftNs;
+    }
+
+    /**
+     * @return The largest drift measured since the last reset.
+     */
+    public long getMaxDriftNs() {
+        return maxDriftNs;
+    }
+
+    /**
+     * @return The number of times the simulation fell so far behind that it
+     *         gave up catching up, since the last reset.
+     */
+    public long getLagResets() {
+        return lagResets;
+    }
+
+    /**
+     * @return The total time spent waiting for the wall clock to catch up,
+     *         in either mode. Unlike the drift statistics, this is never reset.
+     */
+    public long getTotalWaitNs() {
+        return totalWaitNs;
+    }
+
+    private void sync() {
+        long start = System.nanoTime();
+        long now = start;
+        while (deadline - now > 0) {
+            // May return early, so check the clock again.
+            LockSupport.parkNanos(deadline - now);
+            now = System.nanoTime();
+        }
+        totalWaitNs += now - start;
+
+        long drift = now - deadline;
+        lastDriftNs = drift;
+        if (drift > maxDriftNs) {
+            maxDriftNs = drift;
+        }
+
+        if (drift > MAX_LAG_SLICES * sliceCycles * clockPeriodInNs) {
+            logger.debug("Simulation is {} ns behind the wall clock, resynchronizing.", drift);
+            deadline += drift;
+            lagResets++;
+        }
+    }
+}
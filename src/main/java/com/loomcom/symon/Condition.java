@@ -0,0 +1,559 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.ConditionSyntaxException;
+
+/**
+ * A condition on the state of the machine, such as <code>A==$41 &amp;&amp; X>3</code>
+ * or <code>mem[$00FF]!=0</code>, for conditional breakpoints.
+ * <p/>
+ * A condition is parsed once, into a tree of small expression objects that
+ * each do one thing. Sub-expressions made only of constants are folded
+ * away. Checking the condition after an instruction is then a few virtual
+ * calls, with no parsing or interpretation of text.
+ * <p/>
+ * Conditions are C-like expressions over integers, which are true if
+ * non-zero. They may use:
+ * <ul>
+ * <li>Registers <code>A</code>, <code>X</code>, <code>Y</code>,
+ * <code>S</code> (or <code>SP</code>), <code>P</code> and <code>PC</code></li>
+ * <li>Flags <code>N</code>, <code>V</code>, <code>B</code>, <code>D</code>,
+ * <code>I</code>, <code>Z</code> and <code>C</code>, which are 0 or 1</li>
+ * <li>Memory, as <code>mem[address]</code>. Only addresses backed by
+ * memory are read, since reading an I/O device may change it. Any other
+ * address reads as 0.</li>
+ * <li>Numbers in decimal, in hex as <code>$41</code> or <code>0x41</code>,
+ * or in binary as <code>%01000001</code></li>
+ * <li>Operators <code>|| &amp;&amp; | ^ &amp; == != &lt; &lt;= &gt; &gt;= + -</code>,
+ * unary <code>! - ~</code>, and parentheses</li>
+ * </ul>
+ * Names are not case sensitive.
+ */
+public class Condition {
+
+    private final String text;
+    private final Expression expression;
+
+    private Condition(String text, Expression expression) {
+        this.text = text;
+        this.expression = expression;
+    }
+
+    /**
+     * Parse and compile a condition.
+     *
+     * @param text The condition, for example <code>A==$41 &amp;&amp; X>3</code>.
+     * @throws ConditionSyntaxException if the condition is not valid.
+     */
+    public static Condition parse(String text) throws ConditionSyntaxException {
+        if (text == null || text.trim().isEmpty()) {
+            throw new ConditionSyntaxException("Empty condition");
+        }
+        return new Condition(text.trim(), new Parser(text).parse());
+    }
+
+    /**
+     * Evaluate the condition against the current state of a CPU.
+     */
+    public boolean isTrue(Cpu cpu) {
+        return expression.evaluate(cpu, cpu.getCpuState()) != 0;
+    }
+
+    /**
+     * @return True if the condition does not depend on the machine at all.
+     */
+    public boolean isConstant() {
+        return expression instanceof Constant;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * A node in a compiled condition.
+     */
+    private abstract static class Expression {
+        abstract int evaluate(Cpu cpu, CpuState state);
+    }
+
+    private static final class Constant extends Expression {
+        private final int value;
+
+        Constant(int value) {
+            this.value = value;
+        }
+
+        @Override
+        int evaluate(Cpu cpu, CpuState state) {
+            return value;
+        }
+    }
+
+    private static int bit(boolean flag) {
+        return flag ? 1 : 0;
+    }
+
+    private static int peek(Cpu cpu, int address) {
+        Bus bus = cpu.getBus();
+        return bus == null ? 0 : bus.peek(address & 0xffff);
+    }
+
+    /**
+     * A recursive descent parser, which builds the expression tree as it goes.
+     */
+    private static final class Parser {
+        private final String text;
+        private int pos = 0;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Expression parse() throws ConditionSyntaxException {
+            Expression expression = parseOr();
+            skipSpace();
+            if (pos < text.length()) {
+                throw error("Unexpected '" + text.charAt(pos) + "'");
+            }
+            return expression;
+        }
+
+        private Expression parseOr() throws ConditionSyntaxException {
+            Expression left = parseAnd();
+            while (accept("||")) {
+                left = binary("||", left, parseAnd());
+            }
+            return left;
+        }
+
+        private Expression parseAnd() throws ConditionSyntaxException {
+            Expression left = parseBitOr();
+            while (accept("&&")) {
+                left = binary("&&", left, parseBitOr());
+            }
+            return left;
+        }
+
+        private Expression parseBitOr() throws ConditionSyntaxException {
+            Expression left = parseBitXor();
+            while (!lookingAt("||") && accept("|")) {
+                left = binary("|", left, parseBitXor());
+            }
+            return left;
+        }
+
+        private Expression parseBitXor() throws ConditionSyntaxException {
+            Expression left = parseBitAnd();
+            while (accept("^")) {
+                left = binary("^", left, parseBitAnd());
+            }
+            return left;
+        }
+
+        private Expression parseBitAnd() throws ConditionSyntaxException {
+            Expression left = parseEquality();
+            while (!lookingAt("&&") && accept("&")) {
+                left = binary("&", left, parseEquality());
+            }
+            return left;
+        }
+
+        private Expression parseEquality() throws ConditionSyntaxException {
+            Expression left = parseRelational();
+            while (true) {
+                if (accept("==")) {
+                    left = binary("==", left, parseRelational());
+                } else if (accept("!=")) {
+                    left = binary("!=", left, parseRelational());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Expression parseRelational() throws ConditionSyntaxException {
+            Expression left = parseAdditive();
+            while (true) {
+                if (accept("<=")) {
+                    left = binary("<=", left, parseAdditive());
+                } else if (accept(">=")) {
+                    left = binary(">=", left, parseAdditive());
+                } else if (accept("<")) {
+                    left = binary("<", left, parseAdditive());
+                } else if (accept(">")) {
+                    left = binary(">", left, parseAdditive());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Expression parseAdditive() throws ConditionSyntaxException {
+            Expression left = parseUnary();
+            while (true) {
+                if (accept("+")) {
+                    left = binary("+", left, parseUnary());
+                } else if (accept("-")) {
+                    left = binary("-", left, parseUnary());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Expression parseUnary() throws ConditionSyntaxException {
+            if (!lookingAt("!=") && accept("!")) {
+                return unary("!", parseUnary());
+            } else if (accept("-")) {
+                return unary("-", parseUnary());
+            } else if (accept("~")) {
+                return unary("~", parseUnary());
+            }
+            return parsePrimary();
+        }
+
+        private Expression parsePrimary() throws ConditionSyntaxException {
+            skipSpace();
+            if (pos >= text.length()) {
+                throw error("Unexpected end of condition");
+            }
+
+            char c = text.charAt(pos);
+            if (c == '(') {
+                pos++;
+                Expression inner = parseOr();
+                expect(")");
+                return inner;
+            } else if (c == '$' || c == '%' || Character.isDigit(c)) {
+                return new Constant(parseNumber());
+            } else if (Character.isLetter(c)) {
+                return parseName();
+            }
+            throw error("Unexpected '" + c + "'");
+        }
+
+        private int parseNumber() throws ConditionSyntaxException {
+            int radix = 10;
+            if (text.charAt(pos) == '$') {
+                radix = 16;
+                pos++;
+            } else if (text.charAt(pos) == '%') {
+                radix = 2;
+                pos++;
+            } else if (text.startsWith("0x", pos) || text.startsWith("0X", pos)) {
+                radix = 16;
+                pos += 2;
+            }
+
+            int start = pos;
+            while (pos < text.length() && Character.digit(text.charAt(pos), radix) >= 0) {
+                pos++;
+            }
+            if (start == pos) {
+                throw error("Expected a number");
+            }
+            try {
+                return Integer.parseInt(text.substring(start, pos), radix);
+            } catch (NumberFormatException ex) {
+                throw error("Number out of range");
+            }
+        }
+
+        private Expression parseName() throws ConditionSyntaxException {
+            int start = pos;
+            while (pos < text.length() && Character.isLetter(text.charAt(pos))) {
+                pos++;
+            }
+            String name = text.substring(start, pos).toUpperCase();
+
+            switch (name) {
+                case "A":
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return state.a;
+                        }
+                    };
+                case "X":
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return state.x;
+                        }
+                    };
+                case "Y":
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return state.y;
+                        }
+                    };
+                case "S":
+                case "SP":
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return state.sp;
+                        }
+                    };
+                case "PC":
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return state.pc;
+                        }
+                    };
+                case "P":
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return state.getStatusFlag();
+                        }
+                    };
+                case "N":
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(state.negativeFlag);
+                        }
+                    };
+                case "V":
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(state.overflowFlag);
+                        }
+                    };
+                case "B":
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(state.breakFlag);
+                        }
+                    };
+                case "D":
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(state.decimalModeFlag);
+                        }
+                    };
+                case "I":
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(state.irqDisableFlag);
+                        }
+                    };
+                case "Z":
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(state.zeroFlag);
+                        }
+                    };
+                case "C":
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(state.carryFlag);
+                        }
+                    };
+                case "MEM":
+                    expect("[");
+                    final Expression address = parseOr();
+                    expect("]");
+                    if (address instanceof Constant) {
+                        final int constantAddress = ((Constant) address).value;
+                        return new Expression() {
+                            int evaluate(Cpu cpu, CpuState state) {
+                                return peek(cpu, constantAddress);
+                            }
+                        };
+                    }
+                    return new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return peek(cpu, address.evaluate(cpu, state));
+                        }
+                    };
+                default:
+                    pos = start;
+                    throw error("Unknown name '" + name + "'");
+            }
+        }
+
+        private Expression unary(String op, final Expression operand) {
+            Expression result;
+            switch (op) {
+                case "!":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(operand.evaluate(cpu, state) == 0);
+                        }
+                    };
+                    break;
+                case "-":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return -operand.evaluate(cpu, state);
+                        }
+                    };
+                    break;
+                default:
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return ~operand.evaluate(cpu, state);
+                        }
+                    };
+                    break;
+            }
+            return fold(result, operand instanceof Constant);
+        }
+
+        private Expression binary(String op, final Expression left, final Expression right) {
+            Expression result;
+            switch (op) {
+                case "||":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(left.evaluate(cpu, state) != 0 || right.evaluate(cpu, state) != 0);
+                        }
+                    };
+                    break;
+                case "&&":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(left.evaluate(cpu, state) != 0 && right.evaluate(cpu, state) != 0);
+                        }
+                    };
+                    break;
+                case "|":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return left.evaluate(cpu, state) | right.evaluate(cpu, state);
+                        }
+                    };
+                    break;
+                case "^":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return left.evaluate(cpu, state) ^ right.evaluate(cpu, state);
+                        }
+                    };
+                    break;
+                case "&":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return left.evaluate(cpu, state) & right.evaluate(cpu, state);
+                        }
+                    };
+                    break;
+                case "==":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(left.evaluate(cpu, state) == right.evaluate(cpu, state));
+                        }
+                    };
+                    break;
+                case "!=":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(left.evaluate(cpu, state) != right.evaluate(cpu, state));
+                        }
+                    };
+                    break;
+                case "<":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(left.evaluate(cpu, state) < right.evaluate(cpu, state));
+                        }
+                    };
+                    break;
+                case "<=":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(left.evaluate(cpu, state) <= right.evaluate(cpu, state));
+                        }
+                    };
+                    break;
+                case ">":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(left.evaluate(cpu, state) > right.evaluate(cpu, state));
+                        }
+                    };
+                    break;
+                case ">=":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return bit(left.evaluate(cpu, state) >= right.evaluate(cpu, state));
+                        }
+                    };
+                    break;
+                case "+":
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return left.evaluate(cpu, state) + right.evaluate(cpu, state);
+                        }
+                    };
+                    break;
+                default:
+                    result = new Expression() {
+                        int evaluate(Cpu cpu, CpuState state) {
+                            return left.evaluate(cpu, state) - right.evaluate(cpu, state);
+                        }
+                    };
+                    break;
+            }
+            return fold(result, left instanceof Constant && right instanceof Constant);
+        }
+
+        /*
+         * Replace an expression over constants with its value. Such an
+         * expression never looks at the machine, so it can be evaluated now.
+         */
+        private Expression fold(Expression expression, boolean isConstant) {
+            return isConstant ? new Constant(expression.evaluate(null, null)) : expression;
+        }
+
+        private void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private boolean lookingAt(String token) {
+            skipSpace();
+            return text.startsWith(token, pos);
+        }
+
+        private boolean accept(String token) {
+            if (lookingAt(token)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) throws ConditionSyntaxException {
+            if (!accept(token)) {
+                throw error("Expected '" + token + "'");
+            }
+        }
+
+        private ConditionSyntaxException error(String message) {
+            return new ConditionSyntaxException(message + " at position " + (pos + 1) + " in \"" + text + "\"");
+        }
+    }
+}
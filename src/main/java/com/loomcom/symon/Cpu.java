@@ -60,20 +60,52 @@ public class Cpu implements InstructionTable {
 
     public static final long DEFAULT_CLOCK_PERIOD_IN_NS = 1000;
 
+    /* Clock cycles taken to service an IRQ or NMI */
+    public static final int INTERRUPT_CLOCKS = 7;
+
+    /* Returned by fixedEffectiveAddress() for addresses that depend on the registers */
+    static final int DYNAMIC_ADDRESS = Integer.MIN_VALUE;
+
+    /* Opcodes that take an extra cycle when indexing crosses a page boundary */
+    private static final boolean[] PAGE_CROSSING_PENALTY = new boolean[256];
+
+    static {
+        for (int opcode = 0; opcode < 256; opcode++) {
+            String name = opcodeNames[opcode];
+            Mode mode = instructionModes[opcode];
+            // Stores and read-modify-write instructions always take the extra cycle.
+            PAGE_CROSSING_PENALTY[opcode] = name != null &&
+                    (mode == Mode.ABX || mode == Mode.ABY || mode == Mode.INY) &&
+                    !name.equals("STA") &&
+                    !name.equals("ASL") && !name.equals("LSR") &&
+                    !name.equals("ROL") && !name.equals("ROR") &&
+                    !name.equals("INC") && !name.equals("DEC");
+        }
+    }
+
     /* Simulated clock speed (default is 1MHz) */
     private long clockPeriodInNs = DEFAULT_CLOCK_PERIOD_IN_NS;
 
     /* Simulated behavior */
     private CpuBehavior behavior;
 
+    /* Decoded basic blocks, used by stepBlock(), built when first needed */
+    private BlockCache blockCache;
+
     /* The Bus */
     private Bus bus;
 
     /* The CPU state */
     private final CpuState state = new CpuState();
 
-    /* start time of op execution, needed for speed simulation */
-    private long opBeginTime;
+    /* Keeps the simulated clock in step with the wall clock */
+    private final ClockThrottle throttle = new ClockThrottle(DEFAULT_CLOCK_PERIOD_IN_NS);
+
+    /* Execution profiler, or null when not profiling */
+    private Profiler profiler;
+
+    /* Device events, run when the cycle counter reaches them */
+    private final CycleEventQueue eventQueue = new CycleEventQueue();
 
     /**
      * Construct a new CPU.
@@ -93,6 +125,13 @@ public class Cpu implements InstructionTable {
         this.bus = bus;
     }
 
+    /**
+     * @return The queue devices use to schedule events at CPU cycles.
+     */
+    public CycleEventQueue getEventQueue() {
+        return eventQueue;
+    }
+
     /**
      * Return the Bus that this CPU is associated with.
      */
@@ -104,6 +143,60 @@ public class Cpu implements InstructionTable {
         this.behavior = behavior;
     }
 
+    public CpuBehavior getBehavior() {
+        return behavior;
+    }
+
+    /**
+     * Record every instruction executed in a profiler.
+     *
+     * @param profiler The profiler, or null to stop profiling.
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * @return The block cache, or null if <code>stepBlock()</code> has not
+     *         needed one yet.
+     */
+    BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /*
+     * Build the block cache the first time it is needed. A CPU that never
+     * runs blocks never pays for it.
+     */
+    private BlockCache blockCache() {
+        if (blockCache == null) {
+            blockCache = new BlockCache(this);
+            if (bus != null) {
+                bus.setBlockCache(blockCache);
+            }
+        }
+        return blockCache;
+    }
+
+    /**
+     * Make sure that a block executed by <code>stepBlock()</code> always
+     * starts at the given address, rather than running through it. Use this
+     * for any address the caller needs to stop at, such as a breakpoint.
+     */
+    public void addBlockBoundary(int address) {
+        blockCache().addBoundary(address);
+    }
+
+    public void removeBlockBoundary(int address) {
+        if (blockCache != null) {
+            blockCache.removeBoundary(address);
+        }
+    }
+
     /**
      * Reset the CPU to known initial values.
      */
@@ -133,14 +226,21 @@ public class Cpu implements InstructionTable {
         // Clear illegal opcode trap.
         state.opTrap = false;
 
-        // Reset step counter
+        // Reset step and cycle counters, keeping device events the same distance away
+        eventQueue.shift(-state.cycleCounter);
         state.stepCounter = 0L;
+        state.cycleCounter = 0L;
 
         // Reset registers.
         state.a = 0;
         state.x = 0;
         state.y = 0;
 
+        // Memory may have been cleared or replaced without going through the bus.
+        if (blockCache != null) {
+            blockCache.flush();
+        }
+
         peekAhead();
     }
 
@@ -154,23 +254,113 @@ public class Cpu implements InstructionTable {
      * Performs an individual instruction cycle.
      */
     public void step() throws MemoryAccessException {
-        opBeginTime = System.nanoTime();
+        // A clock period of 0 runs unthrottled, so there is nothing to time.
+        boolean throttled = clockPeriodInNs > 0;
+        if (throttled) {
+            throttle.beginStep();
+        }
+        long startCycles = state.cycleCounter;
 
         // Store the address from which the IR was read, for debugging
         state.lastPc = state.pc;
 
         // Check for Interrupts before doing anything else.
         // This will set the PC and jump to the interrupt vector.
+        serviceInterrupts();
+
+        if (profiler == null) {
+            fetchAndExecute();
+        } else {
+            profileAndExecute();
+        }
+
+        if (state.cycleCounter >= eventQueue.nextCycle) {
+            eventQueue.runDue(state.cycleCounter);
+        }
+
+        if (throttled) {
+            throttle.endStep((int) (state.cycleCounter - startCycles));
+        }
+
+        // Peek ahead to the next insturction and arguments
+        peekAhead();
+    }
+
+    /**
+     * Execute one basic block: a run of straight-line instructions ending
+     * with a branch, jump, JSR, RTS, RTI or BRK. Blocks are decoded once and
+     * cached by entry address, so most calls do no instruction fetches at all.
+     * <p/>
+     * Interrupts are only serviced at the start of a block, and the PC should
+     * only be inspected between blocks. Use <code>addBlockBoundary()</code> for
+     * addresses the caller needs to stop at. Code outside of Memory devices is
+     * never cached, and is executed one instruction at a time. So is all code
+     * while a profiler is attached, so that it sees every instruction.
+     *
+     * @return The number of instructions executed.
+     */
+    public int stepBlock() throws MemoryAccessException {
+        boolean throttled = clockPeriodInNs > 0;
+        if (throttled) {
+            throttle.beginStep();
+        }
+
+        long startCycles = state.cycleCounter;
+
+        state.lastPc = state.pc;
+
+        serviceInterrupts();
+
+        int executed;
+
+        BlockCache.Block block = profiler == null ? blockCache().getBlock(state.pc) : null;
+        if (block == null) {
+            if (profiler == null) {
+                fetchAndExecute();
+            } else {
+                profileAndExecute();
+            }
+            executed = 1;
+        } else {
+            executed = blockCache.execute(block);
+        }
+
+        if (state.cycleCounter >= eventQueue.nextCycle) {
+            eventQueue.runDue(state.cycleCounter);
+        }
+
+        if (throttled) {
+            throttle.endStep((int) (state.cycleCounter - startCycles));
+        }
+
+        peekAhead();
+
+        return executed;
+    }
+
+    private void serviceInterrupts() throws MemoryAccessException {
         if (state.nmiAsserted) {
             handleNmi();
+            state.cycleCounter += INTERRUPT_CLOCKS;
         } else if (state.irqAsserted && !getIrqDisableFlag()) {
             handleIrq(state.pc);
+            state.cycleCounter += INTERRUPT_CLOCKS;
         }
+    }
 
+    /**
+     * Fetch, decode and execute the instruction at the PC.
+     */
+    private void profileAndExecute() throws MemoryAccessException {
+        int address = state.pc;
+        long startCycles = state.cycleCounter;
+        fetchAndExecute();
+        profiler.record(address, (int) (state.cycleCounter - startCycles), state);
+    }
+
+    private void fetchAndExecute() throws MemoryAccessException {
         // Fetch memory location for this instruction.
         state.ir = bus.read(state.pc);
-        int irAddressMode = (state.ir >> 2) & 0x07;  // Bits 3-5 of IR:  [ | | |X|X|X| | ]
-        int irOpMode = state.ir & 0x03;              // Bits 6-7 of IR:  [ | | | | | |X|X]
 
         incrementPC();
 
@@ -185,6 +375,29 @@ public class Cpu implements InstructionTable {
         }
 
         state.stepCounter++;
+        state.cycleCounter += Cpu.instructionClocks[state.ir];
+
+        interpret();
+    }
+
+    /**
+     * Decode and execute the instruction in the IR using nested switches on
+     * the addressing mode and the opcode.
+     */
+    private void interpret() throws MemoryAccessException {
+        execute(effectiveAddress());
+    }
+
+    /**
+     * Work out the effective address of the instruction in the IR from its
+     * addressing mode, and charge the page crossing penalty if it applies.
+     *
+     * @return The address, -1 for immediate operands of the ORA/AND/EOR/ADC
+     *         group, or 0 if the instruction has no memory operand.
+     */
+    int effectiveAddress() throws MemoryAccessException {
+        int irAddressMode = (state.ir >> 2) & 0x07;  // Bits 3-5 of IR:  [ | | |X|X|X| | ]
+        int irOpMode = state.ir & 0x03;              // Bits 6-7 of IR:  [ | | | | | |X|X]
 
         // Get the data from the effective address (if any)
         int effectiveAddress = 0;
@@ -217,6 +430,9 @@ public class Cpu implements InstructionTable {
                         } else {
                             effectiveAddress = xAddress(state.args[0], state.args[1]);
                         }
+                        if (PAGE_CROSSING_PENALTY[state.ir]) {
+                            checkPageCrossing(Utils.address(state.args[0], state.args[1]), effectiveAddress);
+                        }
                         break;
                 }
                 break;
@@ -239,21 +455,81 @@ public class Cpu implements InstructionTable {
                         tmp = Utils.address(bus.read(state.args[0]),
                                       bus.read((state.args[0] + 1) & 0xff));
                         effectiveAddress = (tmp + state.y) & 0xffff;
+                        if (PAGE_CROSSING_PENALTY[state.ir]) {
+                            checkPageCrossing(tmp, effectiveAddress);
+                        }
                         break;
                     case 5: // Zero Page,X
                         effectiveAddress = zpxAddress(state.args[0]);
                         break;
                     case 6: // Absolute, Y
                         effectiveAddress = yAddress(state.args[0], state.args[1]);
+                        if (PAGE_CROSSING_PENALTY[state.ir]) {
+                            checkPageCrossing(Utils.address(state.args[0], state.args[1]), effectiveAddress);
+                        }
                         break;
                     case 7: // Absolute, X
                         effectiveAddress = xAddress(state.args[0], state.args[1]);
+                        if (PAGE_CROSSING_PENALTY[state.ir]) {
+                            checkPageCrossing(Utils.address(state.args[0], state.args[1]), effectiveAddress);
+                        }
                         break;
                 }
                 break;
         }
 
-        // Execute
+        return effectiveAddress;
+    }
+
+    /**
+     * The effective address of an instruction, if it depends only on the
+     * instruction's own operand bytes, as it does for zero page, absolute
+     * and immediate operands. Mirrors <code>effectiveAddress()</code>.
+     *
+     * @return The address, or <code>DYNAMIC_ADDRESS</code> if it depends on
+     *         the registers or memory, and must be worked out each time.
+     */
+    static int fixedEffectiveAddress(int opcode, int arg0, int arg1) {
+        int irAddressMode = (opcode >> 2) & 0x07;
+        int irOpMode = opcode & 0x03;
+
+        switch (irOpMode) {
+            case 0:
+            case 2:
+                switch (irAddressMode) {
+                    case 1: // Zero Page
+                        return arg0;
+                    case 3: // Absolute
+                        return Utils.address(arg0, arg1);
+                    case 5: // Zero Page,X / Zero Page,Y
+                    case 7: // Absolute,X / Absolute,Y
+                        return DYNAMIC_ADDRESS;
+                    default:
+                        return 0;
+                }
+            case 1:
+                switch (irAddressMode) {
+                    case 1: // Zero Page
+                        return arg0;
+                    case 2: // #Immediate
+                        return -1;
+                    case 3: // Absolute
+                        return Utils.address(arg0, arg1);
+                    default:
+                        return DYNAMIC_ADDRESS;
+                }
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Execute the instruction in the IR, with its operands already in the
+     * CPU state and its effective address already worked out.
+     */
+    void execute(int effectiveAddress) throws MemoryAccessException {
+        int tmp; // Temporary storage
+
         switch (state.ir) {
 
             /** Single Byte Instructions; Implied and Relative **/
@@ -266,7 +542,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0x10: // BPL - Branch if Positive - Relative
                 if (!getNegativeFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0x18: // CLC - Clear Carry Flag - Implied
@@ -282,7 +558,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0x30: // BMI - Branch if Minus - Relative
                 if (getNegativeFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0x38: // SEC - Set Carry Flag - Implied
@@ -299,7 +575,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0x50: // BVC - Branch if Overflow Clear - Relative
                 if (!getOverflowFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0x58: // CLI - Clear Interrupt Disable - Implied
@@ -316,7 +592,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0x70: // BVS - Branch if Overflow Set - Relative
                 if (getOverflowFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0x78: // SEI - Set Interrupt Disable - Implied
@@ -332,7 +608,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0x90: // BCC - Branch if Carry Clear - Relative
                 if (!getCarryFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0x98: // TYA - Transfer Y to Accumulator - Implied
@@ -352,7 +628,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0xb0: // BCS - Branch if Carry Set - Relative
                 if (getCarryFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0xb8: // CLV - Clear Overflow Flag - Implied
@@ -372,7 +648,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0xd0: // BNE - Branch if Not Equal to Zero - Relative
                 if (!getZeroFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0xd8: // CLD - Clear Decimal Mode - Implied
@@ -387,7 +663,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0xf0: // BEQ - Branch if Equal to Zero - Relative
                 if (getZeroFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0]);
                 }
                 break;
             case 0xf8: // SED - Set Decimal Flag - Implied
@@ -726,11 +1002,6 @@ public class Cpu implements InstructionTable {
                 setOpTrap();
                 break;
         }
-
-        delayLoop(state.ir);
-
-        // Peek ahead to the next insturction and arguments
-        peekAhead();
     }
 
     private void peekAhead() throws MemoryAccessException {
@@ -922,6 +1193,15 @@ public class Cpu implements InstructionTable {
     public void setClockPeriodInNs(long clockPeriodInNs) {
         logger.debug("Setting simulated clock period to {} ns.", clockPeriodInNs);
         this.clockPeriodInNs = clockPeriodInNs;
+        throttle.setClockPeriodInNs(clockPeriodInNs);
+    }
+
+    /**
+     * Return the throttle that paces execution at the simulated clock speed,
+     * to choose its mode or read its drift.
+     */
+    public ClockThrottle getClockThrottle() {
+        return throttle;
     }
 
     /**
@@ -1343,29 +1623,30 @@ public class Cpu implements InstructionTable {
     }
 
     /**
-     * Given a single byte, compute the Zero Page,Y offset address.
+     * Take a relative branch. A taken branch costs one extra cycle, or two
+     * if the target is on a different page from the next instruction.
      */
-    int zpyAddress(int zp) {
-        return (zp + state.y) & 0xff;
+    private void branch(int offset) {
+        int target = relAddress(offset);
+        state.cycleCounter += ((state.pc ^ target) & 0xff00) == 0 ? 1 : 2;
+        state.pc = target;
     }
 
-    /*
-     * Perform a busy-loop until the instruction should complete on the wall clock
+    /**
+     * Add the extra cycle an indexed read takes when the indexed address is
+     * on a different page from the base address.
      */
-    private void delayLoop(int opcode) {
-        int clockSteps = Cpu.instructionClocks[0xff & opcode];
-
-        if (clockSteps == 0) {
-            logger.warn("Opcode {} has clock step of 0!", opcode);
-            return;
+    private void checkPageCrossing(int baseAddress, int effectiveAddress) {
+        if (((baseAddress ^ effectiveAddress) & 0xff00) != 0) {
+            state.cycleCounter++;
         }
+    }
 
-        long interval = clockSteps * clockPeriodInNs;
-        long end;
-
-        do {
-            end = System.nanoTime();
-        } while (opBeginTime + interval >= end);
+    /**
+     * Given a single byte, compute the Zero Page,Y offset address.
+     */
+    int zpyAddress(int zp) {
+        return (zp + state.y) & 0xff;
     }
 
     /**
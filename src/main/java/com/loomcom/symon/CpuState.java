@@ -58,6 +58,11 @@ public class CpuState {
     public boolean overflowFlag;
     public long stepCounter = 0L;
 
+    /**
+     * Elapsed clock cycles, including page crossing and branch penalties
+     */
+    public long cycleCounter = 0L;
+
     public CpuState() {}
 
     /**
@@ -69,6 +74,15 @@ public class CpuState {
      * @param s The CpuState to copy.
      */
     public CpuState(CpuState s) {
+        copyFrom(s);
+    }
+
+    /**
+     * Make this CpuState a copy of another.
+     *
+     * @param s The CpuState to copy.
+     */
+    public void copyFrom(CpuState s) {
         this.a = s.a;
         this.x = s.x;
         this.y = s.y;
@@ -84,6 +98,7 @@ public class CpuState {
         this.instSize = s.instSize;
         this.opTrap = s.opTrap;
         this.irqAsserted = s.irqAsserted;
+        this.nmiAsserted = s.nmiAsserted;
         this.carryFlag = s.carryFlag;
         this.negativeFlag = s.negativeFlag;
         this.zeroFlag = s.zeroFlag;
@@ -92,6 +107,7 @@ public class CpuState {
         this.breakFlag = s.breakFlag;
         this.overflowFlag = s.overflowFlag;
         this.stepCounter = s.stepCounter;
+        this.cycleCounter = s.cycleCounter;
     }
 
     /**
@@ -140,6 +156,19 @@ public class CpuState {
         return status;
     }
 
+    /**
+     * Set the status flags from a Process Status Register value.
+     */
+    public void setStatusFlag(int status) {
+        carryFlag = (status & Cpu.P_CARRY) != 0;
+        zeroFlag = (status & Cpu.P_ZERO) != 0;
+        irqDisableFlag = (status & Cpu.P_IRQ_DISABLE) != 0;
+        decimalModeFlag = (status & Cpu.P_DECIMAL) != 0;
+        breakFlag = (status & Cpu.P_BREAK) != 0;
+        overflowFlag = (status & Cpu.P_OVERFLOW) != 0;
+        negativeFlag = (status & Cpu.P_NEGATIVE) != 0;
+    }
+
     public String getInstructionByteStatus() {
         switch (Cpu.instructionSizes[ir]) {
             case 0:
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import java.util.Arrays;
+
+/**
+ * Events scheduled by devices to happen at a given CPU cycle, such as a
+ * timer running out. The CPU checks the cycle of the earliest event after
+ * every instruction, which costs a single comparison, and runs whatever has
+ * come due. Devices never need to be polled to find out if their time has
+ * come.
+ * <p/>
+ * Events run between instructions, so an event is late by at most the
+ * remainder of the instruction during which it came due. An interrupt that
+ * an event asserts is serviced before the next instruction, in every CPU
+ * engine.
+ * <p/>
+ * The queue is only used by the thread running the CPU, or while the CPU
+ * is stopped. It holds a handful of events at most, one or two per device,
+ * so it is simply kept sorted.
+ */
+public class CycleEventQueue {
+
+    /**
+     * Something to do at a given cycle. An event may be scheduled at most
+     * once at a time, and is usually created once and rescheduled as
+     * needed.
+     */
+    public static abstract class Event {
+        private long cycle;
+        private boolean scheduled = false;
+
+        /**
+         * Called when the event comes due. The event is no longer scheduled,
+         * and may schedule itself again.
+         *
+         * @param cycle The cycle the event was scheduled for, which may be
+         *              slightly earlier than the current cycle.
+         */
+        public abstract void fire(long cycle);
+
+        public boolean isScheduled() {
+            return scheduled;
+        }
+
+        /**
+         * @return The cycle the event is scheduled for, or last fired at.
+         */
+        public long getCycle() {
+            return cycle;
+        }
+    }
+
+    /* The cycle of the earliest event, or Long.MAX_VALUE if there is none. */
+    long nextCycle = Long.MAX_VALUE;
+
+    // Scheduled events, earliest first. Events due at the same cycle keep the order they were scheduled in.
+    private Event[] events = new Event[4];
+    private int count = 0;
+
+    /**
+     * Schedule an event, replacing any earlier scheduling of it.
+     */
+    public void schedule(Event event, long cycle) {
+        if (event.scheduled) {
+            remove(event);
+        }
+        if (count == events.length) {
+            events = Arrays.copyOf(events, count * 2);
+        }
+        int i = count;
+        while (i > 0 && events[i - 1].cycle > cycle) {
+            events[i] = events[i - 1];
+            i--;
+        }
+        events[i] = event;
+        count++;
+        event.cycle = cycle;
+        event.scheduled = true;
+        nextCycle = events[0].cycle;
+    }
+
+    /**
+     * Remove an event from the queue, if it is scheduled.
+     */
+    public void cancel(Event event) {
+        if (event.scheduled) {
+            remove(event);
+            event.scheduled = false;
+            nextCycle = count > 0 ? events[0].cycle : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @return The cycle of the earliest event, or Long.MAX_VALUE if there
+     *         is none.
+     */
+    public long getNextCycle() {
+        return nextCycle;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Fire every event due at or before a cycle, in order, including any
+     * they schedule that are also due.
+     */
+    public void runDue(long cycle) {
+        while (count > 0 && events[0].cycle <= cycle) {
+            Event event = events[0];
+            remove(event);
+            event.scheduled = false;
+            nextCycle = count > 0 ? events[0].cycle : Long.MAX_VALUE;
+            event.fire(event.cycle);
+        }
+    }
+
+    /**
+     * Move every event by the same number of cycles, for when the cycle
+     * counter itself is moved, as it is by a CPU reset. Events keep their
+     * distance from the current cycle.
+     */
+    public void shift(long cycles) {
+        for (int i = 0; i < count; i++) {
+            events[i].cycle += cycles;
+        }
+        if (count > 0) {
+            nextCycle = events[0].cycle;
+        }
+    }
+
+    private void remove(Event event) {
+        int i = 0;
+        while (events[i] != event) {
+            i++;
+        }
+        System.arraycopy(events, i + 1, events, i, count - i - 1);
+        events[--count] = null;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.MachineSnapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A record of everything that reached a machine from outside during a run:
+ * characters received by the ACIA, and changes to the IRQ and NMI lines,
+ * each stamped with the CPU cycle at which it happened. Together with the
+ * snapshot of the machine taken when recording started, it is enough to
+ * repeat the run exactly. See <code>SimulatorEngine.startRecording()</code>.
+ * <p/>
+ * Events are held in two parallel primitive arrays, and written to a stream
+ * in a small binary format:
+ * <pre>
+ *   int     magic ("SYMR")
+ *   short   format version
+ *   int     snapshot length, then the snapshot
+ *   int     number of events
+ *     long  cycle, byte type, byte value
+ * </pre>
+ */
+public class EventRecording {
+
+    public static final int FORMAT_VERSION = 1;
+
+    /* Event types */
+    public static final int RX_CHAR = 0;
+    public static final int IRQ_ASSERT = 1;
+    public static final int IRQ_CLEAR = 2;
+    public static final int NMI_ASSERT = 3;
+    public static final int NMI_CLEAR = 4;
+
+    private static final int MAGIC = 0x53594d52;
+
+    private final MachineSnapshot startState;
+
+    private long[] cycles = new long[256];
+    // Type in the high byte, value in the low byte
+    private int[] events = new int[256];
+    private int size;
+
+    public EventRecording(MachineSnapshot startState) {
+        this.startState = startState;
+    }
+
+    /**
+     * @return The state of the machine when recording started.
+     */
+    public MachineSnapshot getStartState() {
+        return startState;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getCycle(int index) {
+        checkIndex(index);
+        return cycles[index];
+    }
+
+    public int getType(int index) {
+        checkIndex(index);
+        return events[index] >>> 8;
+    }
+
+    public int getValue(int index) {
+        checkIndex(index);
+        return events[index] & 0xff;
+    }
+
+    /**
+     * Add an event. Events must be added in cycle order.
+     */
+    void add(long cycle, int type, int value) {
+        if (size > 0 && cycle < cycles[size - 1]) {
+            throw new IllegalArgumentException("Event at cycle " + cycle + " is out of order");
+        }
+        if (size == cycles.length) {
+            cycles = Arrays.copyOf(cycles, size * 2);
+            events = Arrays.copyOf(events, size * 2);
+        }
+        cycles[size] = cycle;
+        events[size] = type << 8 | (value & 0xff);
+        size++;
+    }
+
+    /**
+     * Write this recording in the binary format described above.
+     */
+    public void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeShort(FORMAT_VERSION);
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        startState.writeTo(snapshot);
+        out.writeInt(snapshot.size());
+        snapshot.writeTo(out);
+
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeLong(cycles[i]);
+            out.writeByte(events[i] >>> 8);
+            out.writeByte(events[i]);
+        }
+        out.flush();
+    }
+
+    /**
+     * Read a recording written by <code>writeTo()</code>.
+     *
+     * @throws IOException if the data is not a recording, or is of an
+     *                     unsupported version.
+     */
+    public static EventRecording readFrom(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an event recording");
+        }
+        int version = in.readUnsignedShort();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported recording version " + version);
+        }
+
+        int snapshotLength = in.readInt();
+        if (snapshotLength < 0) {
+            throw new IOException("Bad snapshot length " + snapshotLength);
+        }
+        byte[] snapshot = new byte[snapshotLength];
+        in.readFully(snapshot);
+        EventRecording recording = new EventRecording(MachineSnapshot.fromByteArray(snapshot));
+
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad event count " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            long cycle = in.readLong();
+            int type = in.readUnsignedByte();
+            int value = in.readUnsignedByte();
+            if (type > NMI_CLEAR) {
+                throw new IOException("Bad event type " + type);
+            }
+            try {
+                recording.add(cycle, type, value);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException(ex.getMessage());
+            }
+        }
+        return recording;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("No event " + index);
+        }
+    }
+}
@@ -173,7 +173,7 @@ public interface InstructionTable {
         "PLA", "ADC", "ROR",  null, "JMP", "ADC", "ROR",  null,
         "BVS", "ADC",  null,  null,  null, "ADC", "ROR",  null,
         "SEI", "ADC",  null,  null,  null, "ADC", "ROR",  null,
-        "BCS", "STA",  null,  null, "STY", "STA", "STX",  null,
+         null, "STA",  null,  null, "STY", "STA", "STX",  null,
         "DEY",  null, "TXA",  null, "STY", "STA", "STX",  null,
         "BCC", "STA",  null,  null, "STY", "STA", "STX",  null,
         "TYA", "STA", "TXS",  null,  null, "STA",  null,  null,
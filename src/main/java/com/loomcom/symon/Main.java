@@ -37,11 +37,17 @@ public class Main {
     
      /**
      * Main entry point to the simulator. Creates a simulator and shows the main
-     * window.
+     * window, or runs without a window when given <code>--headless</code>.
      *
      * @param args Program arguments
      */
     public static void main(String args[]) throws Exception {
+
+        for (String arg : args) {
+            if (arg.equalsIgnoreCase("--headless")) {
+                System.exit(new BatchRunner(System.in, System.out, System.err).run(args));
+            }
+        }
         
         Class machineClass = SymonMachine.class;
         for(int i = 0; i < args.length; ++i) {
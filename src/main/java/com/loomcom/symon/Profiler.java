@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Counts where a program spends its time. Attach one to a CPU with
+ * <code>Cpu.setProfiler()</code>, and it records, for every instruction
+ * executed:
+ * <ul>
+ * <li>Instruction and cycle counts for the instruction's address</li>
+ * <li>An execution count for the opcode</li>
+ * <li>Calls and inclusive cycles for JSR targets, from the JSR up to and
+ * including the matching RTS</li>
+ * </ul>
+ * All counters are preallocated, so profiling allocates nothing while the
+ * program runs. Subroutines are matched to their RTS by stack pointer, so
+ * code that unwinds the stack by hand, or jumps into a subroutine instead of
+ * calling it, may leave some calls unattributed. Recursive calls only count
+ * the outermost call's cycles, so nothing is counted twice.
+ */
+public class Profiler {
+
+    private static final int ADDRESS_SPACE = 0x10000;
+
+    private static final int JSR = 0x20;
+    private static final int RTS = 0x60;
+
+    /* The 6502 stack holds at most 128 return addresses. */
+    private static final int MAX_CALL_DEPTH = 128;
+
+    private final long[] instructions = new long[ADDRESS_SPACE];
+    private final long[] cycles = new long[ADDRESS_SPACE];
+    private final long[] opcodes = new long[256];
+    private final long[] calls = new long[ADDRESS_SPACE];
+    private final long[] inclusiveCycles = new long[ADDRESS_SPACE];
+
+    // Subroutines that have been called and not yet returned from
+    private final int[] callTargets = new int[MAX_CALL_DEPTH];
+    private final int[] callStackPointers = new int[MAX_CALL_DEPTH];
+    private final long[] callStartCycles = new long[MAX_CALL_DEPTH];
+    private final int[] activeCalls = new int[ADDRESS_SPACE];
+    private int callDepth = 0;
+
+    private long totalInstructions = 0;
+    private long totalCycles = 0;
+
+    /**
+     * Record an instruction that has just been executed.
+     *
+     * @param address           The address of the instruction.
+     * @param instructionClocks The cycles it took.
+     * @param state             The CPU state after executing it.
+     */
+    void record(int address, int instructionClocks, CpuState state) {
+        int opcode = state.ir;
+
+        instructions[address]++;
+        cycles[address] += instructionClocks;
+        opcodes[opcode]++;
+        totalInstructions++;
+        totalCycles += instructionClocks;
+
+        if (opcode == JSR) {
+            enterSubroutine(state.pc, state.sp, state.cycleCounter - instructionClocks);
+        } else if (opcode == RTS) {
+            leaveSubroutines(state.sp, state.cycleCounter);
+        }
+    }
+
+    private void enterSubroutine(int target, int stackPointer, long startCycle) {
+        // Frames at or above the new return address were abandoned without an RTS.
+        while (callDepth > 0 && callStackPointers[callDepth - 1] <= stackPointer) {
+            popCall(-1);
+        }
+        if (callDepth == MAX_CALL_DEPTH) {
+            return;
+        }
+
+        callTargets[callDepth] = target;
+        callStackPointers[callDepth] = stackPointer;
+        callStartCycles[callDepth] = startCycle;
+        callDepth++;
+
+        calls[target]++;
+        activeCalls[target]++;
+    }
+
+    private void leaveSubroutines(int stackPointer, long endCycle) {
+        // The RTS has popped the return address of every frame below the stack pointer.
+        while (callDepth > 0 && callStackPointers[callDepth - 1] < stackPointer) {
+            popCall(endCycle);
+        }
+    }
+
+    /*
+     * Pop the innermost call, and add its cycles to its target unless it is
+     * a recursive call, or was abandoned (endCycle < 0).
+     */
+    private void popCall(long endCycle) {
+        callDepth--;
+        int target = callTargets[callDepth];
+        activeCalls[target]--;
+        if (endCycle >= 0 && activeCalls[target] == 0) {
+            inclusiveCycles[target] += endCycle - callStartCycles[callDepth];
+        }
+    }
+
+    /**
+     * Clear all counters.
+     */
+    public void reset() {
+        Arrays.fill(instructions, 0);
+        Arrays.fill(cycles, 0);
+        Arrays.fill(opcodes, 0);
+        Arrays.fill(calls, 0);
+        Arrays.fill(inclusiveCycles, 0);
+        Arrays.fill(activeCalls, 0);
+        callDepth = 0;
+        totalInstructions = 0;
+        totalCycles = 0;
+    }
+
+    public long getInstructionCount(int address) {
+        return instructions[address & 0xffff];
+    }
+
+    public long getCycleCount(int address) {
+        return cycles[address & 0xffff];
+    }
+
+    public long getOpcodeCount(int opcode) {
+        return opcodes[opcode & 0xff];
+    }
+
+    public long getCallCount(int address) {
+        return calls[address & 0xffff];
+    }
+
+    public long getInclusiveCycles(int address) {
+        return inclusiveCycles[address & 0xffff];
+    }
+
+    public long getTotalInstructions() {
+        return totalInstructions;
+    }
+
+    public long getTotalCycles() {
+        return totalCycles;
+    }
+
+    /**
+     * Print the hottest addresses by cycles, the subroutines with the most
+     * inclusive cycles, and the most executed opcodes.
+     *
+     * @param out   Where to print the report.
+     * @param cpu   The CPU used to disassemble instructions.
+     * @param limit The most entries to print in each section.
+     */
+    public void writeReport(PrintStream out, Cpu cpu, int limit) {
+        out.println(String.format(Locale.ENGLISH, "Profile: %d instructions, %d cycles",
+                                  totalInstructions, totalCycles));
+
+        out.println();
+        out.println("Hot spots by cycles:");
+        out.println("  Addr      Cycles       %   Instructions  Instruction");
+        for (int address : topEntries(cycles, limit)) {
+            out.println(String.format(Locale.ENGLISH, "  $%04X %11d %6.2f%% %14d  %s",
+                                      address, cycles[address], percent(cycles[address]),
+                                      instructions[address], disassemble(cpu, address)));
+        }
+
+        out.println();
+        out.println("Subroutines by inclusive cycles:");
+        out.println("  Addr      Cycles       %          Calls");
+        for (int address : topEntries(inclusiveCycles, limit)) {
+            out.println(String.format(Locale.ENGLISH, "  $%04X %11d %6.2f%% %14d",
+                                      address, inclusiveCycles[address],
+                                      percent(inclusiveCycles[address]), calls[address]));
+        }
+
+        out.println();
+        out.println("Opcodes by count:");
+        out.println("  Op  Name         Count       %");
+        for (int opcode : topEntries(opcodes, limit)) {
+            out.println(String.format(Locale.ENGLISH, "  $%02X %-5s %12d %6.2f%%",
+                                      opcode, Cpu.opcodeNames[opcode] == null ? "???" : Cpu.opcodeNames[opcode],
+                                      opcodes[opcode],
+                                      totalInstructions == 0 ? 0.0 : 100.0 * opcodes[opcode] / totalInstructions));
+        }
+    }
+
+    private double percent(long value) {
+        return totalCycles == 0 ? 0.0 : 100.0 * value / totalCycles;
+    }
+
+    private static String disassemble(Cpu cpu, int address) {
+        try {
+            return cpu.disassembleOpAtAddress(address);
+        } catch (MemoryAccessException ex) {
+            return "???";
+        }
+    }
+
+    /**
+     * @return The indexes of the largest non-zero counters, largest first.
+     */
+    static int[] topEntries(long[] counters, int limit) {
+        // Sort the index along with each count, in the low 16 bits.
+        long[] keys = new long[counters.length];
+        int count = 0;
+        for (int i = 0; i < counters.length; i++) {
+            if (counters[i] > 0) {
+                keys[count++] = (Math.min(counters[i], Long.MAX_VALUE >> 16) << 16) | (0xffff - i);
+            }
+        }
+        Arrays.sort(keys, 0, count);
+
+        int[] top = new int[Math.min(count, Math.max(limit, 0))];
+        for (int i = 0; i < top.length; i++) {
+            top[i] = 0xffff - (int) (keys[count - 1 - i] & 0xffff);
+        }
+        return top;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.MachineSnapshot;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A bounded history of a machine's recent execution, for stepping backward.
+ * <p/>
+ * Every so many cycles the buffer takes a checkpoint of the CPU registers
+ * and the state of each I/O device, which is only a few hundred bytes. In
+ * between, the Bus records the old value of every write to RAM in a ring of
+ * ints, packed as <code>address | old << 16</code>. To rewind, the journal
+ * is played backward to the newest checkpoint at or before the target,
+ * which puts RAM back as it was then, and the CPU is stepped forward from
+ * that checkpoint to the target.
+ * <p/>
+ * Memory use is fixed when the buffer is made: four bytes per journal entry,
+ * plus the checkpoints. The oldest checkpoints are dropped when there are too
+ * many, or when the journal has wrapped past the writes made after them.
+ * While running, the cost is one comparison per step and one array store
+ * per write.
+ * <p/>
+ * Rewinding replays the machine from a checkpoint without its I/O streams,
+ * so input that arrived after the checkpoint is not seen again. Output is
+ * not repeated either.
+ */
+public class RewindBuffer {
+
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 100000;
+    public static final int DEFAULT_MAX_CHECKPOINTS = 64;
+    public static final int DEFAULT_JOURNAL_ENTRIES = 1 << 20;
+
+    private static class Checkpoint {
+        final long step;
+        final long cycle;
+        final long journalSequence;
+        final CpuState cpuState;
+        final byte[][] deviceStates;
+
+        Checkpoint(long journalSequence, CpuState cpuState, byte[][] deviceStates) {
+            this.step = cpuState.stepCounter;
+            this.cycle = cpuState.cycleCounter;
+            this.journalSequence = journalSequence;
+            this.cpuState = cpuState;
+            this.deviceStates = deviceStates;
+        }
+    }
+
+    private final Machine machine;
+    private final long checkpointInterval;
+
+    private final int[] journal;
+    private final int journalMask;
+    // The number of writes ever recorded; the next one goes at writeSequence & journalMask
+    private long writeSequence;
+
+    // A ring of checkpoints, oldest first
+    private final Checkpoint[] checkpoints;
+    private int firstCheckpoint;
+    private int checkpointCount;
+    private long nextCheckpointCycle;
+
+    // The devices whose state is saved, or null until the next checkpoint
+    private List<Device> devices;
+
+    /**
+     * @param machine            The machine to record.
+     * @param checkpointInterval The number of cycles between checkpoints.
+     * @param maxCheckpoints     The most checkpoints to keep.
+     * @param journalEntries     The most writes to remember. Must be a power of two.
+     */
+    public RewindBuffer(Machine machine, long checkpointInterval, int maxCheckpoints, int journalEntries) {
+        if (checkpointInterval < 1 || maxCheckpoints < 1) {
+            throw new IllegalArgumentException("Need at least one checkpoint, at least one cycle apart");
+        }
+        if (journalEntries < 1 || Integer.bitCount(journalEntries) != 1) {
+            throw new IllegalArgumentException("Journal size must be a power of two");
+        }
+        this.machine = machine;
+        this.checkpointInterval = checkpointInterval;
+        this.checkpoints = new Checkpoint[maxCheckpoints];
+        this.journal = new int[journalEntries];
+        this.journalMask = journalEntries - 1;
+    }
+
+    public RewindBuffer(Machine machine) {
+        this(machine, DEFAULT_CHECKPOINT_INTERVAL, DEFAULT_MAX_CHECKPOINTS, DEFAULT_JOURNAL_ENTRIES);
+    }
+
+    /**
+     * Called by the Bus before writable Memory is written.
+     */
+    void recordWrite(int address, int oldValue) {
+        journal[(int) (writeSequence++ & journalMask)] = address | (oldValue & 0xff) << 16;
+    }
+
+    /**
+     * Called after every step, to take a checkpoint when one is due.
+     */
+    public void stepped() {
+        if (machine.getCpu().getCpuState().cycleCounter >= nextCheckpointCycle) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Forget all history, and take a checkpoint of the current state.
+     */
+    public void reset() {
+        clear();
+        checkpoint();
+    }
+
+    /**
+     * Forget all history. The next step takes a new checkpoint.
+     */
+    public void clear() {
+        firstCheckpoint = 0;
+        checkpointCount = 0;
+        nextCheckpointCycle = Long.MIN_VALUE;
+        devices = null;
+    }
+
+    /**
+     * @return The first step that can be rewound to, or -1 if there is none.
+     */
+    public long getOldestStep() {
+        Checkpoint oldest = oldestCheckpoint();
+        return oldest == null ? -1 : oldest.step;
+    }
+
+    /**
+     * @return The first cycle that can be rewound to, or -1 if there is none.
+     */
+    public long getOldestCycle() {
+        Checkpoint oldest = oldestCheckpoint();
+        return oldest == null ? -1 : oldest.cycle;
+    }
+
+    /**
+     * @return The number of checkpoints that can still be rewound to.
+     */
+    public int getCheckpointCount() {
+        oldestCheckpoint();
+        return checkpointCount;
+    }
+
+    /**
+     * Move the machine back to the state it was in when its step counter
+     * read <code>step</code>.
+     *
+     * @param step The value of the CPU's step counter to return to.
+     * @return false if the step is in the future, or no longer in the buffer.
+     */
+    public boolean rewindToStep(long step) throws MemoryAccessException {
+        CpuState state = machine.getCpu().getCpuState();
+        if (step > state.stepCounter) {
+            return false;
+        }
+        Checkpoint checkpoint = findCheckpoint(step, false);
+        if (checkpoint == null) {
+            return false;
+        }
+        restore(checkpoint);
+        replay(step, false);
+        return true;
+    }
+
+    /**
+     * Move the machine back to the first instruction boundary at or after
+     * an earlier cycle.
+     *
+     * @param cycle The value of the CPU's cycle counter to return to.
+     * @return false if the cycle is in the future, or no longer in the buffer.
+     */
+    public boolean rewindToCycle(long cycle) throws MemoryAccessException {
+        CpuState state = machine.getCpu().getCpuState();
+        if (cycle > state.cycleCounter) {
+            return false;
+        }
+        Checkpoint checkpoint = findCheckpoint(cycle, true);
+        if (checkpoint == null) {
+            return false;
+        }
+        restore(checkpoint);
+        replay(cycle, true);
+        return true;
+    }
+
+    private void checkpoint() {
+        if (devices == null) {
+            devices = MachineSnapshot.stateDevices(machine);
+        }
+
+        byte[][] deviceStates = MachineSnapshot.saveDeviceStates(devices);
+
+        Checkpoint checkpoint = new Checkpoint(writeSequence, new CpuState(machine.getCpu().getCpuState()),
+                                               deviceStates);
+        if (checkpointCount == checkpoints.length) {
+            checkpoints[firstCheckpoint] = null;
+            firstCheckpoint = (firstCheckpoint + 1) % checkpoints.length;
+            checkpointCount--;
+        }
+        checkpoints[(firstCheckpoint + checkpointCount++) % checkpoints.length] = checkpoint;
+        nextCheckpointCycle = checkpoint.cycle + checkpointInterval;
+    }
+
+    /*
+     * Drop checkpoints whose following writes have been overwritten in the
+     * journal, and return the oldest one left.
+     */
+    private Checkpoint oldestCheckpoint() {
+        while (checkpointCount > 0 &&
+               checkpoints[firstCheckpoint].journalSequence < writeSequence - journal.length) {
+            checkpoints[firstCheckpoint] = null;
+            firstCheckpoint = (firstCheckpoint + 1) % checkpoints.length;
+            checkpointCount--;
+        }
+        return checkpointCount == 0 ? null : checkpoints[firstCheckpoint];
+    }
+
+    /*
+     * Find the newest checkpoint at or before a step or cycle.
+     */
+    private Checkpoint findCheckpoint(long target, boolean byCycle) {
+        if (oldestCheckpoint() == null) {
+            return null;
+        }
+        for (int i = checkpointCount - 1; i >= 0; i--) {
+            Checkpoint checkpoint = checkpoints[(firstCheckpoint + i) % checkpoints.length];
+            if ((byCycle ? checkpoint.cycle : checkpoint.step) <= target) {
+                return checkpoint;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Undo every write made since a checkpoint, and drop the checkpoints
+     * after it.
+     */
+    private void restore(Checkpoint checkpoint) throws MemoryAccessException {
+        Bus bus = machine.getBus();
+        for (long sequence = writeSequence - 1; sequence >= checkpoint.journalSequence; sequence--) {
+            int entry = journal[(int) (sequence & journalMask)];
+            bus.restoreMemory(entry & 0xffff, entry >>> 16);
+        }
+        writeSequence = checkpoint.journalSequence;
+
+        while (checkpoints[(firstCheckpoint + checkpointCount - 1) % checkpoints.length] != checkpoint) {
+            checkpoints[(firstCheckpoint + --checkpointCount) % checkpoints.length] = null;
+        }
+
+        try {
+            MachineSnapshot.loadDeviceStates(devices, checkpoint.deviceStates);
+        } catch (IOException ex) {
+            // The states were saved from these same devices.
+            throw new IllegalStateException(ex);
+        }
+        machine.getCpu().getCpuState().copyFrom(checkpoint.cpuState);
+        nextCheckpointCycle = checkpoint.cycle + checkpointInterval;
+    }
+
+    /*
+     * Step forward from a checkpoint, unthrottled, recording as usual.
+     */
+    private void replay(long target, boolean byCycle) throws MemoryAccessException {
+        Cpu cpu = machine.getCpu();
+        CpuState state = cpu.getCpuState();
+        long clockPeriod = cpu.getClockThrottle().getClockPeriodInNs();
+        cpu.setClockPeriodInNs(0);
+        try {
+            while ((byCycle ? state.cycleCounter : state.stepCounter) < target) {
+                cpu.step();
+                stepped();
+            }
+        } finally {
+            cpu.setClockPeriodInNs(clockPeriod);
+        }
+    }
+}
@@ -36,6 +36,8 @@ import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.util.Observable;
+import java.util.Observer;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -70,6 +72,9 @@ public class Simulator {
     //
     private static final int MAX_STEPS_BETWEEN_UPDATES = 20000;
 
+    // The headless engine that runs the simulated machine
+    private final SimulatorEngine engine;
+
     // The simulated machine
     private Machine machine;
 
@@ -108,18 +113,20 @@ public class Simulator {
 
     private SimulatorMenu menuBar;
 
-    private RunLoop runLoop;
     private Console console;
+    private ConsoleOutputStream consoleOutput;
     private StatusPanel statusPane;
 
     private JButton runStopButton;
     private JButton stepButton;
+    private JButton stepBackButton;
     private JComboBox<String> stepCountBox;
 
     private JFileChooser fileChooser;
     private PreferencesDialog preferences;
 
     private Breakpoints breakpoints;
+    private Watchpoints watchpoints;
 
     private final Object commandMonitorObject = new Object();
 
@@ -137,16 +144,21 @@ public class Simulator {
 
     public Simulator(Class machineClass) throws Exception {
         this.breakpoints = new Breakpoints(this);
+        this.watchpoints = new Watchpoints();
 
         this.machine = (Machine) machineClass.getConstructors()[0].newInstance();
+        this.engine = new SimulatorEngine(machine);
+        machine.getBus().setWatchpoints(watchpoints);
+        engine.setRewindBuffer(new RewindBuffer(machine));
 
         // Initialize final fields in the constructor.
         this.traceLog = new TraceLog();
         this.memoryWindow = new MemoryWindow(machine.getBus());
-        this.breakpointsWindow = new BreakpointsWindow(breakpoints, mainWindow);
+        this.breakpointsWindow = new BreakpointsWindow(breakpoints, watchpoints, mainWindow);
 
         if (machine.getCrtc() != null) {
             videoWindow = new VideoWindow(machine.getCrtc(), 2, 2);
+            videoWindow.setMetrics(engine.getMetrics());
         } else {
             videoWindow = null;
         }
@@ -163,10 +175,16 @@ public class Simulator {
 
         // UI components used for I/O.
         this.console = new com.loomcom.symon.ui.Console(80, 25, DEFAULT_FONT, false);
-        this.statusPane = new StatusPanel(machine);
+        this.statusPane = new StatusPanel(machine, engine.getMetrics());
 
         console.setBorderWidth(CONSOLE_BORDER_WIDTH);
 
+        // Connect the console to the ACIA.
+        engine.setAciaInput(new ConsoleInputStream());
+        consoleOutput = new ConsoleOutputStream(console);
+        engine.setAciaOutput(consoleOutput);
+        consoleOutput.start();
+
         // File Chooser
         fileChooser = new JFileChooser(System.getProperty("user.dir"));
         preferences = new PreferencesDialog(mainWindow, true);
@@ -181,6 +199,7 @@ public class Simulator {
 
         runStopButton = new JButton("Run");
         stepButton = new JButton("Step");
+        stepBackButton = new JButton("Step Back");
         JButton softResetButton = new JButton("Soft Reset");
         JButton hardResetButton = new JButton("Hard Reset");
 
@@ -200,6 +219,7 @@ public class Simulator {
 
         buttonContainer.add(runStopButton);
         buttonContainer.add(stepButton);
+        buttonContainer.add(stepBackButton);
         buttonContainer.add(stepCountBox);
         buttonContainer.add(softResetButton);
         buttonContainer.add(hardResetButton);
@@ -217,7 +237,7 @@ public class Simulator {
         runStopButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent actionEvent) {
-                if (runLoop != null && runLoop.isRunning()) {
+                if (engine.isRunning()) {
                     Simulator.this.handleStop();
                 } else {
                     Simulator.this.handleStart();
@@ -232,6 +252,13 @@ public class Simulator {
             }
         });
 
+        stepBackButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent actionEvent) {
+                Simulator.this.handleStepBack(stepsPerClick);
+            }
+        });
+
         softResetButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent actionEvent) {
@@ -258,6 +285,11 @@ public class Simulator {
         mainWindow.pack();
         mainWindow.setVisible(true);
 
+        engine.addListener(new EngineListener());
+        BreakpointStopCondition stopCondition = new BreakpointStopCondition();
+        preferences.addObserver(stopCondition);
+        engine.setStopCondition(stopCondition);
+
         console.requestFocus();
         handleReset(false);
     }
@@ -277,43 +309,30 @@ public class Simulator {
     private void handleStart() {
         // Shift focus to the console.
         console.requestFocus();
+        // Ignore watchpoints hit by the user interface while stopped.
+        watchpoints.clearTriggered();
         // Spin up the new run loop
-        runLoop = new RunLoop();
-        runLoop.start();
+        engine.start();
         traceLog.simulatorDidStart();
     }
 
     private void handleStop() {
-        runLoop.requestStop();
-        runLoop.interrupt();
-        runLoop = null;
+        engine.stop();
     }
 
     /*
      * Perform a reset.
      */
     private void handleReset(boolean isColdReset) {
-        if (runLoop != null && runLoop.isRunning()) {
-            runLoop.requestStop();
-            runLoop.interrupt();
-            runLoop = null;
-        }
-
         try {
-            logger.debug("Reset requested. Resetting CPU.");
-            // Reset CPU
-            machine.getCpu().reset();
+            engine.reset(isColdReset);
             // Clear the console.
+            consoleOutput.discard();
             console.reset();
             // Reset the trace log.
             traceLog.reset();
-            // If we're doing a cold reset, clear the memory.
-            if (isColdReset) {
-                Memory mem = machine.getRam();
-                if (mem != null) {
-                    mem.fill(0);
-                }
-            }
+            // Count breakpoint hits from the reset.
+            breakpoints.resetHits();
             // Update status.
             updateVisibleState();
         } catch (MemoryAccessException ex) {
@@ -326,9 +345,7 @@ public class Simulator {
      */
     private void handleStep(int numSteps) {
         try {
-            for (int i = 0; i < numSteps; i++) {
-                step();
-            }
+            engine.step(numSteps);
             updateVisibleState();
         } catch (SymonException ex) {
             logger.error("Exception during simulator step", ex);
@@ -337,43 +354,37 @@ public class Simulator {
     }
 
     /**
-     * Perform a single step of the simulated system.
+     * Undo the requested number of steps, if they are still in the rewind
+     * buffer, and immediately refresh the UI.
      */
-    private void step() throws MemoryAccessException {
-        machine.getCpu().step();
-
-        traceLog.append(machine.getCpu().getCpuState());
-
-        // Read from the ACIA and immediately update the console if there's
-        // output ready.
-        if (machine.getAcia() != null && machine.getAcia().hasTxChar()) {
-            // This is thread-safe
-            console.print(Character.toString((char) machine.getAcia().txRead()));
-            console.repaint();
-        }
-
-        // If a key has been pressed, fill the ACIA.
+    private void handleStepBack(int numSteps) {
         try {
-            if (machine.getAcia() != null && console.hasInput()) {
-                machine.getAcia().rxWrite((int) console.readInputChar());
+            if (!engine.stepBack(numSteps)) {
+                logger.info("Cannot step back {} steps: the oldest step that can be returned to is {}.",
+                            numSteps, engine.getRewindBuffer().getOldestStep());
+                Toolkit.getDefaultToolkit().beep();
             }
-        } catch (FifoUnderrunException ex) {
-            logger.error("Console type-ahead buffer underrun!");
+            updateVisibleState();
+        } catch (SymonException ex) {
+            logger.error("Exception during simulator step back", ex);
         }
+    }
 
-        if (videoWindow != null && stepsSinceLastCrtcRefresh++ > STEPS_BETWEEN_CRTC_REFRESHES) {
-            stepsSinceLastCrtcRefresh = 0;
-            if (videoWindow.isVisible()) {
-                videoWindow.repaint();
+    /**
+     * Return to an earlier cycle, if it is still in the rewind buffer.
+     */
+    private void handleRewindToCycle(long cycle) {
+        try {
+            if (!engine.rewindToCycle(cycle)) {
+                JOptionPane.showMessageDialog(mainWindow,
+                                              "Cycle " + cycle + " is not in the rewind buffer. The oldest " +
+                                              "cycle that can be returned to is " +
+                                              engine.getRewindBuffer().getOldestCycle() + ".",
+                                              "Rewind", JOptionPane.ERROR_MESSAGE);
             }
-        }
-
-        // This is a very expensive update, and we're doing it without
-        // a delay, so we don't want to overwhelm the Swing event processing thread
-        // with requests. Limit the number of ui updates that can be performed.
-        if (stepsSinceLastUpdate++ > MAX_STEPS_BETWEEN_UPDATES) {
             updateVisibleState();
-            stepsSinceLastUpdate = 0;
+        } catch (SymonException ex) {
+            logger.error("Exception during simulator rewind", ex);
         }
     }
 
@@ -381,62 +392,59 @@ public class Simulator {
      * Load a program into memory at the simulatorDidStart address.
      */
     private void loadProgram(byte[] program, int startAddress) throws MemoryAccessException {
-        int addr = startAddress, i;
-        for (i = 0; i < program.length; i++) {
-            machine.getBus().write(addr++, program[i] & 0xff);
-        }
-
-        logger.info("Loaded {} bytes at address 0x{}", i, Integer.toString(startAddress, 16));
-
-        // After loading, be sure to reset and
-        // Reset (but don't clear memory, naturally)
-        machine.getCpu().reset();
-
-        // Reset the stack program counter
-        machine.getCpu().setProgramCounter(preferences.getProgramStartAddress());
+        engine.loadProgram(program, startAddress);
 
         // Immediately update the UI.
         updateVisibleState();
     }
 
     /**
-     * The main run thread.
+     * Stops the engine at a breakpoint or watchpoint, or at a BRK if the
+     * preferences ask for it. This runs after every instruction, so the
+     * preference is copied in when it changes rather than looked up each
+     * time.
      */
-    class RunLoop extends Thread {
-        private boolean isRunning = false;
+    class BreakpointStopCondition implements SimulatorEngine.StopCondition, Observer {
+        private volatile boolean haltOnBreak = preferences.getHaltOnBreak();
 
-        public boolean isRunning() {
-            return isRunning;
+        @Override
+        public boolean shouldStop(Cpu cpu) {
+            if (watchpoints.isTriggered()) {
+                logger.info("Watchpoint hit: {}", watchpoints.getTriggerDescription());
+                return true;
+            }
+            return (haltOnBreak && cpu.getCpuState().ir == 0x00) ||
+                   (!breakpoints.isEmpty() && breakpoints.shouldBreak(cpu));
         }
 
-        public void requestStop() {
-            isRunning = false;
+        @Override
+        public void update(Observable observable, Object arg) {
+            haltOnBreak = preferences.getHaltOnBreak();
         }
+    }
 
-        public void run() {
-            logger.debug("Starting main run loop.");
-            isRunning = true;
-
+    /**
+     * Updates the UI as the engine runs.
+     */
+    class EngineListener implements SimulatorEngine.Listener {
+        @Override
+        public void simulatorDidStart() {
             SwingUtilities.invokeLater(new Runnable() {
                 @Override
                 public void run() {
                     // Don't allow step while the simulator is running
                     stepButton.setEnabled(false);
+                    stepBackButton.setEnabled(false);
                     stepCountBox.setEnabled(false);
                     menuBar.simulatorDidStart();
                     // Toggle the state of the run button
                     runStopButton.setText("Stop");
                 }
             });
+        }
 
-            try {
-                do {
-                    step();
-                } while (shouldContinue());
-            } catch (SymonException ex) {
-                logger.error("Exception in main simulator run thread. Exiting run.", ex);
-            }
-
+        @Override
+        public void simulatorDidStop() {
             SwingUtilities.invokeLater(new Runnable() {
                 @Override
                 public void run() {
@@ -444,25 +452,56 @@ public class Simulator {
                     memoryWindow.updateState();
                     runStopButton.setText("Run");
                     stepButton.setEnabled(true);
+                    stepBackButton.setEnabled(true);
                     stepCountBox.setEnabled(true);
                     if (traceLog.isVisible()) {
                         traceLog.refresh();
+                        engine.getMetrics().recordTraceRefresh();
                     }
                     menuBar.simulatorDidStop();
                     traceLog.simulatorDidStop();
                 }
             });
+        }
+
+        @Override
+        public void simulatorDidStep(CpuState state) {
+            traceLog.append(state);
+
+            if (videoWindow != null && stepsSinceLastCrtcRefresh++ > STEPS_BETWEEN_CRTC_REFRESHES) {
+                stepsSinceLastCrtcRefresh = 0;
+                if (videoWindow.isVisible()) {
+                    videoWindow.repaint();
+                }
+            }
+
+            // This is a very expensive update, and we're doing it without
+            // a delay, so we don't want to overwhelm the Swing event processing thread
+            // with requests. Limit the number of ui updates that can be performed.
+            if (stepsSinceLastUpdate++ > MAX_STEPS_BETWEEN_UPDATES) {
+                updateVisibleState();
+                stepsSinceLastUpdate = 0;
+            }
+        }
+    }
 
-            isRunning = false;
+    /**
+     * Characters typed into the console, as read by the ACIA.
+     */
+    class ConsoleInputStream extends InputStream {
+        @Override
+        public int available() {
+            return console.hasInput() ? 1 : 0;
         }
 
-        /**
-         * @return True if the run loop should proceed to the next step.
-         */
-        private boolean shouldContinue() {
-            return !breakpoints.contains(machine.getCpu().getProgramCounter()) &&
-                    isRunning &&
-                    !(preferences.getHaltOnBreak() && machine.getCpu().getInstruction() == 0x00);
+        @Override
+        public int read() throws IOException {
+            try {
+                return console.readInputChar();
+            } catch (FifoUnderrunException ex) {
+                logger.error("Console type-ahead buffer underrun!");
+                return -1;
+            }
         }
     }
 
@@ -506,6 +545,7 @@ public class Simulator {
                             SwingUtilities.invokeLater(new Runnable() {
                                 @Override
                                 public void run() {
+                                    consoleOutput.discard();
                                     console.reset();
                                     breakpoints.refresh();
                                 }
@@ -605,9 +645,7 @@ public class Simulator {
         }
 
         public void actionPerformed(ActionEvent actionEvent) {
-            if (runLoop != null) {
-                runLoop.requestStop();
-            }
+            engine.stop();
 
             memoryWindow.dispose();
             traceLog.dispose();
@@ -623,6 +661,82 @@ public class Simulator {
         }
     }
 
+    class RewindToCycleAction extends AbstractAction {
+        public RewindToCycleAction() {
+            super("Rewind to Cycle...", null);
+            putValue(SHORT_DESCRIPTION, "Return to an earlier cycle");
+            putValue(MNEMONIC_KEY, KeyEvent.VK_R);
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            if (engine.isRunning()) {
+                return;
+            }
+            String input = JOptionPane.showInputDialog(mainWindow,
+                                                       "Rewind to cycle (oldest " +
+                                                       engine.getRewindBuffer().getOldestCycle() + "):",
+                                                       "Rewind", JOptionPane.PLAIN_MESSAGE);
+            if (input == null) {
+                return;
+            }
+            try {
+                handleRewindToCycle(Long.parseLong(input.trim()));
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(mainWindow, "Not a cycle number: " + input, "Rewind",
+                                              JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    class RecordEventsAction extends AbstractAction {
+        public RecordEventsAction() {
+            super("Record Input", null);
+            putValue(SHORT_DESCRIPTION, "Record console input, to replay the run exactly");
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            if (!engine.isRecording()) {
+                engine.startRecording();
+                return;
+            }
+
+            EventRecording recording = engine.stopRecording();
+            if (fileChooser.showSaveDialog(mainWindow) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File f = fileChooser.getSelectedFile();
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f))) {
+                recording.writeTo(out);
+            } catch (IOException ex) {
+                logger.error("Unable to save recording.", ex);
+                JOptionPane.showMessageDialog(mainWindow, ex.getMessage(), "Failure", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    class ReplayAction extends AbstractAction {
+        public ReplayAction() {
+            super("Replay Recording...", null);
+            putValue(SHORT_DESCRIPTION, "Repeat a recorded run");
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            if (fileChooser.showOpenDialog(mainWindow) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File f = fileChooser.getSelectedFile();
+            try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+                engine.startReplay(EventRecording.readFrom(in));
+                consoleOutput.discard();
+                console.reset();
+                updateVisibleState();
+            } catch (IOException ex) {
+                logger.error("Unable to replay recording.", ex);
+                JOptionPane.showMessageDialog(mainWindow, ex.getMessage(), "Failure", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
     class QuitAction extends AbstractAction {
         public QuitAction() {
             super("Quit", null);
@@ -631,10 +745,7 @@ public class Simulator {
         }
 
         public void actionPerformed(ActionEvent actionEvent) {
-            if (runLoop != null && runLoop.isRunning()) {
-                runLoop.requestStop();
-                runLoop.interrupt();
-            }
+            engine.stop();
             System.exit(0);
         }
     }
@@ -751,6 +862,9 @@ public class Simulator {
         // Menu Items
         private JMenuItem loadProgramItem;
         private JMenuItem loadRomItem;
+        private JMenuItem rewindItem;
+        private JMenuItem recordItem;
+        private JMenuItem replayItem;
 
         /**
          * Create a new SimulatorMenu instance.
@@ -764,6 +878,9 @@ public class Simulator {
          */
         public void simulatorDidStart() {
             loadProgramItem.setEnabled(false);
+            rewindItem.setEnabled(false);
+            recordItem.setEnabled(false);
+            replayItem.setEnabled(false);
             if (loadRomItem != null) {
                 loadRomItem.setEnabled(false);
             }
@@ -774,6 +891,9 @@ public class Simulator {
          */
         public void simulatorDidStop() {
             loadProgramItem.setEnabled(true);
+            rewindItem.setEnabled(true);
+            recordItem.setEnabled(true);
+            replayItem.setEnabled(true);
             if (loadRomItem != null) {
                 loadRomItem.setEnabled(true);
             }
@@ -890,6 +1010,16 @@ public class Simulator {
             });
             simulatorMenu.add(showBreakpoints);
 
+            // "Rewind to Cycle..."
+            rewindItem = new JMenuItem(new RewindToCycleAction());
+            simulatorMenu.add(rewindItem);
+
+            // Recording and replay
+            recordItem = new JCheckBoxMenuItem(new RecordEventsAction());
+            simulatorMenu.add(recordItem);
+            replayItem = new JMenuItem(new ReplayAction());
+            simulatorMenu.add(replayItem);
+
             add(simulatorMenu);
         }
 
@@ -921,12 +1051,15 @@ public class Simulator {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
+                long startTime = System.nanoTime();
                 // Now update the state
                 statusPane.updateState();
                 memoryWindow.updateState();
                 if (traceLog.shouldUpdate()) {
                     traceLog.refresh();
+                    engine.getMetrics().recordTraceRefresh();
                 }
+                engine.getMetrics().recordUiRefresh(System.nanoTime() - startTime);
             }
         });
     }
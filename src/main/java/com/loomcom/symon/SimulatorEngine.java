@@ -0,0 +1,611 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.exceptions.SymonException;
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.MachineSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The headless core of the simulator.
+ * <p/>
+ * The engine owns a Machine, runs its step loop, and connects the machine's
+ * ACIA to a pair of streams. It has no user interface of its own. The Swing
+ * {@link Simulator} is one client, and attaches its console, trace log and
+ * status windows through a {@link Listener}. With no listeners attached, the
+ * engine runs at full speed with no UI overhead at all.
+ * <p/>
+ * Everything that reaches the machine from outside, ACIA input and changes
+ * to the interrupt lines requested through the engine, is applied between
+ * steps. The engine can record these events against the CPU cycle count,
+ * and replay a recording to repeat a run exactly.
+ */
+public class SimulatorEngine {
+
+    private final static Logger logger = LoggerFactory.getLogger(SimulatorEngine.class.getName());
+
+    // How often to poll the ACIA input stream while the ACIA can accept a
+    // character. Polling a stream may be a system call, so not every step.
+    private static final int INPUT_POLL_STEPS = 64;
+
+    // When the ACIA has FIFOs, how long output may wait to be sent in a batch
+    // if the transmit FIFO does not fill up first.
+    private static final int OUTPUT_BATCH_STEPS = 256;
+
+    private static final int TRANSFER_BUFFER_SIZE = 256;
+
+    // How often the run loop checks whether the metrics are due for a
+    // sample. Reading the clock is cheap, but not free.
+    private static final int METRICS_CHECK_STEPS = 1024;
+
+    /**
+     * Receives run state changes and steps from the engine. All methods are
+     * called on the thread running the engine, not on the Swing Event
+     * Dispatch Thread.
+     */
+    public interface Listener {
+        void simulatorDidStart();
+
+        void simulatorDidStop();
+
+        /**
+         * Called after every step. Keep it cheap.
+         */
+        void simulatorDidStep(CpuState state);
+    }
+
+    /**
+     * Decides when a running engine should stop, such as at a breakpoint.
+     */
+    public interface StopCondition {
+        boolean shouldStop(Cpu cpu);
+    }
+
+    private final Machine machine;
+    private final SimulatorMetrics metrics;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile StopCondition stopCondition;
+    private volatile InputStream aciaInput;
+    private volatile OutputStream aciaOutput;
+
+    private volatile boolean isRunning = false;
+    private boolean blockStepping = false;
+    private RewindBuffer rewindBuffer;
+
+    // Interrupt line changes requested by other threads, applied before the next step
+    private final Queue<Integer> pendingEvents = new ConcurrentLinkedQueue<>();
+    private volatile EventRecording recording;
+    private EventRecording replay;
+    private int replayIndex;
+    private Thread runThread;
+
+    private int stepsSinceLastInputPoll = 0;
+    private int stepsSinceLastOutput = 0;
+
+    // Characters moving between the ACIA and its streams
+    private final byte[] outputBuffer = new byte[TRANSFER_BUFFER_SIZE];
+    private final ByteBuffer inputBuffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+
+    public SimulatorEngine(Machine machine) {
+        this.machine = machine;
+        this.metrics = new SimulatorMetrics(machine);
+        inputBuffer.limit(0);
+    }
+
+    public Machine getMachine() {
+        return machine;
+    }
+
+    /**
+     * @return The performance figures of this engine, sampled while it runs.
+     */
+    public SimulatorMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void setStopCondition(StopCondition stopCondition) {
+        this.stopCondition = stopCondition;
+    }
+
+    /**
+     * @param in Characters read from this stream are received by the ACIA.
+     */
+    public void setAciaInput(InputStream in) {
+        this.aciaInput = in;
+    }
+
+    /**
+     * @param out Characters transmitted by the ACIA are written to this stream.
+     */
+    public void setAciaOutput(OutputStream out) {
+        this.aciaOutput = out;
+    }
+
+    /**
+     * @param blockStepping If true, each step runs a whole basic block with
+     *                      <code>Cpu.stepBlock()</code> instead of a single
+     *                      instruction. Listeners and the stop condition then
+     *                      only see the state between blocks.
+     */
+    public void setBlockStepping(boolean blockStepping) {
+        this.blockStepping = blockStepping;
+    }
+
+    /**
+     * Start recording a history that <code>stepBack()</code> and
+     * <code>rewindToCycle()</code> can return to. The engine should not be
+     * running.
+     *
+     * @param rewindBuffer The buffer to record into, or null to stop recording.
+     */
+    public void setRewindBuffer(RewindBuffer rewindBuffer) {
+        this.rewindBuffer = rewindBuffer;
+        machine.getBus().setRewindBuffer(rewindBuffer);
+        if (rewindBuffer != null) {
+            rewindBuffer.reset();
+        }
+    }
+
+    public RewindBuffer getRewindBuffer() {
+        return rewindBuffer;
+    }
+
+    /**
+     * Undo a number of steps. The engine must be stopped, and have a rewind
+     * buffer.
+     *
+     * @return false if the steps are no longer in the rewind buffer, in
+     *         which case the machine is unchanged.
+     */
+    public boolean stepBack(int numSteps) throws MemoryAccessException {
+        if (rewindBuffer == null || isRunning) {
+            return false;
+        }
+        long target = machine.getCpu().getCpuState().stepCounter - numSteps;
+        return rewindBuffer.rewindToStep(target);
+    }
+
+    /**
+     * Return to the first instruction boundary at or after an earlier cycle.
+     * The engine must be stopped, and have a rewind buffer.
+     *
+     * @return false if the cycle is no longer in the rewind buffer, in which
+     *         case the machine is unchanged.
+     */
+    public boolean rewindToCycle(long cycle) throws MemoryAccessException {
+        if (rewindBuffer == null || isRunning) {
+            return false;
+        }
+        return rewindBuffer.rewindToCycle(cycle);
+    }
+
+    /**
+     * Start recording every external event, from a snapshot of the current
+     * state. The engine should not be running, and should not be reset or
+     * loaded until recording stops.
+     *
+     * @return The recording, which grows until <code>stopRecording()</code>.
+     */
+    public EventRecording startRecording() {
+        stopReplay();
+        MachineSnapshot startState = machine.snapshot();
+        recording = new EventRecording(startState);
+        return recording;
+    }
+
+    /**
+     * @return The finished recording, or null if the engine was not recording.
+     */
+    public EventRecording stopRecording() {
+        EventRecording finished = recording;
+        recording = null;
+        return finished;
+    }
+
+    public boolean isRecording() {
+        return recording != null;
+    }
+
+    /**
+     * Put the machine back in the state a recording started from, and
+     * replay its events at the cycles they were recorded at. While
+     * replaying, the ACIA input stream and interrupt requests are ignored,
+     * and each step is a single instruction, so that every event lands on
+     * the same instruction boundary as before. The engine should not be
+     * running.
+     *
+     * @throws IOException if the recording is of a different machine.
+     */
+    public void startReplay(EventRecording recording) throws IOException {
+        stopRecording();
+        machine.restore(recording.getStartState());
+        pendingEvents.clear();
+        replay = recording;
+        replayIndex = 0;
+        if (rewindBuffer != null) {
+            rewindBuffer.reset();
+        }
+    }
+
+    public void stopReplay() {
+        replay = null;
+    }
+
+    public boolean isReplaying() {
+        return replay != null;
+    }
+
+    /**
+     * @return True if every event of the recording being replayed has been
+     *         applied.
+     */
+    public boolean isReplayComplete() {
+        return replay != null && replayIndex == replay.size();
+    }
+
+    /**
+     * Assert the IRQ line before the next step. May be called from any
+     * thread, and is recorded.
+     */
+    public void assertIrq() {
+        pendingEvents.add(EventRecording.IRQ_ASSERT);
+    }
+
+    public void clearIrq() {
+        pendingEvents.add(EventRecording.IRQ_CLEAR);
+    }
+
+    /**
+     * Assert the NMI line before the next step. May be called from any
+     * thread, and is recorded.
+     */
+    public void assertNmi() {
+        pendingEvents.add(EventRecording.NMI_ASSERT);
+    }
+
+    public void clearNmi() {
+        pendingEvents.add(EventRecording.NMI_CLEAR);
+    }
+
+    /**
+     * @return True if the engine is running.
+     */
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Run the machine in a new thread, until it is stopped or the stop
+     * condition is met. Does nothing if the engine is already running.
+     */
+    public synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+        isRunning = true;
+        runThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "Simulator");
+        runThread.start();
+    }
+
+    /**
+     * Run the machine on the calling thread, until it is stopped or the stop
+     * condition is met.
+     */
+    public void run() {
+        synchronized (this) {
+            if (isRunning) {
+                return;
+            }
+            isRunning = true;
+        }
+        runLoop();
+    }
+
+    /**
+     * Ask a running engine to stop. The engine finishes its current step
+     * first.
+     */
+    public synchronized void stop() {
+        isRunning = false;
+        if (runThread != null) {
+            runThread.interrupt();
+            runThread = null;
+        }
+    }
+
+    /**
+     * Perform a number of steps of the simulated system.
+     */
+    public void step(int numSteps) throws MemoryAccessException {
+        for (int i = 0; i < numSteps; i++) {
+            step();
+        }
+    }
+
+    /**
+     * Perform a single step of the simulated system.
+     */
+    public void step() throws MemoryAccessException {
+        machine.getBus().applyWatchpointChanges();
+
+        if (replay != null) {
+            replayEvents();
+        } else if (!pendingEvents.isEmpty()) {
+            applyPendingEvents();
+        }
+
+        if (blockStepping && replay == null) {
+            machine.getCpu().stepBlock();
+        } else {
+            machine.getCpu().step();
+        }
+
+        RewindBuffer rewind = rewindBuffer;
+        if (rewind != null) {
+            rewind.stepped();
+        }
+
+        Acia acia = machine.getAcia();
+        if (acia != null) {
+            transferAciaData(acia);
+        }
+
+        for (Listener listener : listeners) {
+            listener.simulatorDidStep(machine.getCpu().getCpuState());
+        }
+    }
+
+    /**
+     * Stop the engine and reset the CPU. A cold reset also clears RAM.
+     */
+    public void reset(boolean isColdReset) throws MemoryAccessException {
+        stop();
+
+        logger.debug("Reset requested. Resetting CPU.");
+        machine.getCpu().reset();
+
+        if (isColdReset) {
+            Memory mem = machine.getRam();
+            if (mem != null) {
+                mem.fill(0);
+            }
+        }
+
+        if (rewindBuffer != null) {
+            rewindBuffer.reset();
+        }
+    }
+
+    /**
+     * Load a program into memory, reset the CPU, and point the PC at the
+     * start of the program.
+     */
+    public void loadProgram(byte[] program, int startAddress) throws MemoryAccessException {
+        int addr = startAddress, i;
+        for (i = 0; i < program.length; i++) {
+            machine.getBus().write(addr++, program[i] & 0xff);
+        }
+
+        logger.info("Loaded {} bytes at address 0x{}", i, Integer.toString(startAddress, 16));
+
+        // After loading, be sure to reset and
+        // Reset (but don't clear memory, naturally)
+        machine.getCpu().reset();
+
+        // Reset the stack program counter
+        machine.getCpu().setProgramCounter(startAddress);
+
+        if (rewindBuffer != null) {
+            rewindBuffer.reset();
+        }
+    }
+
+    private void runLoop() {
+        logger.debug("Starting main run loop.");
+
+        // Don't try to make up for the time spent stopped.
+        machine.getCpu().getClockThrottle().reset();
+        metrics.start();
+
+        for (Listener listener : listeners) {
+            listener.simulatorDidStart();
+        }
+
+        int stepsSinceMetricsCheck = 0;
+        try {
+            do {
+                step();
+                if (++stepsSinceMetricsCheck == METRICS_CHECK_STEPS) {
+                    stepsSinceMetricsCheck = 0;
+                    metrics.sampleIfDue();
+                }
+            } while (shouldContinue());
+        } catch (SymonException ex) {
+            logger.error("Exception in main simulator run thread. Exiting run.", ex);
+        }
+
+        isRunning = false;
+        metrics.sample();
+
+        Acia acia = machine.getAcia();
+        if (acia != null) {
+            sendAciaOutput(acia);
+        }
+
+        ClockThrottle throttle = machine.getCpu().getClockThrottle();
+        logger.debug("Stopped main run loop. Max clock drift {} ns, {} lag resets.",
+                     throttle.getMaxDriftNs(), throttle.getLagResets());
+
+        for (Listener listener : listeners) {
+            listener.simulatorDidStop();
+        }
+    }
+
+    /**
+     * @return True if the run loop should proceed to the next step.
+     */
+    private boolean shouldContinue() {
+        StopCondition condition = stopCondition;
+        return isRunning && (condition == null || !condition.shouldStop(machine.getCpu()));
+    }
+
+    /*
+     * Move transmitted characters to the output stream, and input
+     * characters to the ACIA if it can take them. With FIFOs, output is
+     * left to collect, and sent in batches.
+     */
+    private void transferAciaData(Acia acia) {
+        if (acia.hasTxChar()) {
+            int depth = acia.getFifoDepth();
+            if (depth == 1 || ++stepsSinceLastOutput >= OUTPUT_BATCH_STEPS ||
+                    acia.getTxCount() * 2 >= depth) {
+                sendAciaOutput(acia);
+            }
+        }
+
+        InputStream in = aciaInput;
+        if (in != null && replay == null && (acia.getFifoDepth() > 1 || !acia.hasRxChar()) &&
+                ++stepsSinceLastInputPoll >= INPUT_POLL_STEPS) {
+            stepsSinceLastInputPoll = 0;
+            try {
+                receiveAciaInput(acia, in);
+            } catch (IOException ex) {
+                logger.error("Unable to read ACIA input.", ex);
+            }
+        }
+    }
+
+    private void sendAciaOutput(Acia acia) {
+        stepsSinceLastOutput = 0;
+        OutputStream out = aciaOutput;
+        int n;
+        while ((n = acia.drainTx(outputBuffer)) > 0) {
+            if (out != null) {
+                try {
+                    out.write(outputBuffer, 0, n);
+                    out.flush();
+                } catch (IOException ex) {
+                    logger.error("Unable to write ACIA output.", ex);
+                }
+            }
+        }
+    }
+
+    private void receiveAciaInput(Acia acia, InputStream in) throws IOException {
+        if (!inputBuffer.hasRemaining()) {
+            // Only read what is available, so that the read never blocks.
+            int available = in.available();
+            if (available <= 0) {
+                return;
+            }
+            int n = in.read(inputBuffer.array(), 0, Math.min(available, inputBuffer.capacity()));
+            inputBuffer.position(0);
+            inputBuffer.limit(Math.max(n, 0));
+        }
+
+        int start = inputBuffer.position();
+        int n = acia.offerRx(inputBuffer);
+        for (int i = start; i < start + n; i++) {
+            record(EventRecording.RX_CHAR, inputBuffer.get(i) & 0xff);
+        }
+    }
+
+    private void applyPendingEvents() {
+        Integer type;
+        while ((type = pendingEvents.poll()) != null) {
+            applyEvent(type, 0);
+            record(type, 0);
+        }
+    }
+
+    /*
+     * Apply every event of the replay due at or before the current cycle.
+     */
+    private void replayEvents() {
+        long cycle = machine.getCpu().getCpuState().cycleCounter;
+        while (replayIndex < replay.size() && replay.getCycle(replayIndex) <= cycle) {
+            applyEvent(replay.getType(replayIndex), replay.getValue(replayIndex));
+            replayIndex++;
+        }
+    }
+
+    private void applyEvent(int type, int value) {
+        Bus bus = machine.getBus();
+        switch (type) {
+            case EventRecording.RX_CHAR:
+                Acia acia = machine.getAcia();
+                if (acia != null) {
+                    acia.rxWrite(value);
+                }
+                break;
+            case EventRecording.IRQ_ASSERT:
+                bus.assertIrq();
+                break;
+            case EventRecording.IRQ_CLEAR:
+                bus.clearIrq();
+                break;
+            case EventRecording.NMI_ASSERT:
+                bus.assertNmi();
+                break;
+            case EventRecording.NMI_CLEAR:
+                bus.clearNmi();
+                break;
+        }
+    }
+
+    private void record(int type, int value) {
+        EventRecording current = recording;
+        if (current != null) {
+            current.add(machine.getCpu().getCpuState().cycleCounter, type, value);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.Machine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live performance figures for a running simulator: how fast the CPU really
+ * runs, how much time the clock throttle spends waiting, and what the user
+ * interface costs.
+ * <p/>
+ * The engine's run loop calls <code>sampleIfDue()</code>, which turns the
+ * CPU's counters, the throttle's wait time and the events reported by the
+ * user interface into rates, at most once per sample interval. The rates
+ * are published for any thread to read, and through JMX once
+ * <code>register()</code> has been called. If a log interval is set, a
+ * summary is also logged that often.
+ */
+public class SimulatorMetrics implements SimulatorMetricsMBean {
+
+    public static final String OBJECT_NAME = "com.loomcom.symon:type=SimulatorMetrics";
+
+    public static final long DEFAULT_SAMPLE_INTERVAL_NS = 500000000L;
+
+    private final static Logger logger = LoggerFactory.getLogger(SimulatorMetrics.class.getName());
+
+    private final Machine machine;
+
+    private long sampleIntervalNs = DEFAULT_SAMPLE_INTERVAL_NS;
+    private volatile long logIntervalNs = 0;
+
+    // Events reported by other threads
+    private final AtomicLong uiRefreshes = new AtomicLong();
+    private final AtomicLong uiRefreshNs = new AtomicLong();
+    private final AtomicLong traceRefreshes = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong frameNs = new AtomicLong();
+
+    // Counters at the previous sample, only used by the sampling thread
+    private long lastSampleTime;
+    private long lastLogTime;
+    private long lastCycles;
+    private long lastSteps;
+    private long lastWaitNs;
+    private long lastUiRefreshes;
+    private long lastUiRefreshNs;
+    private long lastTraceRefreshes;
+    private long lastFrames;
+    private long lastFrameNs;
+
+    // Published figures
+    private volatile double effectiveMhz;
+    private volatile double targetMhz;
+    private volatile double instructionsPerSecond;
+    private volatile double throttleWaitPercent;
+    private volatile long clockDriftNs;
+    private volatile long maxClockDriftNs;
+    private volatile double uiRefreshesPerSecond;
+    private volatile double uiRefreshMs;
+    private volatile double traceRefreshesPerSecond;
+    private volatile double crtcFramesPerSecond;
+    private volatile double crtcFrameMs;
+    private volatile long totalInstructions;
+    private volatile long totalCycles;
+
+    public SimulatorMetrics(Machine machine) {
+        this.machine = machine;
+    }
+
+    /**
+     * @param sampleIntervalNs The shortest time between samples.
+     */
+    public void setSampleIntervalNs(long sampleIntervalNs) {
+        this.sampleIntervalNs = sampleIntervalNs;
+    }
+
+    public long getSampleIntervalNs() {
+        return sampleIntervalNs;
+    }
+
+    /**
+     * @param logIntervalNs How often to log a summary while running, or 0
+     *                      to never log one.
+     */
+    public void setLogIntervalNs(long logIntervalNs) {
+        this.logIntervalNs = logIntervalNs;
+    }
+
+    public long getLogIntervalNs() {
+        return logIntervalNs;
+    }
+
+    /**
+     * Report that the user interface has shown the CPU state. May be called
+     * from any thread.
+     *
+     * @param elapsedNs The time it took.
+     */
+    public void recordUiRefresh(long elapsedNs) {
+        uiRefreshes.incrementAndGet();
+        uiRefreshNs.addAndGet(elapsedNs);
+    }
+
+    /**
+     * Report that the trace log has been redrawn. May be called from any thread.
+     */
+    public void recordTraceRefresh() {
+        traceRefreshes.incrementAndGet();
+    }
+
+    /**
+     * Report that a frame of CRTC video has been drawn. May be called from
+     * any thread.
+     *
+     * @param elapsedNs The time it took.
+     */
+    public void recordFrame(long elapsedNs) {
+        frames.incrementAndGet();
+        frameNs.addAndGet(elapsedNs);
+    }
+
+    /**
+     * Start measuring from now, so that time spent stopped is not counted.
+     * Called by the engine when it starts running.
+     */
+    void start() {
+        long now = System.nanoTime();
+        lastSampleTime = now;
+        lastLogTime = now;
+        lastCycles = machine.getCpu().getCpuState().cycleCounter;
+        lastSteps = machine.getCpu().getCpuState().stepCounter;
+        lastWaitNs = machine.getCpu().getClockThrottle().getTotalWaitNs();
+        lastUiRefreshes = uiRefreshes.get();
+        lastUiRefreshNs = uiRefreshNs.get();
+        lastTraceRefreshes = traceRefreshes.get();
+        lastFrames = frames.get();
+        lastFrameNs = frameNs.get();
+    }
+
+    /**
+     * Take a sample if the sample interval has passed since the last one.
+     * Must only be called by the thread running the CPU.
+     */
+    void sampleIfDue() {
+        long now = System.nanoTime();
+        if (now - lastSampleTime >= sampleIntervalNs) {
+            sample(now);
+        }
+    }
+
+    /**
+     * Take a sample now. Must only be called by the thread running the CPU.
+     */
+    void sample() {
+        sample(System.nanoTime());
+    }
+
+    private void sample(long now) {
+        double seconds = (now - lastSampleTime) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+
+        Cpu cpu = machine.getCpu();
+        CpuState state = cpu.getCpuState();
+        ClockThrottle throttle = cpu.getClockThrottle();
+
+        long cycles = state.cycleCounter;
+        long steps = state.stepCounter;
+        long waitNs = throttle.getTotalWaitNs();
+
+        effectiveMhz = (cycles - lastCycles) / seconds / 1e6;
+        instructionsPerSecond = (steps - lastSteps) / seconds;
+        long period = throttle.getClockPeriodInNs();
+        targetMhz = period > 0 ? 1000.0 / period : 0;
+        throttleWaitPercent = (waitNs - lastWaitNs) / 1e7 / seconds;
+        clockDriftNs = throttle.getLastDriftNs();
+        maxClockDriftNs = throttle.getMaxDriftNs();
+        totalInstructions = steps;
+        totalCycles = cycles;
+
+        long refreshes = uiRefreshes.get();
+        long refreshNs = uiRefreshNs.get();
+        uiRefreshesPerSecond = (refreshes - lastUiRefreshes) / seconds;
+        uiRefreshMs = average(refreshNs - lastUiRefreshNs, refreshes - lastUiRefreshes);
+
+        long traces = traceRefreshes.get();
+        traceRefreshesPerSecond = (traces - lastTraceRefreshes) / seconds;
+
+        long frameCount = frames.get();
+        long frameTime = frameNs.get();
+        crtcFramesPerSecond = (frameCount - lastFrames) / seconds;
+        crtcFrameMs = average(frameTime - lastFrameNs, frameCount - lastFrames);
+
+        lastSampleTime = now;
+        lastCycles = cycles;
+        lastSteps = steps;
+        lastWaitNs = waitNs;
+        lastUiRefreshes = refreshes;
+        lastUiRefreshNs = refreshNs;
+        lastTraceRefreshes = traces;
+        lastFrames = frameCount;
+        lastFrameNs = frameTime;
+
+        long logInterval = logIntervalNs;
+        if (logInterval > 0 && now - lastLogTime >= logInterval) {
+            lastLogTime = now;
+            logger.info(describe());
+        }
+    }
+
+    /**
+     * Make the figures available through the platform MBean server, as
+     * {@value #OBJECT_NAME}. Replaces any metrics already registered there.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException ex) {
+            logger.warn("Unable to register simulator metrics with JMX.", ex);
+        }
+    }
+
+    /**
+     * Remove the figures from the platform MBean server, if they are still
+     * the ones registered there.
+     */
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name) && server.isInstanceOf(name, SimulatorMetrics.class.getName())) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException ex) {
+            logger.warn("Unable to unregister simulator metrics from JMX.", ex);
+        }
+    }
+
+    /**
+     * @return A one line summary of the most recent sample.
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ENGLISH, "%.2f MHz", effectiveMhz));
+        if (targetMhz > 0) {
+            sb.append(String.format(Locale.ENGLISH, " of %.2f MHz target, throttle waiting %.0f%%, drift %d us",
+                                    targetMhz, throttleWaitPercent, clockDriftNs / 1000));
+        }
+        sb.append(String.format(Locale.ENGLISH, ", %.2f MIPS", instructionsPerSecond / 1e6));
+        if (uiRefreshesPerSecond > 0) {
+            sb.append(String.format(Locale.ENGLISH, ", UI %.1f/s at %.2f ms", uiRefreshesPerSecond, uiRefreshMs));
+        }
+        if (traceRefreshesPerSecond > 0) {
+            sb.append(String.format(Locale.ENGLISH, ", trace %.1f/s", traceRefreshesPerSecond));
+        }
+        if (crtcFramesPerSecond > 0) {
+            sb.append(String.format(Locale.ENGLISH, ", CRTC %.1f fps at %.2f ms", crtcFramesPerSecond, crtcFrameMs));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public double getEffectiveMhz() {
+        return effectiveMhz;
+    }
+
+    @Override
+    public double getTargetMhz() {
+        return targetMhz;
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        return instructionsPerSecond;
+    }
+
+    @Override
+    public double getThrottleWaitPercent() {
+        return throttleWaitPercent;
+    }
+
+    @Override
+    public long getClockDriftNs() {
+        return clockDriftNs;
+    }
+
+    @Override
+    public long getMaxClockDriftNs() {
+        return maxClockDriftNs;
+    }
+
+    @Override
+    public double getUiRefreshesPerSecond() {
+        return uiRefreshesPerSecond;
+    }
+
+    @Override
+    public double getUiRefreshMs() {
+        return uiRefreshMs;
+    }
+
+    @Override
+    public double getTraceRefreshesPerSecond() {
+        return traceRefreshesPerSecond;
+    }
+
+    @Override
+    public double getCrtcFramesPerSecond() {
+        return crtcFramesPerSecond;
+    }
+
+    @Override
+    public double getCrtcFrameMs() {
+        return crtcFrameMs;
+    }
+
+    @Override
+    public long getTotalInstructions() {
+        return totalInstructions;
+    }
+
+    @Override
+    public long getTotalCycles() {
+        return totalCycles;
+    }
+
+    private static double average(long totalNs, long count) {
+        return count > 0 ? totalNs / 1e6 / count : 0;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+/**
+ * The JMX management interface of {@link SimulatorMetrics}. Rates are
+ * averaged over the most recent sample interval.
+ */
+public interface SimulatorMetricsMBean {
+
+    double getEffectiveMhz();
+
+    /**
+     * @return The configured clock speed, or 0 if the CPU is unthrottled.
+     */
+    double getTargetMhz();
+
+    double getInstructionsPerSecond();
+
+    /**
+     * @return The percentage of wall clock time the clock throttle spent
+     *         waiting for the simulated clock.
+     */
+    double getThrottleWaitPercent();
+
+    /**
+     * @return How far the simulated clock was behind the wall clock at the
+     *         end of the most recent throttle slice, in nanoseconds.
+     */
+    long getClockDriftNs();
+
+    long getMaxClockDriftNs();
+
+    double getUiRefreshesPerSecond();
+
+    /**
+     * @return The average time the UI took to show the CPU state, in milliseconds.
+     */
+    double getUiRefreshMs();
+
+    double getTraceRefreshesPerSecond();
+
+    double getCrtcFramesPerSecond();
+
+    /**
+     * @return The average time taken to draw a frame of CRTC video, in milliseconds.
+     */
+    double getCrtcFrameMs();
+
+    long getTotalInstructions();
+
+    long getTotalCycles();
+}
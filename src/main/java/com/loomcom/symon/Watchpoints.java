@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.util.Utils;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Read and write watchpoints on ranges of addresses.
+ * <p/>
+ * The Bus checks watchpoints as it reads and writes, and records the first
+ * access that hits one. The simulator stops once the current instruction
+ * has finished. Pages of memory with no watchpoints stay on the Bus's fast
+ * path, so watchpoints cost nothing outside the pages they watch.
+ * <p/>
+ * Any access through the Bus counts, including instruction fetches and
+ * reads made by the user interface while the simulator is stopped, so
+ * callers should clear the trigger before running.
+ * <p/>
+ * Watchpoints may be added and removed while the simulator runs. The Bus
+ * starts checking them at its next step boundary.
+ */
+public class Watchpoints extends AbstractTableModel {
+
+    public static final int READ  = 0x01;
+    public static final int WRITE = 0x02;
+
+    private static final int ADDRESS_SPACE = 0x10000;
+
+    /**
+     * A watched range of addresses.
+     */
+    public static class Watchpoint {
+        private final int startAddress;
+        private final int endAddress;
+        private final int access;
+
+        public Watchpoint(int startAddress, int endAddress, int access) {
+            this.startAddress = Math.min(startAddress, endAddress) & 0xffff;
+            this.endAddress = Math.max(startAddress, endAddress) & 0xffff;
+            this.access = access & (READ | WRITE);
+        }
+
+        public int getStartAddress() {
+            return startAddress;
+        }
+
+        public int getEndAddress() {
+            return endAddress;
+        }
+
+        public int getAccess() {
+            return access;
+        }
+
+        public String getRangeString() {
+            if (startAddress == endAddress) {
+                return "$" + Utils.wordToHex(startAddress);
+            }
+            return "$" + Utils.wordToHex(startAddress) + "-$" + Utils.wordToHex(endAddress);
+        }
+
+        public String getAccessString() {
+            return ((access & READ) != 0 ? "R" : "") + ((access & WRITE) != 0 ? "W" : "");
+        }
+    }
+
+    private final List<Watchpoint> watchpoints = new CopyOnWriteArrayList<>();
+
+    /* READ and WRITE bits for each address, and for each page. Replaced
+     * whole, never modified, so that the CPU thread always sees a
+     * consistent copy. */
+    private volatile byte[] addressAccess = new byte[ADDRESS_SPACE];
+    private volatile byte[] pageAccess = new byte[ADDRESS_SPACE >> 8];
+
+    /* The Bus whose page tables depend on the watched pages. */
+    private volatile Bus bus;
+
+    private volatile boolean triggered = false;
+    private int triggerAddress;
+    private int triggerValue;
+    private boolean triggerWasWrite;
+
+    public synchronized void addWatchpoint(int startAddress, int endAddress, int access) {
+        watchpoints.add(new Watchpoint(startAddress, endAddress, access));
+        watchpointsChanged();
+    }
+
+    public synchronized void removeWatchpointAtIndex(int index) {
+        if (index < 0 || index >= watchpoints.size()) {
+            return;
+        }
+        watchpoints.remove(index);
+        watchpointsChanged();
+    }
+
+    public Watchpoint getWatchpoint(int index) {
+        return watchpoints.get(index);
+    }
+
+    public boolean isEmpty() {
+        return watchpoints.isEmpty();
+    }
+
+    /**
+     * @return True if an access has hit a watchpoint since the trigger was
+     *         last cleared.
+     */
+    public boolean isTriggered() {
+        return triggered;
+    }
+
+    public void clearTriggered() {
+        triggered = false;
+    }
+
+    public int getTriggerAddress() {
+        return triggerAddress;
+    }
+
+    public int getTriggerValue() {
+        return triggerValue;
+    }
+
+    public boolean getTriggerWasWrite() {
+        return triggerWasWrite;
+    }
+
+    /**
+     * @return A description of the access that hit a watchpoint.
+     */
+    public String getTriggerDescription() {
+        return (triggerWasWrite ? "Write of $" : "Read of $") + Utils.byteToHex(triggerValue) +
+               (triggerWasWrite ? " to $" : " from $") + Utils.wordToHex(triggerAddress);
+    }
+
+    void setBus(Bus bus) {
+        this.bus = bus;
+    }
+
+    boolean isReadWatchedPage(int page) {
+        return (pageAccess[page] & READ) != 0;
+    }
+
+    boolean isWriteWatchedPage(int page) {
+        return (pageAccess[page] & WRITE) != 0;
+    }
+
+    /**
+     * Called by the Bus after each read that is not on its fast path.
+     */
+    void checkRead(int address, int value) {
+        if ((addressAccess[address & 0xffff] & READ) != 0) {
+            trigger(address, value, false);
+        }
+    }
+
+    /**
+     * Called by the Bus after each write that is not on its fast path.
+     */
+    void checkWrite(int address, int value) {
+        if ((addressAccess[address & 0xffff] & WRITE) != 0) {
+            trigger(address, value, true);
+        }
+    }
+
+    private void trigger(int address, int value, boolean isWrite) {
+        // Keep the first access, which is the one that stopped the simulator.
+        if (!triggered) {
+            triggerAddress = address;
+            triggerValue = value & 0xff;
+            triggerWasWrite = isWrite;
+            triggered = true;
+        }
+    }
+
+    private void watchpointsChanged() {
+        byte[] access = new byte[ADDRESS_SPACE];
+        for (Watchpoint watchpoint : watchpoints) {
+            for (int address = watchpoint.startAddress; address <= watchpoint.endAddress; address++) {
+                access[address] |= watchpoint.access;
+            }
+        }
+
+        byte[] pages = new byte[ADDRESS_SPACE >> 8];
+        for (int page = 0; page < pages.length; page++) {
+            byte bits = 0;
+            for (int address = page << 8; address < (page + 1) << 8; address++) {
+                bits |= access[address];
+            }
+            pages[page] = bits;
+        }
+        addressAccess = access;
+        pageAccess = pages;
+
+        Bus bus = this.bus;
+        if (bus != null) {
+            bus.watchpointsChanged();
+        }
+        fireTableDataChanged();
+    }
+
+    @Override
+    public String getColumnName(int index) {
+        if (index == 0) {
+            return "Range";
+        } else {
+            return "Access";
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return watchpoints.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return 2;
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        Watchpoint watchpoint = watchpoints.get(rowIndex);
+        if (columnIndex == 0) {
+            return watchpoint.getRangeString();
+        } else if (columnIndex == 1) {
+            return watchpoint.getAccessString();
+        } else {
+            return null;
+        }
+    }
+}
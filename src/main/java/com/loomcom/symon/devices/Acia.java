@@ -23,15 +23,44 @@
 
 package com.loomcom.symon.devices;
 
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.CpuState;
 import com.loomcom.symon.exceptions.MemoryRangeException;
+import com.loomcom.symon.util.ByteFifo;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
 /**
  * Abstract base class for ACIAS such as the 6551 and 6580
+ * <p/>
+ * The baud rate delay is timed in CPU cycles, as if the CPU ran at 1 MHz,
+ * so the ACIA behaves the same way on every run, however fast the
+ * simulation goes. Polling the status register reads the cycle counter
+ * and nothing else.
+ * <p/>
+ * The CPU reads and writes the registers, and the host side calls
+ * <code>rxWrite()</code> and <code>txRead()</code>. Nothing is locked, so
+ * the host side must only call them on the thread running the CPU, as
+ * <code>SimulatorEngine</code> does between instructions.
+ * <p/>
+ * With a FIFO depth greater than one, the ACIA works like a 16550 in FIFO
+ * mode instead: received characters queue up until the CPU reads them,
+ * and the CPU may write characters until the transmit queue is full. The
+ * host side can then move many characters at a time with
+ * <code>offerRx()</code> and <code>drainTx()</code>. The baud rate delay
+ * still applies to every character the CPU reads or writes.
  */
 
 public abstract class Acia extends Device {
 
+    /* The baud rate clock, in CPU cycles per second */
+    static final long CYCLES_PER_SECOND = 1000000000L / Cpu.DEFAULT_CLOCK_PERIOD_IN_NS;
+
     private String name;
     
     /**
@@ -42,11 +71,17 @@ public abstract class Acia extends Device {
     boolean receiveIrqEnabled = false;
     boolean transmitIrqEnabled = false;
     boolean overrun = false;
-    
-	long lastTxWrite   = 0;
-    long lastRxRead    = 0;
+
     int  baudRate      = 0;
+    /* The time taken to send or receive one character, in CPU cycles */
     long baudRateDelay = 0;
+
+    /* The cycles at which the receiver and transmitter are ready again after the last read or write */
+    long rxReadyCycle = 0;
+    long txReadyCycle = 0;
+
+    /* The CPU state whose cycle counter times the baud rate delay, found through the bus on first use */
+    private CpuState clock;
 	
 	/**
      * Read/Write buffers
@@ -56,6 +91,11 @@ public abstract class Acia extends Device {
 
     boolean rxFull  = false;
     boolean txEmpty = true;
+
+    /* Receive and transmit queues, when the FIFO depth is greater than one */
+    private int fifoDepth = 1;
+    private ByteFifo rxFifo;
+    private ByteFifo txFifo;
 	
 	
     public Acia(int address, int size, String name) throws MemoryRangeException {
@@ -66,14 +106,14 @@ public abstract class Acia extends Device {
 
 
     /*
-     * Calculate the delay in nanoseconds between successive read/write operations, based on the
+     * Calculate the delay in CPU cycles between successive read/write operations, based on the
      * configured baud rate.
      */
     private long calculateBaudRateDelay() {
         if (baudRate > 0) {
             // TODO: This is a pretty rough approximation based on 8 bits per character,
             // and 1/baudRate per bit. It could certainly be improved
-            return (long)((1.0 / baudRate) * 1000000000 * 8);
+            return 8 * CYCLES_PER_SECOND / baudRate;
         } else {
             return 0;
         }
@@ -102,61 +142,297 @@ public abstract class Acia extends Device {
      */
     public abstract int statusReg();
 
+    /**
+     * Set the depth of the receive and transmit buffers, discarding their
+     * contents. Should not be called while the simulator is running.
+     *
+     * @param depth 1 for the chip's single character registers, or the
+     *              number of characters each FIFO holds.
+     */
+    public void setFifoDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("FIFO depth must be at least one character");
+        }
+        this.fifoDepth = depth;
+        if (depth == 1) {
+            rxFifo = null;
+            txFifo = null;
+        } else {
+            rxFifo = new ByteFifo(depth);
+            txFifo = new ByteFifo(depth);
+        }
+        rxFull = false;
+        txEmpty = true;
+        overrun = false;
+    }
+
+    public int getFifoDepth() {
+        return fifoDepth;
+    }
+
+    /**
+     * @return true if a received character is waiting, and the baud rate
+     *         delay since the last read has passed.
+     */
+    boolean isRxReady(long now) {
+        return hasRxChar() && now >= rxReadyCycle;
+    }
+
+    /**
+     * @return true if the CPU may write a character: there is room for it,
+     *         and the baud rate delay since the last write has passed.
+     */
+    boolean isTxReady(long now) {
+        ByteFifo fifo = txFifo;
+        return (fifo == null ? txEmpty : !fifo.isFull()) && now >= txReadyCycle;
+    }
+
+    /**
+     * Empty the receive and transmit buffers, when the CPU resets the chip.
+     * In FIFO mode, characters queued for transmission are left for the
+     * host to take, since only the host side may remove them.
+     */
+    void clearBuffers() {
+        ByteFifo fifo = rxFifo;
+        if (fifo != null) {
+            fifo.clear();
+        } else {
+            txEmpty = true;
+        }
+        rxFull = false;
+    }
+
+    /**
+     * @return The current CPU cycle, for timing the baud rate delay, or 0
+     *         if the ACIA is not yet on a bus with a CPU.
+     */
+    long cycles() {
+        CpuState state = clock;
+        if (state == null) {
+            Bus bus = getBus();
+            if (bus == null || bus.getCpu() == null) {
+                return 0;
+            }
+            state = clock = bus.getCpu().getCpuState();
+        }
+        return state.cycleCounter;
+    }
+
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeBoolean(receiveIrqEnabled);
+        out.writeBoolean(transmitIrqEnabled);
+        out.writeBoolean(overrun);
+        out.writeInt(baudRate);
+        out.writeByte(rxChar);
+        out.writeByte(txChar);
+        out.writeBoolean(rxFull);
+        out.writeBoolean(txEmpty);
+        out.writeLong(rxReadyCycle);
+        out.writeLong(txReadyCycle);
+        out.writeInt(fifoDepth);
+        if (fifoDepth > 1) {
+            writeFifo(out, rxFifo);
+            writeFifo(out, txFifo);
+        }
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        receiveIrqEnabled = in.readBoolean();
+        transmitIrqEnabled = in.readBoolean();
+        overrun = in.readBoolean();
+        setBaudRate(in.readInt());
+        rxChar = in.readUnsignedByte();
+        txChar = in.readUnsignedByte();
+        rxFull = in.readBoolean();
+        txEmpty = in.readBoolean();
+        rxReadyCycle = in.readLong();
+        txReadyCycle = in.readLong();
+        int depth = in.readInt();
+        if (depth != fifoDepth) {
+            setFifoDepth(depth);
+        }
+        if (depth > 1) {
+            readFifo(in, rxFifo);
+            readFifo(in, txFifo);
+        }
+    }
+
+    private static void writeFifo(DataOutput out, ByteFifo fifo) throws IOException {
+        byte[] contents = new byte[fifo.size()];
+        fifo.peekAll(contents);
+        out.writeInt(contents.length);
+        out.write(contents);
+    }
+
+    private static void readFifo(DataInput in, ByteFifo fifo) throws IOException {
+        byte[] contents = new byte[in.readInt()];
+        in.readFully(contents);
+        fifo.clear();
+        if (fifo.offer(ByteBuffer.wrap(contents)) < contents.length) {
+            throw new IOException("Saved FIFO is larger than its depth");
+        }
+    }
+
     @Override
     public String toString() {
         return name + "@" + String.format("%04X", baseAddress);
     }
 
-    public synchronized int rxRead() {
-        lastRxRead = System.nanoTime();
+    public int rxRead() {
+        rxReadyCycle = cycles() + baudRateDelay;
+        ByteFifo fifo = rxFifo;
+        if (fifo != null) {
+            // Reading an empty FIFO returns the last character again.
+            int data = fifo.poll();
+            if (data >= 0) {
+                rxChar = data;
+            }
+        }
+        int data = rxChar;
         overrun = false;
         rxFull = false;
-        return rxChar;
+        return data;
     }
 
-    public synchronized void rxWrite(int data) {
-        if(rxFull) {
-            overrun = true;
+    /**
+     * Receive a character. In FIFO mode, a character that does not fit is
+     * lost, and flagged as an overrun. Must only be called on the thread
+     * running the CPU.
+     */
+    public void rxWrite(int data) {
+        ByteFifo fifo = rxFifo;
+        if (fifo != null) {
+            if (!fifo.offer(data)) {
+                overrun = true;
+            }
+        } else {
+            if (rxFull) {
+                overrun = true;
+            }
+
+            rxChar = data;
+            rxFull = true;
         }
-        
-        rxFull = true;
 
         if (receiveIrqEnabled) {
             getBus().assertIrq();
         }
+    }
 
-        rxChar = data;
+    /**
+     * Receive as many characters from a buffer as the ACIA has room for,
+     * advancing the buffer's position past them. Unlike
+     * <code>rxWrite()</code>, this never causes an overrun. Must only be
+     * called on the thread running the CPU.
+     *
+     * @return The number of characters received.
+     */
+    public int offerRx(ByteBuffer src) {
+        int n;
+        ByteFifo fifo = rxFifo;
+        if (fifo != null) {
+            n = fifo.offer(src);
+        } else if (!rxFull && src.hasRemaining()) {
+            rxChar = src.get() & 0xff;
+            rxFull = true;
+            n = 1;
+        } else {
+            n = 0;
+        }
+
+        if (n > 0 && receiveIrqEnabled) {
+            getBus().assertIrq();
+        }
+        return n;
     }
 
-    public synchronized int txRead() {
-        txEmpty = true;
+    public int txRead() {
+        ByteFifo fifo = txFifo;
+        int data;
+        if (fifo != null) {
+            data = fifo.poll();
+            if (data < 0) {
+                data = txChar;
+            }
+        } else {
+            data = txChar;
+            txEmpty = true;
+        }
 
         if (transmitIrqEnabled) {
             getBus().assertIrq();
         }
 
-        return txChar;
+        return data;
+    }
+
+    /**
+     * Take every character waiting to be transmitted, up to the size of the
+     * destination.
+     *
+     * @return The number of characters taken.
+     */
+    public int drainTx(byte[] dest) {
+        int n;
+        ByteFifo fifo = txFifo;
+        if (fifo != null) {
+            n = fifo.drain(dest, 0, dest.length);
+        } else if (!txEmpty && dest.length > 0) {
+            dest[0] = (byte) txChar;
+            txEmpty = true;
+            n = 1;
+        } else {
+            n = 0;
+        }
+
+        if (n > 0 && transmitIrqEnabled) {
+            getBus().assertIrq();
+        }
+        return n;
     }
 
-    public synchronized void txWrite(int data) {
-        lastTxWrite = System.nanoTime();
+    /**
+     * Transmit a character. In FIFO mode, a character written while the
+     * FIFO is full is lost.
+     */
+    public void txWrite(int data) {
+        txReadyCycle = cycles() + baudRateDelay;
         txChar = data;
-        txEmpty = false;
+        ByteFifo fifo = txFifo;
+        if (fifo != null) {
+            fifo.offer(data);
+        } else {
+            txEmpty = false;
+        }
     }
 
     /**
      * @return true if there is character data in the TX register.
      */
     public boolean hasTxChar() {
-        return !txEmpty;
+        ByteFifo fifo = txFifo;
+        return fifo == null ? !txEmpty : !fifo.isEmpty();
     }
 
     /**
      * @return true if there is character data in the RX register.
      */
-    @SuppressWarnings("unused")
     public boolean hasRxChar() {
-        return rxFull;
+        ByteFifo fifo = rxFifo;
+        return fifo == null ? rxFull : !fifo.isEmpty();
+    }
+
+    /**
+     * @return The number of characters waiting to be transmitted.
+     */
+    public int getTxCount() {
+        ByteFifo fifo = txFifo;
+        if (fifo == null) {
+            return txEmpty ? 0 : 1;
+        }
+        return fifo.size();
     }
 
 }
@@ -26,6 +26,10 @@ package com.loomcom.symon.devices;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * This is a simulation of the MOS 6551 ACIA, with limited
  * functionality.  Interrupts are not supported.
@@ -174,6 +178,20 @@ public class Acia6551 extends Acia {
     }
 
 
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        super.saveState(out);
+        out.writeByte(commandRegister);
+        out.writeByte(controlRegister);
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        super.loadState(in);
+        commandRegister = in.readUnsignedByte();
+        controlRegister = in.readUnsignedByte();
+    }
+
     /**
      * @return The contents of the status register.
      */
@@ -181,10 +199,11 @@ public class Acia6551 extends Acia {
     public int statusReg() {
         // TODO: Parity Error, Framing Error, DTR, DSR, and Interrupt flags.
         int stat = 0;
-        if (rxFull && System.nanoTime() >= (lastRxRead + baudRateDelay)) {
+        long now = cycles();
+        if (isRxReady(now)) {
             stat |= 0x08;
         }
-        if (txEmpty && System.nanoTime() >= (lastTxWrite + baudRateDelay)) {
+        if (isTxReady(now)) {
             stat |= 0x10;
         }
         if (overrun) {
@@ -194,11 +213,10 @@ public class Acia6551 extends Acia {
     }
 
 
-    private synchronized void reset() {
+    private void reset() {
         txChar = 0;
-        txEmpty = true;
         rxChar = 0;
-        rxFull = false;
+        clearBuffers();
         receiveIrqEnabled = false;
         transmitIrqEnabled = false;
     }
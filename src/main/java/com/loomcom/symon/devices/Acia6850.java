@@ -100,10 +100,11 @@ public class Acia6850 extends Acia {
     public int statusReg() {
         // TODO: Parity Error, Framing Error, DTR, DSR, and Interrupt flags.
         int stat = 0;
-        if (rxFull && System.nanoTime() >= (lastRxRead + baudRateDelay)) {
+        long now = cycles();
+        if (isRxReady(now)) {
             stat |= 0x01;
         }
-        if (txEmpty && System.nanoTime() >= (lastTxWrite + baudRateDelay)) {
+        if (isTxReady(now)) {
             stat |= 0x02;
         }
         if (overrun) {
@@ -114,10 +115,9 @@ public class Acia6850 extends Acia {
     }
 
 
-    private synchronized void reset() {
+    private void reset() {
         overrun = false;
-        rxFull = false;
-        txEmpty = true;
+        clearBuffers();
     }
 
 }
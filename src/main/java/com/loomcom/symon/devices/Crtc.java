@@ -26,6 +26,8 @@ package com.loomcom.symon.devices;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 /**
@@ -135,6 +137,42 @@ public class Crtc extends Device {
         }
     }
 
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(horizontalDisplayed);
+        out.writeInt(verticalDisplayed);
+        out.writeInt(scanLinesPerRow);
+        out.writeInt(cursorStartLine);
+        out.writeBoolean(cursorEnabled);
+        out.writeInt(cursorBlinkRate);
+        out.writeInt(cursorStopLine);
+        out.writeInt(startAddress);
+        out.writeInt(cursorPosition);
+        out.writeInt(currentRegister);
+        out.writeBoolean(rowColumnAddressing);
+        out.writeBoolean(displayEnableSkew);
+        out.writeBoolean(cursorSkew);
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        horizontalDisplayed = in.readInt();
+        verticalDisplayed = in.readInt();
+        scanLinesPerRow = in.readInt();
+        cursorStartLine = in.readInt();
+        cursorEnabled = in.readBoolean();
+        cursorBlinkRate = in.readInt();
+        cursorStopLine = in.readInt();
+        startAddress = in.readInt();
+        cursorPosition = in.readInt();
+        currentRegister = in.readInt();
+        rowColumnAddressing = in.readBoolean();
+        displayEnableSkew = in.readBoolean();
+        cursorSkew = in.readBoolean();
+        pageSize = horizontalDisplayed * verticalDisplayed;
+        notifyListeners();
+    }
+
     @Override
     public String toString() {
         return null;
@@ -28,6 +28,9 @@ import com.loomcom.symon.MemoryRange;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -76,6 +79,19 @@ public abstract class Device implements Comparable<Device> {
 
     public abstract String toString();
 
+    /**
+     * Write the device's registers and internal state, for a machine
+     * snapshot. Devices with no state write nothing.
+     */
+    public void saveState(DataOutput out) throws IOException {
+    }
+
+    /**
+     * Read back the state written by <code>saveState()</code>.
+     */
+    public void loadState(DataInput in) throws IOException {
+    }
+
     public Bus getBus() {
         return this.bus;
     }
@@ -92,7 +108,6 @@ public abstract class Device implements Comparable<Device> {
         return memoryRange.endAddress();
     }
 
-    @SuppressWarnings("unused")
     public int startAddress() {
         return memoryRange.startAddress();
     }
@@ -24,14 +24,33 @@
 package com.loomcom.symon.devices;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
+import com.loomcom.symon.Bus;
 import com.loomcom.symon.exceptions.*;
 
 public class Memory extends Device {
 
+    /* Contents are held in pages of this many bytes, which can be shared */
+    public static final int PAGE_SIZE = 256;
+
+    /* The contents of every page that is all zero */
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
     private boolean readOnly;
-    private int[] mem;
+    private byte[][] pages;
+
+    /*
+     * True for each page that may also be referred to by a snapshot, a forked
+     * copy of this memory, or a ROM image. A shared page is never written:
+     * it is copied the first time this memory writes to it.
+     */
+    private boolean[] sharedPages;
+
+    /* True if the pages are a ROM image shared with other devices */
+    private boolean shared;
 
     /* Initialize all locations to 0x00 (BRK) */
     private static final int DEFAULT_FILL = 0x00;
@@ -40,7 +59,8 @@ public class Memory extends Device {
             throws MemoryRangeException {
         super(startAddress, endAddress, (readOnly ? "RO Memory" : "RW Memory"));
         this.readOnly = readOnly;
-        this.mem = new int[this.size];
+        this.pages = new byte[(this.size + PAGE_SIZE - 1) / PAGE_SIZE][];
+        this.sharedPages = new boolean[pages.length];
         this.fill(DEFAULT_FILL);
     }
 
@@ -48,10 +68,22 @@ public class Memory extends Device {
         this(startAddress, endAddress, false);
     }
 
+    private Memory(int startAddress, int endAddress, byte[][] sharedImage) throws MemoryRangeException {
+        super(startAddress, endAddress, "RO Memory");
+        this.readOnly = true;
+        this.pages = sharedImage.clone();
+        this.sharedPages = new boolean[pages.length];
+        Arrays.fill(sharedPages, true);
+        this.shared = true;
+    }
+
+    /**
+     * Make a read-only memory loaded from a ROM image. Every ROM loaded from
+     * the same, unchanged file shares one copy of its contents.
+     */
     public static Memory makeROM(int startAddress, int endAddress, File f) throws MemoryRangeException, IOException {
-        Memory memory = new Memory(startAddress, endAddress, true);
-        memory.loadFromFile(f);
-        return memory;
+        int size = endAddress - startAddress + 1;
+        return new Memory(startAddress, endAddress, RomImageCache.get(f, size));
     }
 
     public static Memory makeRAM(int startAddress, int endAddress) throws MemoryRangeException {
@@ -62,7 +94,7 @@ public class Memory extends Device {
         if (readOnly) {
             throw new MemoryAccessException("Cannot write to read-only memory at address " + address);
         } else {
-            this.mem[address] = data;
+            writablePage(address / PAGE_SIZE)[address % PAGE_SIZE] = (byte) data;
         }
     }
 
@@ -74,18 +106,22 @@ public class Memory extends Device {
      * @throws IOException if the file read fails.
      */
     public void loadFromFile(File file) throws MemoryRangeException, IOException {
+        checkNotShared();
         if (file.canRead()) {
-            long fileSize = file.length();
-
-            if (fileSize > mem.length) {
-                throw new MemoryRangeException("File will not fit in available memory.");
-            } else {
-                int i = 0;
-                FileInputStream fis = new FileInputStream(file);
-                BufferedInputStream bis = new BufferedInputStream(fis);
-                DataInputStream dis = new DataInputStream(bis);
-                while (dis.available() != 0) {
-                    mem[i++] = dis.readUnsignedByte();
+            try (FileInputStream fis = new FileInputStream(file);
+                 FileChannel channel = fis.getChannel()) {
+                long fileSize = channel.size();
+
+                if (fileSize > size) {
+                    throw new MemoryRangeException("File will not fit in available memory.");
+                } else {
+                    // A single read normally fills the buffer, but the channel may return short.
+                    ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+                    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                        // Keep reading
+                    }
+                    buffer.flip();
+                    copyPages(0, buffer);
                 }
             }
         } else {
@@ -95,14 +131,244 @@ public class Memory extends Device {
     }
 
     public int read(int address) throws MemoryAccessException {
-        return this.mem[address];
+        return pages[address / PAGE_SIZE][address % PAGE_SIZE] & 0xff;
+    }
+
+    /**
+     * Copy a range of this memory into an array.
+     *
+     * @param address The device address to start reading from.
+     * @param dest    The array to copy into.
+     * @param offset  The index in <code>dest</code> of the first byte.
+     * @param length  The number of bytes to copy.
+     * @throws MemoryAccessException if the range is outside of this memory.
+     */
+    public void readRange(int address, byte[] dest, int offset, int length) throws MemoryAccessException {
+        checkRange(address, length);
+        while (length > 0) {
+            int pageOffset = address % PAGE_SIZE;
+            int count = Math.min(length, PAGE_SIZE - pageOffset);
+            System.arraycopy(pages[address / PAGE_SIZE], pageOffset, dest, offset, count);
+            address += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Copy an array into a range of this memory.
+     *
+     * @param address The device address to start writing at.
+     * @param src     The array to copy from.
+     * @param offset  The index in <code>src</code> of the first byte.
+     * @param length  The number of bytes to copy.
+     * @throws MemoryAccessException if the memory is read-only, or the range is
+     *                               outside of this memory.
+     */
+    public void writeRange(int address, byte[] src, int offset, int length) throws MemoryAccessException {
+        checkWritable(address, length);
+        copyPages(address, ByteBuffer.wrap(src, offset, length));
+    }
+
+    /**
+     * Copy the remaining bytes of a buffer into this memory, advancing the
+     * buffer's position.
+     *
+     * @param address The device address to start writing at.
+     * @param source  The buffer to copy from.
+     * @throws MemoryAccessException if the memory is read-only, or the bytes
+     *                               will not fit.
+     */
+    public void copyFrom(int address, ByteBuffer source) throws MemoryAccessException {
+        checkWritable(address, source.remaining());
+        copyPages(address, source);
     }
 
     public void fill(int val) {
-        Arrays.fill(this.mem, val);
+        checkNotShared();
+        if ((byte) val == 0) {
+            Arrays.fill(pages, ZERO_PAGE);
+            Arrays.fill(sharedPages, true);
+            pagesReplaced(0, pages.length - 1);
+        } else {
+            for (int i = 0; i < pages.length; i++) {
+                Arrays.fill(writablePage(i), (byte) val);
+            }
+        }
+        memoryChanged(0, size);
+    }
+
+    /**
+     * Fill a range of this memory with a single value.
+     *
+     * @param address The device address to start filling at.
+     * @param length  The number of bytes to fill.
+     * @param val     The value to fill with.
+     * @throws MemoryAccessException if the range is outside of this memory.
+     */
+    public void fill(int address, int length, int val) throws MemoryAccessException {
+        checkNotShared();
+        checkRange(address, length);
+        int start = address;
+        int end = address + length;
+        while (start < end) {
+            int pageOffset = start % PAGE_SIZE;
+            int count = Math.min(end - start, PAGE_SIZE - pageOffset);
+            Arrays.fill(writablePage(start / PAGE_SIZE), pageOffset, pageOffset + count, (byte) val);
+            start += count;
+        }
+        memoryChanged(address, length);
+    }
+
+    /**
+     * Make a new memory over the same address range with the same contents.
+     * The two share every page until one of them writes to it, so forking
+     * costs one reference per page, however large the memory is.
+     */
+    public Memory fork() throws MemoryRangeException {
+        Memory copy = new Memory(startAddress(), endAddress(), readOnly);
+        copy.adoptPages(sharePages());
+        copy.shared = shared;
+        return copy;
+    }
+
+    /**
+     * Return this memory's pages, for a snapshot. From now on each page is
+     * copied before this memory next writes to it, so the returned pages
+     * keep their current contents and must not be modified.
+     */
+    public byte[][] sharePages() {
+        Arrays.fill(sharedPages, true);
+        pagesReplaced(0, pages.length - 1);
+        return pages.clone();
+    }
+
+    /**
+     * Replace the contents of this memory with pages returned by
+     * <code>sharePages()</code>, without copying them. A null page is all
+     * zero. The pages are copied one at a time as they are written.
+     *
+     * @throws IllegalArgumentException if the pages do not fit this memory.
+     */
+    public void adoptPages(byte[][] newPages) {
+        if (newPages.length != pages.length) {
+            throw new IllegalArgumentException("Expected " + pages.length + " pages, not " + newPages.length);
+        }
+        for (int i = 0; i < newPages.length; i++) {
+            byte[] page = newPages[i] == null ? ZERO_PAGE : newPages[i];
+            if (page.length != PAGE_SIZE) {
+                throw new IllegalArgumentException("Page " + i + " is " + page.length + " bytes long");
+            }
+            // A page that is already in place has the same contents.
+            if (page != pages[i]) {
+                pages[i] = page;
+                memoryChanged(i * PAGE_SIZE, Math.min(PAGE_SIZE, size - i * PAGE_SIZE));
+            }
+            sharedPages[i] = true;
+        }
+        pagesReplaced(0, pages.length - 1);
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return true if this is a ROM whose contents are shared with other devices.
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * @return The number of pages holding this memory's contents.
+     */
+    public int getPageCount() {
+        return pages.length;
+    }
+
+    /**
+     * Return the array holding one page of this memory's contents. Pages are
+     * numbered from the start of the device's memory range. The Bus reads
+     * pages directly, and writes directly to pages that are not shared.
+     * Shared pages must not be modified.
+     */
+    public byte[] getPage(int index) {
+        return pages[index];
+    }
+
+    /**
+     * @return true if a page will be copied before it is next written.
+     */
+    public boolean isPageShared(int index) {
+        return sharedPages[index];
     }
 
     public String toString() {
         return "Memory: " + getMemoryRange().toString();
     }
+
+    private byte[] writablePage(int index) {
+        if (sharedPages[index]) {
+            pages[index] = pages[index].clone();
+            sharedPages[index] = false;
+            pagesReplaced(index, index);
+        }
+        return pages[index];
+    }
+
+    private void copyPages(int address, ByteBuffer source) {
+        int start = address;
+        while (source.hasRemaining()) {
+            int pageOffset = address % PAGE_SIZE;
+            int count = Math.min(source.remaining(), PAGE_SIZE - pageOffset);
+            source.get(writablePage(address / PAGE_SIZE), pageOffset, count);
+            address += count;
+        }
+        memoryChanged(start, address - start);
+    }
+
+    private void checkNotShared() {
+        if (shared) {
+            throw new IllegalStateException("Cannot modify a shared ROM image.");
+        }
+    }
+
+    private void checkRange(int address, int length) throws MemoryAccessException {
+        if (address < 0 || length < 0 || address + length > size) {
+            throw new MemoryAccessException("Range of " + length + " bytes at address " + address +
+                                            " is outside of memory.");
+        }
+    }
+
+    private void checkWritable(int address, int length) throws MemoryAccessException {
+        if (readOnly) {
+            throw new MemoryAccessException("Cannot write to read-only memory at address " + address);
+        }
+        checkRange(address, length);
+    }
+
+    /*
+     * Contents changed without going through the bus, so anything the bus
+     * has cached from this range is stale.
+     */
+    private void memoryChanged(int address, int length) {
+        Bus bus = getBus();
+        if (bus != null && length > 0) {
+            int start = startAddress() + address;
+            bus.memoryChanged(start, start + length - 1);
+        }
+    }
+
+    /*
+     * The arrays holding a range of pages, or whether they are shared, have
+     * changed, so the bus must update its page tables.
+     */
+    private void pagesReplaced(int firstPage, int lastPage) {
+        Bus bus = getBus();
+        if (bus != null) {
+            bus.pagesReplaced(startAddress() + firstPage * PAGE_SIZE,
+                              startAddress() + Math.min(size, (lastPage + 1) * PAGE_SIZE) - 1);
+        }
+    }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.devices;
+
+import com.loomcom.symon.exceptions.MemoryRangeException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only ROM images, shared by every Memory device loaded from the same
+ * file. An image is keyed by the file's canonical path and the size of the
+ * device, and is reloaded when the file's modification time or length
+ * changes. Images are only read through the Bus, so a single copy can back
+ * any number of machines.
+ */
+final class RomImageCache {
+
+    private static class Entry {
+        final long lastModified;
+        final long length;
+        final byte[][] image;
+
+        Entry(long lastModified, long length, byte[][] image) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.image = image;
+        }
+    }
+
+    private static final Map<String, Entry> images = new HashMap<>();
+
+    private RomImageCache() {}
+
+    /**
+     * Return the contents of a ROM file as Memory pages, padded with zeros
+     * to the size of the device. The returned pages are shared and must not
+     * be modified.
+     *
+     * @throws MemoryRangeException if the file is larger than the device.
+     * @throws IOException if the file cannot be read.
+     */
+    static synchronized byte[][] get(File file, int size) throws MemoryRangeException, IOException {
+        if (!file.canRead()) {
+            throw new IOException("Cannot open file " + file);
+        }
+
+        String key = file.getCanonicalPath() + "|" + size;
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        Entry entry = images.get(key);
+        if (entry == null || entry.lastModified != lastModified || entry.length != length) {
+            entry = new Entry(lastModified, length, load(file, size));
+            images.put(key, entry);
+        }
+
+        return entry.image;
+    }
+
+    private static byte[][] load(File file, int size) throws MemoryRangeException, IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long fileSize = channel.size();
+            if (fileSize > size) {
+                throw new MemoryRangeException("File will not fit in available memory.");
+            }
+
+            byte[][] image = new byte[(size + Memory.PAGE_SIZE - 1) / Memory.PAGE_SIZE][Memory.PAGE_SIZE];
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            for (byte[] page : image) {
+                buffer.get(page, 0, Math.min(page.length, buffer.remaining()));
+            }
+            return image;
+        }
+    }
+}
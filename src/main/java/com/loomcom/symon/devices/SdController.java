@@ -28,6 +28,8 @@ package com.loomcom.symon.devices;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -202,6 +204,36 @@ public class SdController extends Device {
         }
     }
 
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(lba0);
+        out.writeInt(lba1);
+        out.writeInt(lba2);
+        out.writeInt(position);
+        out.writeByte(status.ordinal());
+        out.write(readBuffer);
+        out.write(writeBuffer);
+        out.writeInt(readPosition);
+        out.writeInt(writePosition);
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        lba0 = in.readInt();
+        lba1 = in.readInt();
+        lba2 = in.readInt();
+        position = in.readInt();
+        int statusOrdinal = in.readUnsignedByte();
+        if (statusOrdinal >= Status.values().length) {
+            throw new IOException("Bad SD controller status " + statusOrdinal);
+        }
+        status = Status.values()[statusOrdinal];
+        in.readFully(readBuffer);
+        in.readFully(writeBuffer);
+        readPosition = in.readInt();
+        writePosition = in.readInt();
+    }
+
     @Override
     public String toString() {
         return getName() + "@" + String.format("%04X", this.getMemoryRange().startAddress);
@@ -23,13 +23,33 @@
 
 package com.loomcom.symon.devices;
 
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.CpuState;
+import com.loomcom.symon.CycleEventQueue;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
- * Very basic implementation of a MOS 6522 VIA.
- *
- * TODO: Implement timers as threads.
+ * Basic implementation of a MOS 6522 VIA: the two I/O ports, the interval
+ * timers, and the interrupt flag and enable registers.
+ * <p/>
+ * The timers are not counted down cycle by cycle. Instead, each timer
+ * schedules an event on the CPU's {@link CycleEventQueue} for the cycle it
+ * will next run out, and its counter is worked out from that cycle when it
+ * is read. A running timer costs nothing until it runs out, and its
+ * interrupts arrive at the same instruction on every run.
+ * <p/>
+ * Timer 1 runs out N + 2 cycles after N is written to its high counter
+ * byte, and is then reloaded from its latches, in both one-shot and
+ * free-running mode. Only the first time out after a write sets its
+ * interrupt flag in one-shot mode. Timer 2 runs out once, and keeps
+ * counting down from $FFFF, unless it is counting PB6 pulses, of which
+ * there are none. Nothing is connected to the ports, control lines or
+ * shift register, so port inputs read as 1s.
  */
 public class Via6522 extends Pia {
     public static final int VIA_SIZE = 16;
@@ -39,71 +59,358 @@ public class Via6522 extends Pia {
         T2C_L, T2C_H, SR, ACR, PCR, IFR, IER, ORA_H
     }
 
+    // Interrupt flag and enable bits
+    static final int IRQ_CA2 = 0x01;
+    static final int IRQ_CA1 = 0x02;
+    static final int IRQ_SR = 0x04;
+    static final int IRQ_CB2 = 0x08;
+    static final int IRQ_CB1 = 0x10;
+    static final int IRQ_T2 = 0x20;
+    static final int IRQ_T1 = 0x40;
+    static final int IRQ_ANY = 0x80;
+
+    // Auxiliary control register bits
+    private static final int ACR_T1_FREE_RUN = 0x40;
+    private static final int ACR_T2_COUNT_PULSES = 0x20;
+
+    // Timer 2 keeps counting after it runs out, and wraps around every 64K cycles.
+    private static final int T2_WRAP_CYCLES = 0x10000;
+
+    private static final Register[] REGISTERS = Register.values();
+
+    private int ora;
+    private int orb;
+    private int ddra;
+    private int ddrb;
+    private int sr;
+    private int acr;
+    private int pcr;
+    private int ifr;
+    private int ier;
+
+    private int t1Latch;
+    // Timer 1 only sets its interrupt flag on the first time out in one-shot mode.
+    private boolean t1Armed;
+
+    private int t2LatchLow;
+    private boolean t2Armed;
+    // The value of timer 2 while it is not counting down.
+    private int t2Counter;
+
+    private final CycleEventQueue.Event t1Event = new CycleEventQueue.Event() {
+        @Override
+        public void fire(long cycle) {
+            if (t1Armed) {
+                t1Armed = (acr & ACR_T1_FREE_RUN) != 0;
+                setInterruptFlag(IRQ_T1);
+            }
+            events.schedule(this, cycle + t1Latch + 2);
+        }
+    };
+
+    private final CycleEventQueue.Event t2Event = new CycleEventQueue.Event() {
+        @Override
+        public void fire(long cycle) {
+            if (t2Armed) {
+                t2Armed = false;
+                setInterruptFlag(IRQ_T2);
+            }
+            events.schedule(this, cycle + T2_WRAP_CYCLES);
+        }
+    };
+
+    private CycleEventQueue events;
+    private CpuState clock;
+
     public Via6522(int address) throws MemoryRangeException {
         super(address, address + VIA_SIZE - 1, "MOS 6522 VIA");
     }
 
     @Override
     public void write(int address, int data) throws MemoryAccessException {
-        Register[] registers = Register.values();
-
-        if (address >= registers.length) {
-            throw new MemoryAccessException("Unknown register: " + address);
-        }
-
-        Register r = registers[address];
+        Register r = register(address);
 
         switch (r) {
             case ORA:
+                clearInterruptFlags(IRQ_CA1 | IRQ_CA2);
+                ora = data;
+                break;
+            case ORA_H:
+                ora = data;
+                break;
             case ORB:
+                clearInterruptFlags(IRQ_CB1 | IRQ_CB2);
+                orb = data;
+                break;
             case DDRA:
+                ddra = data;
+                break;
             case DDRB:
+                ddrb = data;
+                break;
             case T1C_L:
-            case T1C_H:
             case T1L_L:
+                t1Latch = (t1Latch & 0xff00) | data;
+                break;
+            case T1C_H:
+                t1Latch = (t1Latch & 0x00ff) | (data << 8);
+                clearInterruptFlags(IRQ_T1);
+                t1Armed = true;
+                if (attach()) {
+                    events.schedule(t1Event, cycles() + t1Latch + 2);
+                }
+                break;
             case T1L_H:
+                t1Latch = (t1Latch & 0x00ff) | (data << 8);
+                clearInterruptFlags(IRQ_T1);
+                break;
             case T2C_L:
+                t2LatchLow = data;
+                break;
             case T2C_H:
+                t2Counter = (data << 8) | t2LatchLow;
+                clearInterruptFlags(IRQ_T2);
+                t2Armed = true;
+                if ((acr & ACR_T2_COUNT_PULSES) == 0 && attach()) {
+                    events.schedule(t2Event, cycles() + t2Counter + 2);
+                }
+                break;
             case SR:
+                clearInterruptFlags(IRQ_SR);
+                sr = data;
+                break;
             case ACR:
+                writeAcr(data);
+                break;
             case PCR:
+                pcr = data;
+                break;
             case IFR:
+                // Writing a 1 clears a flag.
+                clearInterruptFlags(data & 0x7f);
+                break;
             case IER:
-            case ORA_H:
+                if ((data & 0x80) != 0) {
+                    ier |= data & 0x7f;
+                    if ((ifr & ier) != 0) {
+                        assertIrq();
+                    }
+                } else {
+                    ier &= ~data & 0x7f;
+                }
+                break;
             default:
         }
     }
 
     @Override
     public int read(int address) throws MemoryAccessException {
-        Register[] registers = Register.values();
-
-        if (address >= registers.length) {
-            throw new MemoryAccessException("Unknown register: " + address);
-        }
-
-        Register r = registers[address];
+        Register r = register(address);
 
         switch (r) {
             case ORA:
+                clearInterruptFlags(IRQ_CA1 | IRQ_CA2);
+                return (ora & ddra) | ~ddra & 0xff;
+            case ORA_H:
+                return (ora & ddra) | ~ddra & 0xff;
             case ORB:
+                clearInterruptFlags(IRQ_CB1 | IRQ_CB2);
+                return (orb & ddrb) | ~ddrb & 0xff;
             case DDRA:
+                return ddra;
             case DDRB:
+                return ddrb;
             case T1C_L:
+                clearInterruptFlags(IRQ_T1);
+                return getTimer1() & 0xff;
             case T1C_H:
+                return getTimer1() >> 8;
             case T1L_L:
+                return t1Latch & 0xff;
             case T1L_H:
+                return t1Latch >> 8;
             case T2C_L:
+                clearInterruptFlags(IRQ_T2);
+                return getTimer2() & 0xff;
             case T2C_H:
+                return getTimer2() >> 8;
             case SR:
+                clearInterruptFlags(IRQ_SR);
+                return sr;
             case ACR:
+                return acr;
             case PCR:
+                return pcr;
             case IFR:
+                return getInterruptFlags();
             case IER:
-            case ORA_H:
+                return ier | 0x80;
             default:
+                return 0;
         }
+    }
+
+    /**
+     * @return The value of timer 1, as the CPU would read it now.
+     */
+    int getTimer1() {
+        if (!t1Event.isScheduled()) {
+            // Never started.
+            return t1Latch;
+        }
+        return counterValue(t1Event.getCycle() - cycles(), t1Latch);
+    }
+
+    /**
+     * @return The value of timer 2, as the CPU would read it now.
+     */
+    int getTimer2() {
+        if (!t2Event.isScheduled()) {
+            return t2Counter;
+        }
+        return counterValue(t2Event.getCycle() - cycles(), t2Armed ? t2Counter : 0xffff);
+    }
+
+    /**
+     * @return The interrupt flag register, with bit 7 set if any enabled
+     *         interrupt is flagged.
+     */
+    int getInterruptFlags() {
+        return (ifr & ier) != 0 ? ifr | IRQ_ANY : ifr;
+    }
 
-        return 0;
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeByte(ora);
+        out.writeByte(orb);
+        out.writeByte(ddra);
+        out.writeByte(ddrb);
+        out.writeByte(sr);
+        out.writeByte(acr);
+        out.writeByte(pcr);
+        out.writeByte(ifr);
+        out.writeByte(ier);
+        out.writeShort(t1Latch);
+        out.writeBoolean(t1Armed);
+        writeEvent(out, t1Event);
+        out.writeByte(t2LatchLow);
+        out.writeBoolean(t2Armed);
+        out.writeShort(t2Counter);
+        writeEvent(out, t2Event);
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        ora = in.readUnsignedByte();
+        orb = in.readUnsignedByte();
+        ddra = in.readUnsignedByte();
+        ddrb = in.readUnsignedByte();
+        sr = in.readUnsignedByte();
+        acr = in.readUnsignedByte();
+        pcr = in.readUnsignedByte();
+        ifr = in.readUnsignedByte();
+        ier = in.readUnsignedByte();
+        t1Latch = in.readUnsignedShort();
+        t1Armed = in.readBoolean();
+        readEvent(in, t1Event);
+        t2LatchLow = in.readUnsignedByte();
+        t2Armed = in.readBoolean();
+        t2Counter = in.readUnsignedShort();
+        readEvent(in, t2Event);
+    }
+
+    @Override
+    public String toString() {
+        return "MOS 6522 VIA";
+    }
+
+    private void writeAcr(int data) {
+        boolean wasCountingPulses = (acr & ACR_T2_COUNT_PULSES) != 0;
+        boolean countPulses = (data & ACR_T2_COUNT_PULSES) != 0;
+        if (countPulses && !wasCountingPulses) {
+            // Timer 2 stops, as there are no pulses to count.
+            t2Counter = getTimer2();
+            if (events != null) {
+                events.cancel(t2Event);
+            }
+        }
+        acr = data;
+    }
+
+    private void writeEvent(DataOutput out, CycleEventQueue.Event event) throws IOException {
+        out.writeBoolean(event.isScheduled());
+        out.writeLong(event.getCycle());
+    }
+
+    private void readEvent(DataInput in, CycleEventQueue.Event event) throws IOException {
+        boolean scheduled = in.readBoolean();
+        long cycle = in.readLong();
+        if (!attach()) {
+            return;
+        }
+        if (scheduled) {
+            events.schedule(event, cycle);
+        } else {
+            events.cancel(event);
+        }
+    }
+
+    /*
+     * A counter that is "remaining" cycles away from running out reads as
+     * one less, until it reads 0 in its last cycle and $FFFF as it runs out.
+     * Just after it is loaded, it still holds the value loaded.
+     */
+    private static int counterValue(long remaining, int loaded) {
+        if (remaining <= 0) {
+            return 0xffff;
+        }
+        return (int) Math.min(remaining - 1, loaded);
+    }
+
+    private void setInterruptFlag(int flag) {
+        ifr |= flag;
+        if ((ier & flag) != 0) {
+            assertIrq();
+        }
+    }
+
+    private void clearInterruptFlags(int flags) {
+        ifr &= ~flags;
+    }
+
+    private void assertIrq() {
+        Bus bus = getBus();
+        if (bus != null) {
+            bus.assertIrq();
+        }
+    }
+
+    /**
+     * Find the CPU's clock and event queue, the first time they are needed.
+     *
+     * @return false if the VIA is not yet on a bus with a CPU, in which
+     *         case the timers do not run.
+     */
+    private boolean attach() {
+        if (events == null) {
+            Bus bus = getBus();
+            if (bus == null || bus.getCpu() == null) {
+                return false;
+            }
+            clock = bus.getCpu().getCpuState();
+            events = bus.getCpu().getEventQueue();
+        }
+        return true;
+    }
+
+    private long cycles() {
+        return attach() ? clock.cycleCounter : 0;
+    }
+
+    private static Register register(int address) throws MemoryAccessException {
+        if (address >= REGISTERS.length) {
+            throw new MemoryAccessException("Unknown register: " + address);
+        }
+        return REGISTERS[address];
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Connects the ACIA to a pair of streams, such as standard input and
+ * output, an input script and an output capture file, or any mix of the
+ * two. Closing the endpoint flushes the output, and closes only the
+ * streams it was given to own, so that standard input and output stay
+ * open.
+ */
+public class StreamEndpoint implements AciaEndpoint {
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final String description;
+    private final List<Closeable> owned;
+
+    /**
+     * @param in          Input for the ACIA.
+     * @param out         Output from the ACIA.
+     * @param description A short description, for logging.
+     * @param owned       Streams to close when the endpoint is closed.
+     */
+    public StreamEndpoint(InputStream in, OutputStream out, String description, Closeable... owned) {
+        this.in = in;
+        this.out = out;
+        this.description = description;
+        this.owned = Arrays.asList(owned);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        try {
+            out.flush();
+        } catch (IOException ex) {
+            failure = ex;
+        }
+        for (Closeable stream : owned) {
+            try {
+                stream.close();
+            } catch (IOException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
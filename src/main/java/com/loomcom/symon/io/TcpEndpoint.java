@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Connects the ACIA to clients of a TCP port on the loopback interface,
+ * like a serial line on a terminal server. Any number of clients may be
+ * connected at once: what they type is merged into the ACIA's input, and
+ * everything the ACIA transmits is sent to all of them. Connect with
+ * <code>telnet localhost &lt;port&gt;</code>, <code>nc</code>, or a script.
+ * <p/>
+ * All channels are non-blocking, and there is no thread of its own: new
+ * clients and their input are picked up whenever the engine polls the
+ * input stream. Output a client's socket has no room for is kept in a
+ * backlog for that client, and sent as room appears, so a slow client never
+ * holds back the simulator or the other clients. A client that falls more
+ * than <code>MAX_BACKLOG</code> bytes behind, or stops reading altogether,
+ * is disconnected.
+ * <p/>
+ * The input stream keeps the usual contract: a read with no input waiting
+ * blocks until a client sends some, and only returns -1 once the endpoint
+ * is closed. The engine never blocks, since it only reads what
+ * <code>available()</code> reports.
+ */
+public class TcpEndpoint implements AciaEndpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(TcpEndpoint.class);
+
+    private static final int INPUT_BUFFER_SIZE = 4096;
+
+    // The most output a client may fall behind by before it is dropped.
+    public static final int MAX_BACKLOG = 65536;
+
+    /**
+     * A connected client, and the output its socket had no room for yet.
+     */
+    private static class Client {
+        final SocketChannel channel;
+        // Kept ready to write; null until first needed
+        ByteBuffer backlog;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean hasBacklog() {
+            return backlog != null && backlog.hasRemaining();
+        }
+    }
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final List<Client> clients = new ArrayList<>();
+
+    // Reads blocked in selector.select(), which doesn't hold the endpoint's lock
+    private int blockedReads;
+
+    // Input from all clients, not yet read by the ACIA. Kept ready to read.
+    private final ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+
+    private final InputStream inputStream = new TcpInputStream();
+    private final OutputStream outputStream = new TcpOutputStream();
+
+    /**
+     * Listen on a port of the loopback interface.
+     *
+     * @param port The port, or 0 to use any free port.
+     */
+    public TcpEndpoint(int port) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            server.close();
+            selector.close();
+            throw ex;
+        }
+        input.flip();
+    }
+
+    /**
+     * @return The port being listened on.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * @return The number of clients connected.
+     */
+    public synchronized int getClientCount() {
+        return clients.size();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public String getDescription() {
+        return "localhost:" + getPort();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Client client : new ArrayList<>(clients)) {
+            // Send what the socket will take now, without waiting for more.
+            try {
+                flush(client);
+            } catch (IOException ex) {
+                // Closing anyway.
+            }
+            disconnect(client);
+        }
+        server.close();
+        selector.close();
+    }
+
+    /**
+     * Send as much of each client's backlog as its socket will take.
+     */
+    private void flushBacklogs() {
+        // Backward, since a client may be disconnected on the way.
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            Client client = clients.get(i);
+            if (client.hasBacklog()) {
+                try {
+                    flush(client);
+                } catch (IOException ex) {
+                    disconnect(client);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accept new clients, and read whatever input is waiting, without
+     * blocking.
+     */
+    private void poll() throws IOException {
+        if (!selector.isOpen()) {
+            return;
+        }
+        if (blockedReads > 0) {
+            // A selectNow() would wait for the blocked select() to return.
+            // Wake it instead, and let the blocked read take the input.
+            selector.wakeup();
+            return;
+        }
+        // A blocked read may have left keys selected, so check them all,
+        // not just those selectNow() reports.
+        selector.selectNow();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                accept();
+            } else if (key.isReadable()) {
+                receive((Client) key.attachment());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = server.accept();
+        if (client == null) {
+            return;
+        }
+        client.configureBlocking(false);
+        client.socket().setTcpNoDelay(true);
+        Client connected = new Client(client);
+        client.register(selector, SelectionKey.OP_READ, connected);
+        clients.add(connected);
+        logger.info("ACIA client connected from {}", client.socket().getRemoteSocketAddress());
+    }
+
+    private void receive(Client client) {
+        // If the buffer is full, the input waits in the socket until there is room.
+        input.compact();
+        try {
+            if (client.channel.read(input) < 0) {
+                disconnect(client);
+            }
+        } catch (IOException ex) {
+            disconnect(client);
+        } finally {
+            input.flip();
+        }
+    }
+
+    /*
+     * Send output to a client without blocking. Whatever the socket has no
+     * room for goes into the client's backlog, behind any output already
+     * there.
+     */
+    private void send(Client client, ByteBuffer buffer) {
+        try {
+            if (flush(client)) {
+                client.channel.write(buffer);
+            }
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+
+            ByteBuffer backlog = client.backlog;
+            if (backlog == null) {
+                backlog = ByteBuffer.allocate(MAX_BACKLOG);
+                backlog.flip();
+                client.backlog = backlog;
+            }
+            backlog.compact();
+            if (backlog.remaining() < buffer.remaining()) {
+                backlog.flip();
+                logger.warn("Dropping ACIA client that is not taking output.");
+                disconnect(client);
+                return;
+            }
+            backlog.put(buffer);
+            backlog.flip();
+        } catch (IOException ex) {
+            disconnect(client);
+        }
+    }
+
+    /**
+     * Write as much of a client's backlog as its socket will take.
+     *
+     * @return True if the backlog is now empty.
+     */
+    private boolean flush(Client client) throws IOException {
+        if (!client.hasBacklog()) {
+            return true;
+        }
+        client.channel.write(client.backlog);
+        return !client.backlog.hasRemaining();
+    }
+
+    private void disconnect(Client client) {
+        SocketChannel channel = client.channel;
+        if (clients.remove(client)) {
+            logger.info("ACIA client disconnected from {}", channel.socket().getRemoteSocketAddress());
+        }
+        SelectionKey key = channel.keyFor(selector);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Already gone.
+        }
+    }
+
+    private class TcpInputStream extends InputStream {
+        @Override
+        public int available() throws IOException {
+            synchronized (TcpEndpoint.this) {
+                flushBacklogs();
+                if (!input.hasRemaining()) {
+                    poll();
+                }
+                return input.remaining();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        /**
+         * Read what input is waiting, blocking until there is some.
+         *
+         * @return The number of bytes read, or -1 if the endpoint was closed.
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                synchronized (TcpEndpoint.this) {
+                    int n = Math.min(len, available());
+                    if (n > 0) {
+                        input.get(b, off, n);
+                        return n;
+                    }
+                    if (!selector.isOpen()) {
+                        return -1;
+                    }
+                    blockedReads++;
+                }
+                // Wait without the lock, so that output and close() go on.
+                try {
+                    selector.select();
+                } catch (ClosedSelectorException ex) {
+                    // Closed while waiting; the next pass returns -1.
+                } finally {
+                    synchronized (TcpEndpoint.this) {
+                        blockedReads--;
+                    }
+                }
+            }
+        }
+    }
+
+    private class TcpOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            synchronized (TcpEndpoint.this) {
+                for (Client client : new ArrayList<>(clients)) {
+                    send(client, ByteBuffer.wrap(b, off, len));
+                }
+            }
+        }
+    }
+}
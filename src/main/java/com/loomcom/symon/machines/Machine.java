@@ -32,6 +32,8 @@ import com.loomcom.symon.devices.Memory;
 import com.loomcom.symon.devices.Pia;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.io.IOException;
+
 
 public interface Machine {
     
@@ -58,4 +60,25 @@ public interface Machine {
     int getMemorySize();
 
     String getName();
+
+    /**
+     * Capture the state of the CPU, RAM and devices. The machine should not
+     * be running.
+     */
+    MachineSnapshot snapshot();
+
+    /**
+     * Return to a state captured by <code>snapshot()</code>.
+     *
+     * @throws IOException if the snapshot is of a different machine.
+     */
+    void restore(MachineSnapshot snapshot) throws IOException;
+
+    /**
+     * Make a new machine in the same state as this one. The two share their
+     * RAM and ROM page by page, and a page is only copied when one of them
+     * first writes to it, so a fork costs little more than building an empty
+     * machine. The machine should not be running.
+     */
+    Machine fork() throws Exception;
 }
@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.machines;
+
+import com.loomcom.symon.CpuState;
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.Memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The complete state of a machine at one moment: the CPU registers, the
+ * contents of every writable Memory device, and the registers of every
+ * other device. ROMs are not included, since they can't change.
+ * <p/>
+ * A snapshot shares memory pages with the machine it was taken from, and
+ * with every machine it is restored to: a page is only copied when one of
+ * them next writes to it. Taking or restoring a snapshot therefore costs one
+ * reference per page, and one snapshot can be restored any number of times.
+ * It can also be written to a stream in a compact, versioned binary format:
+ * <pre>
+ *   int     magic ("SYMS")
+ *   short   format version
+ *   then, deflated:
+ *   UTF     machine name
+ *   ...     CPU registers, flags and counters
+ *   int     number of memory images
+ *     int   start address, int length
+ *     byte  one flag per 256-byte page, set if the page is not all zero
+ *     byte  the contents of each flagged page
+ *   int     number of devices
+ *     UTF   device class, int start address, int state length, state
+ * </pre>
+ */
+public class MachineSnapshot {
+
+    public static final int FORMAT_VERSION = 4;
+
+    private static final int MAGIC = 0x53594d53;
+    private static final int PAGE_SIZE = Memory.PAGE_SIZE;
+
+    private final String machineName;
+    private final CpuState cpuState;
+
+    private final int[] memoryAddresses;
+    private final int[] memorySizes;
+    private final byte[][][] memoryPages;
+
+    private final String[] deviceClasses;
+    private final int[] deviceAddresses;
+    private final byte[][] deviceStates;
+
+    private MachineSnapshot(String machineName, CpuState cpuState,
+                            int[] memoryAddresses, int[] memorySizes, byte[][][] memoryPages,
+                            String[] deviceClasses, int[] deviceAddresses, byte[][] deviceStates) {
+        this.machineName = machineName;
+        this.cpuState = cpuState;
+        this.memoryAddresses = memoryAddresses;
+        this.memorySizes = memorySizes;
+        this.memoryPages = memoryPages;
+        this.deviceClasses = deviceClasses;
+        this.deviceAddresses = deviceAddresses;
+        this.deviceStates = deviceStates;
+    }
+
+    /**
+     * Take a snapshot of a machine. The machine should not be running.
+     */
+    public static MachineSnapshot take(Machine machine) {
+        List<Memory> memories = writableMemories(machine);
+        List<Device> devices = stateDevices(machine);
+
+        int[] memoryAddresses = new int[memories.size()];
+        int[] memorySizes = new int[memories.size()];
+        byte[][][] memoryPages = new byte[memories.size()][][];
+        for (int i = 0; i < memories.size(); i++) {
+            Memory memory = memories.get(i);
+            memoryAddresses[i] = memory.startAddress();
+            memorySizes[i] = memory.getSize();
+            memoryPages[i] = memory.sharePages();
+        }
+
+        String[] deviceClasses = new String[devices.size()];
+        int[] deviceAddresses = new int[devices.size()];
+        for (int i = 0; i < devices.size(); i++) {
+            Device device = devices.get(i);
+            deviceClasses[i] = device.getClass().getName();
+            deviceAddresses[i] = device.startAddress();
+        }
+        byte[][] deviceStates = saveDeviceStates(devices);
+
+        return new MachineSnapshot(machine.getName(), new CpuState(machine.getCpu().getCpuState()),
+                                   memoryAddresses, memorySizes, memoryPages,
+                                   deviceClasses, deviceAddresses, deviceStates);
+    }
+
+    /**
+     * Put a machine back into the state held by this snapshot. The machine
+     * must be of the same kind as the one the snapshot was taken from, and
+     * should not be running.
+     *
+     * @throws IOException if the snapshot does not fit the machine.
+     */
+    public void restore(Machine machine) throws IOException {
+        if (!machineName.equals(machine.getName())) {
+            throw new IOException("Snapshot is of a " + machineName + " machine, not " + machine.getName());
+        }
+
+        List<Memory> memories = writableMemories(machine);
+        List<Device> devices = stateDevices(machine);
+        if (memories.size() != memoryPages.length || devices.size() != deviceStates.length) {
+            throw new IOException("Snapshot does not match the devices of this machine");
+        }
+        for (int i = 0; i < memories.size(); i++) {
+            Memory memory = memories.get(i);
+            if (memory.startAddress() != memoryAddresses[i] || memory.getSize() != memorySizes[i]) {
+                throw new IOException("Snapshot does not match memory at $" +
+                                      Integer.toHexString(memory.startAddress()));
+            }
+        }
+        for (int i = 0; i < devices.size(); i++) {
+            Device device = devices.get(i);
+            if (!device.getClass().getName().equals(deviceClasses[i]) ||
+                    device.startAddress() != deviceAddresses[i]) {
+                throw new IOException("Snapshot does not match device " + device.getName());
+            }
+        }
+
+        for (int i = 0; i < memories.size(); i++) {
+            memories.get(i).adoptPages(memoryPages[i]);
+        }
+        loadDeviceStates(devices, deviceStates);
+        machine.getCpu().getCpuState().copyFrom(cpuState);
+    }
+
+    public String getMachineName() {
+        return machineName;
+    }
+
+    /**
+     * @return A copy of the CPU state held by this snapshot.
+     */
+    public CpuState getCpuState() {
+        return new CpuState(cpuState);
+    }
+
+    /**
+     * Write this snapshot in the binary format described above.
+     */
+    public void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream header = new DataOutputStream(stream);
+        header.writeInt(MAGIC);
+        header.writeShort(FORMAT_VERSION);
+        header.flush();
+
+        DeflaterOutputStream deflater = new DeflaterOutputStream(stream);
+        DataOutputStream out = new DataOutputStream(deflater);
+
+        out.writeUTF(machineName);
+        writeCpuState(out, cpuState);
+
+        out.writeInt(memoryPages.length);
+        for (int i = 0; i < memoryPages.length; i++) {
+            byte[][] pages = memoryPages[i];
+            out.writeInt(memoryAddresses[i]);
+            out.writeInt(memorySizes[i]);
+
+            boolean[] nonZero = new boolean[pages.length];
+            for (int page = 0; page < pages.length; page++) {
+                nonZero[page] = !isZero(pages[page], pageLength(memorySizes[i], page));
+                out.writeBoolean(nonZero[page]);
+            }
+            for (int page = 0; page < pages.length; page++) {
+                if (nonZero[page]) {
+                    out.write(pages[page], 0, pageLength(memorySizes[i], page));
+                }
+            }
+        }
+
+        out.writeInt(deviceStates.length);
+        for (int i = 0; i < deviceStates.length; i++) {
+            out.writeUTF(deviceClasses[i]);
+            out.writeInt(deviceAddresses[i]);
+            out.writeInt(deviceStates[i].length);
+            out.write(deviceStates[i]);
+        }
+
+        out.flush();
+        deflater.finish();
+        stream.flush();
+    }
+
+    /**
+     * Read a snapshot written by <code>writeTo()</code>.
+     *
+     * @throws IOException if the data is not a snapshot, or is of an
+     *                     unsupported version.
+     */
+    public static MachineSnapshot readFrom(InputStream stream) throws IOException {
+        DataInputStream header = new DataInputStream(stream);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("Not a machine snapshot");
+        }
+        int version = header.readUnsignedShort();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+
+        DataInputStream in = new DataInputStream(new InflaterInputStream(stream));
+
+        String machineName = in.readUTF();
+        CpuState cpuState = readCpuState(in);
+
+        int memoryCount = in.readInt();
+        checkCount(memoryCount);
+        int[] memoryAddresses = new int[memoryCount];
+        int[] memorySizes = new int[memoryCount];
+        byte[][][] memoryPages = new byte[memoryCount][][];
+        for (int i = 0; i < memoryCount; i++) {
+            memoryAddresses[i] = in.readInt();
+            int length = in.readInt();
+            if (length < 0 || length > 0x10000) {
+                throw new IOException("Bad memory image length " + length);
+            }
+            // Pages that are all zero are left null.
+            byte[][] pages = new byte[(length + PAGE_SIZE - 1) / PAGE_SIZE][];
+            boolean[] nonZero = new boolean[pages.length];
+            for (int page = 0; page < pages.length; page++) {
+                nonZero[page] = in.readBoolean();
+            }
+            for (int page = 0; page < pages.length; page++) {
+                if (nonZero[page]) {
+                    pages[page] = new byte[PAGE_SIZE];
+                    in.readFully(pages[page], 0, pageLength(length, page));
+                }
+            }
+            memorySizes[i] = length;
+            memoryPages[i] = pages;
+        }
+
+        int deviceCount = in.readInt();
+        checkCount(deviceCount);
+        String[] deviceClasses = new String[deviceCount];
+        int[] deviceAddresses = new int[deviceCount];
+        byte[][] deviceStates = new byte[deviceCount][];
+        for (int i = 0; i < deviceCount; i++) {
+            deviceClasses[i] = in.readUTF();
+            deviceAddresses[i] = in.readInt();
+            int length = in.readInt();
+            if (length < 0 || length > 0x10000) {
+                throw new IOException("Bad device state length " + length);
+            }
+            deviceStates[i] = new byte[length];
+            in.readFully(deviceStates[i]);
+        }
+
+        return new MachineSnapshot(machineName, cpuState, memoryAddresses, memorySizes, memoryPages,
+                                   deviceClasses, deviceAddresses, deviceStates);
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeTo(bytes);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static MachineSnapshot fromByteArray(byte[] bytes) throws IOException {
+        return readFrom(new ByteArrayInputStream(bytes));
+    }
+
+    private static List<Memory> writableMemories(Machine machine) {
+        List<Memory> memories = new ArrayList<>();
+        for (Device device : machine.getBus().getDevices()) {
+            if (device instanceof Memory && !((Memory) device).isReadOnly()) {
+                memories.add((Memory) device);
+            }
+        }
+        return memories;
+    }
+
+    /**
+     * @return Every device of a machine whose state is saved with
+     *         <code>saveDeviceStates()</code>, which is every device other
+     *         than Memory, in bus order.
+     */
+    public static List<Device> stateDevices(Machine machine) {
+        List<Device> devices = new ArrayList<>();
+        for (Device device : machine.getBus().getDevices()) {
+            if (!(device instanceof Memory)) {
+                devices.add(device);
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * Save the registers of each of a list of devices.
+     *
+     * @return One array of saved state per device.
+     */
+    public static byte[][] saveDeviceStates(List<Device> devices) {
+        byte[][] states = new byte[devices.size()][];
+        for (int i = 0; i < states.length; i++) {
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            try {
+                devices.get(i).saveState(new DataOutputStream(state));
+            } catch (IOException ex) {
+                // Writing to memory can't fail.
+                throw new IllegalStateException(ex);
+            }
+            states[i] = state.toByteArray();
+        }
+        return states;
+    }
+
+    /**
+     * Put back the registers saved by <code>saveDeviceStates()</code> from
+     * the same list of devices.
+     *
+     * @throws IOException if a saved state is not valid for its device.
+     */
+    public static void loadDeviceStates(List<Device> devices, byte[][] states) throws IOException {
+        for (int i = 0; i < devices.size(); i++) {
+            devices.get(i).loadState(new DataInputStream(new ByteArrayInputStream(states[i])));
+        }
+    }
+
+    private static void writeCpuState(DataOutputStream out, CpuState state) throws IOException {
+        out.writeByte(state.a);
+        out.writeByte(state.x);
+        out.writeByte(state.y);
+        out.writeByte(state.sp);
+        out.writeShort(state.pc);
+        out.writeShort(state.lastPc);
+        out.writeByte(state.ir);
+        out.writeByte(state.args[0]);
+        out.writeByte(state.args[1]);
+        out.writeByte(state.nextIr);
+        out.writeByte(state.nextArgs[0]);
+        out.writeByte(state.nextArgs[1]);
+        out.writeByte(state.instSize);
+        out.writeByte(state.getStatusFlag());
+        out.writeBoolean(state.opTrap);
+        out.writeBoolean(state.irqAsserted);
+        out.writeBoolean(state.nmiAsserted);
+        out.writeLong(state.stepCounter);
+        out.writeLong(state.cycleCounter);
+    }
+
+    private static CpuState readCpuState(DataInputStream in) throws IOException {
+        CpuState state = new CpuState();
+        state.a = in.readUnsignedByte();
+        state.x = in.readUnsignedByte();
+        state.y = in.readUnsignedByte();
+        state.sp = in.readUnsignedByte();
+        state.pc = in.readUnsignedShort();
+        state.lastPc = in.readUnsignedShort();
+        state.ir = in.readUnsignedByte();
+        state.args[0] = in.readUnsignedByte();
+        state.args[1] = in.readUnsignedByte();
+        state.nextIr = in.readUnsignedByte();
+        state.nextArgs[0] = in.readUnsignedByte();
+        state.nextArgs[1] = in.readUnsignedByte();
+        state.instSize = in.readUnsignedByte();
+        state.setStatusFlag(in.readUnsignedByte());
+        state.opTrap = in.readBoolean();
+        state.irqAsserted = in.readBoolean();
+        state.nmiAsserted = in.readBoolean();
+        state.stepCounter = in.readLong();
+        state.cycleCounter = in.readLong();
+        return state;
+    }
+
+    private static void checkCount(int count) throws IOException {
+        if (count < 0 || count > 0x10000) {
+            throw new IOException("Bad count " + count + " in snapshot");
+        }
+    }
+
+    private static int pageLength(int size, int page) {
+        return Math.min(PAGE_SIZE, size - page * PAGE_SIZE);
+    }
+
+    private static boolean isZero(byte[] page, int length) {
+        for (int i = 0; i < length; i++) {
+            if (page[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
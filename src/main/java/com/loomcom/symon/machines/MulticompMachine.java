@@ -34,6 +34,7 @@ import com.loomcom.symon.devices.Pia;
 import com.loomcom.symon.devices.SdController;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 import java.io.File;
+import java.io.IOException;
 import java.util.logging.Logger;
 
 
@@ -158,4 +159,21 @@ public class MulticompMachine implements Machine {
         return "Multicomp";
     }
 
+    @Override
+    public MachineSnapshot snapshot() {
+        return MachineSnapshot.take(this);
+    }
+
+    @Override
+    public void restore(MachineSnapshot snapshot) throws IOException {
+        snapshot.restore(this);
+    }
+
+    @Override
+    public Machine fork() throws Exception {
+        MulticompMachine child = new MulticompMachine();
+        child.setRom(rom.fork());
+        child.restore(snapshot());
+        return child;
+    }
 }
@@ -32,6 +32,8 @@ import com.loomcom.symon.devices.Memory;
 import com.loomcom.symon.devices.Pia;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.io.IOException;
+
 /**
  * A SimpleMachine is the simplest 6502 implementation possible - it
  * consists solely of RAM and a CPU. This machine is primarily useful
@@ -114,4 +116,21 @@ public class SimpleMachine implements Machine {
     public String getName() {
         return "Simple";
     }
+
+    @Override
+    public MachineSnapshot snapshot() {
+        return MachineSnapshot.take(this);
+    }
+
+    @Override
+    public void restore(MachineSnapshot snapshot) throws IOException {
+        snapshot.restore(this);
+    }
+
+    @Override
+    public Machine fork() throws Exception {
+        SimpleMachine child = new SimpleMachine();
+        child.restore(snapshot());
+        return child;
+    }
 }
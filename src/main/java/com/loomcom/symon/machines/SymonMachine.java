@@ -32,6 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 
 public class SymonMachine implements Machine {
     
@@ -161,5 +162,21 @@ public class SymonMachine implements Machine {
         return "Symon";
     }
 
+    @Override
+    public MachineSnapshot snapshot() {
+        return MachineSnapshot.take(this);
+    }
 
+    @Override
+    public void restore(MachineSnapshot snapshot) throws IOException {
+        snapshot.restore(this);
+    }
+
+    @Override
+    public Machine fork() throws Exception {
+        SymonMachine child = new SymonMachine();
+        child.setRom(rom.fork());
+        child.restore(snapshot());
+        return child;
+    }
 }
@@ -24,6 +24,9 @@
 package com.loomcom.symon.ui;
 
 import com.loomcom.symon.Breakpoints;
+import com.loomcom.symon.Condition;
+import com.loomcom.symon.Watchpoints;
+import com.loomcom.symon.exceptions.ConditionSyntaxException;
 import com.loomcom.symon.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,26 +35,43 @@ import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.table.TableModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
- * Simple window to enter breakpoints.
+ * Simple window to enter breakpoints and watchpoints.
+ * <p/>
+ * Breakpoints are entered as <code>ADDR [hits N] [if CONDITION]</code>, for
+ * example <code>1234 if A==$41 &amp;&amp; X>3</code>. Watchpoints are entered as
+ * <code>r ADDR[-ADDR]</code>, <code>w ADDR[-ADDR]</code> or
+ * <code>rw ADDR[-ADDR]</code>. Addresses are in hex.
  */
 public class BreakpointsWindow extends JFrame {
 
     private static final Logger logger = LoggerFactory.getLogger(BreakpointsWindow.class);
 
-    private static final Dimension FRAME_SIZE = new Dimension(240, 280);
+    private static final Dimension FRAME_SIZE = new Dimension(420, 320);
     private static final String EMPTY_STRING = "";
 
+    private static final Pattern BREAKPOINT_PATTERN =
+            Pattern.compile("\\$?([0-9a-fA-F]{1,4})(?:\\s+hits\\s+(\\d{1,9}))?(?:\\s+if\\s+(.+))?");
+    private static final Pattern WATCHPOINT_PATTERN =
+            Pattern.compile("(r|w|rw)\\s+\\$?([0-9a-fA-F]{1,4})(?:\\s*-\\s*\\$?([0-9a-fA-F]{1,4}))?",
+                            Pattern.CASE_INSENSITIVE);
+
     private JFrame mainWindow;
     private Breakpoints breakpoints;
+    private Watchpoints watchpoints;
 
     public BreakpointsWindow(Breakpoints breakpoints,
+                             Watchpoints watchpoints,
                              JFrame mainWindow) {
         this.breakpoints = breakpoints;
+        this.watchpoints = watchpoints;
         this.mainWindow = mainWindow;
         createUi();
     }
@@ -69,55 +89,62 @@ public class BreakpointsWindow extends JFrame {
         final JButton removeButton = new JButton("Del");
         removeButton.setEnabled(false);
 
-        final JTextField addTextField = new JTextField(4);
+        final JTextField addTextField = new JTextField(20);
+        addTextField.setToolTipText("<html>ADDR [hits N] [if CONDITION]<br>" +
+                                    "r|w|rw ADDR[-ADDR] to watch memory</html>");
 
-        final JTable breakpointsTable = new JTable(breakpoints);
-        breakpointsTable.setShowGrid(true);
-        breakpointsTable.setGridColor(Color.LIGHT_GRAY);
-        breakpointsTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        breakpointsTable.getSelectionModel().addListSelectionListener(new ListSelectionListener() {
-            @Override
-            public void valueChanged(ListSelectionEvent e) {
-                if (e.getFirstIndex() > -1) {
-                    removeButton.setEnabled(true);
-                } else {
-                    removeButton.setEnabled(false);
-                }
-            }
-        });
+        final JTable breakpointsTable = makeTable(breakpoints, removeButton);
+        final JTable watchpointsTable = makeTable(watchpoints, removeButton);
 
-        JScrollPane scrollPane = new JScrollPane(breakpointsTable);
-        scrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
-        scrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
+        final JTabbedPane tabbedPane = new JTabbedPane();
+        tabbedPane.addTab("Breakpoints", makeScrollPane(breakpointsTable));
+        tabbedPane.addTab("Watchpoints", makeScrollPane(watchpointsTable));
 
-        breakpointsPanel.add(scrollPane, BorderLayout.CENTER);
+        breakpointsPanel.add(tabbedPane, BorderLayout.CENTER);
 
         ActionListener addBreakpointListener = new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                int value;
-
                 String newBreakpoint = addTextField.getText();
 
-                if (newBreakpoint == null || newBreakpoint.isEmpty()) {
+                if (newBreakpoint == null || newBreakpoint.trim().isEmpty()) {
                     return;
                 }
-
-                try {
-                    value = (Integer.parseInt(addTextField.getText(), 16) & 0xffff);
-                } catch (NumberFormatException ex) {
-                    logger.warn("Can't parse page number {}", newBreakpoint);
-                    return;
-                }
-
-                if (value < 0) {
+                newBreakpoint = newBreakpoint.trim();
+
+                Matcher watchpointMatcher = WATCHPOINT_PATTERN.matcher(newBreakpoint);
+                Matcher breakpointMatcher = BREAKPOINT_PATTERN.matcher(newBreakpoint);
+
+                if (watchpointMatcher.matches()) {
+                    String access = watchpointMatcher.group(1).toLowerCase();
+                    int start = Integer.parseInt(watchpointMatcher.group(2), 16);
+                    int end = watchpointMatcher.group(3) == null ? start : Integer.parseInt(watchpointMatcher.group(3), 16);
+                    int accessBits = (access.contains("r") ? Watchpoints.READ : 0) |
+                                     (access.contains("w") ? Watchpoints.WRITE : 0);
+                    watchpoints.addWatchpoint(start, end, accessBits);
+                    tabbedPane.setSelectedIndex(1);
+                    logger.debug("Added watchpoint {}", newBreakpoint);
+                } else if (breakpointMatcher.matches()) {
+                    int value = Integer.parseInt(breakpointMatcher.group(1), 16) & 0xffff;
+                    int hitCount = breakpointMatcher.group(2) == null ? 1 : Integer.parseInt(breakpointMatcher.group(2));
+                    Condition condition = null;
+                    if (breakpointMatcher.group(3) != null) {
+                        try {
+                            condition = Condition.parse(breakpointMatcher.group(3));
+                        } catch (ConditionSyntaxException ex) {
+                            JOptionPane.showMessageDialog(BreakpointsWindow.this, ex.getMessage(),
+                                                          "Bad Condition", JOptionPane.ERROR_MESSAGE);
+                            return;
+                        }
+                    }
+                    breakpoints.addBreakpoint(new Breakpoints.Breakpoint(value, condition, hitCount));
+                    tabbedPane.setSelectedIndex(0);
+                    logger.debug("Added breakpoint ${}", Utils.wordToHex(value));
+                } else {
+                    logger.warn("Can't parse breakpoint {}", newBreakpoint);
                     return;
                 }
 
-                breakpoints.addBreakpoint(value);
-
-                logger.debug("Added breakpoint ${}", Utils.wordToHex(value));
-
                 addTextField.setText(EMPTY_STRING);
             }
         };
@@ -128,7 +155,11 @@ public class BreakpointsWindow extends JFrame {
         removeButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                breakpoints.removeBreakpointAtIndex(breakpointsTable.getSelectedRow());
+                if (tabbedPane.getSelectedIndex() == 0) {
+                    breakpoints.removeBreakpointAtIndex(breakpointsTable.getSelectedRow());
+                } else {
+                    watchpoints.removeWatchpointAtIndex(watchpointsTable.getSelectedRow());
+                }
             }
         });
 
@@ -149,4 +180,29 @@ public class BreakpointsWindow extends JFrame {
 
         pack();
     }
+
+    private JTable makeTable(TableModel model, final JButton removeButton) {
+        JTable table = new JTable(model);
+        table.setShowGrid(true);
+        table.setGridColor(Color.LIGHT_GRAY);
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        table.getSelectionModel().addListSelectionListener(new ListSelectionListener() {
+            @Override
+            public void valueChanged(ListSelectionEvent e) {
+                if (e.getFirstIndex() > -1) {
+                    removeButton.setEnabled(true);
+                } else {
+                    removeButton.setEnabled(false);
+                }
+            }
+        });
+        return table;
+    }
+
+    private JScrollPane makeScrollPane(JTable table) {
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+        scrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
+        return scrollPane;
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.ui;
+
+import com.loomcom.symon.util.ByteFifo;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Characters transmitted by the ACIA, printed on the console.
+ * <p/>
+ * Printing and repainting the console for every character limits output
+ * heavy programs to the speed of Swing rather than the speed of the CPU.
+ * Instead, the simulator thread only adds characters to a buffer, and a
+ * Swing timer prints everything that has arrived, with a single repaint,
+ * at most {@link #FRAMES_PER_SECOND} times a second. If the buffer fills
+ * up, the writer waits for the next frame, so no output is ever lost.
+ */
+public class ConsoleOutputStream extends OutputStream {
+
+    public static final int FRAMES_PER_SECOND = 60;
+
+    // Enough for well over a frame of output at the fastest simulated speeds.
+    static final int BUFFER_SIZE = 16384;
+
+    // How long a writer waits before checking again for room in a full buffer.
+    private static final long WAIT_FOR_ROOM_NS = 1000000;
+
+    private final Console console;
+
+    // Written by the simulator thread, or the EDT while stepping. Read only by the EDT.
+    private final ByteFifo pending = new ByteFifo(BUFFER_SIZE);
+
+    private final byte[] frame = new byte[BUFFER_SIZE];
+    private final StringBuilder text = new StringBuilder(BUFFER_SIZE);
+
+    private final Timer timer;
+
+    public ConsoleOutputStream(Console console) {
+        this.console = console;
+        this.timer = new Timer(1000 / FRAMES_PER_SECOND, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent actionEvent) {
+                refresh();
+            }
+        });
+        timer.setCoalesce(true);
+    }
+
+    /**
+     * Start printing buffered output on the console.
+     */
+    public void start() {
+        timer.start();
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    @Override
+    public void write(int b) {
+        while (!pending.offer(b)) {
+            waitForRoom();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ByteBuffer src = ByteBuffer.wrap(b, off, len);
+        pending.offer(src);
+        while (src.hasRemaining()) {
+            waitForRoom();
+            pending.offer(src);
+        }
+    }
+
+    /**
+     * Print everything that has been written since the last refresh, with a
+     * single repaint. Must be called on the EDT.
+     *
+     * @return true if anything was printed.
+     */
+    public boolean refresh() {
+        int n = pending.drain(frame, 0, frame.length);
+        if (n == 0) {
+            return false;
+        }
+        text.setLength(0);
+        for (int i = 0; i < n; i++) {
+            text.append((char) (frame[i] & 0xff));
+        }
+        print(text.toString());
+        return true;
+    }
+
+    /**
+     * Throw away any output that has not been printed yet, as when the
+     * console is reset. Must be called on the EDT.
+     */
+    public void discard() {
+        while (pending.drain(frame, 0, frame.length) > 0) {
+            // Keep draining.
+        }
+    }
+
+    /**
+     * @return The number of characters waiting for the next frame.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    protected void print(String s) {
+        console.print(s);
+        console.repaint();
+    }
+
+    private void waitForRoom() {
+        if (SwingUtilities.isEventDispatchThread()) {
+            // Stepping from the UI: the timer can't run until we return, so print now.
+            refresh();
+        } else {
+            LockSupport.parkNanos(WAIT_FOR_ROOM_NS);
+        }
+    }
+}
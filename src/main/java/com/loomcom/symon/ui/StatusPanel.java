@@ -25,6 +25,7 @@ package com.loomcom.symon.ui;
 
 import com.loomcom.symon.Cpu;
 import com.loomcom.symon.CpuState;
+import com.loomcom.symon.SimulatorMetrics;
 import com.loomcom.symon.machines.Machine;
 
 import javax.swing.*;
@@ -33,9 +34,11 @@ import javax.swing.border.EtchedBorder;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.Locale;
 
 /**
- * UI component that displays the current state of the simulated CPU.
+ * UI component that displays the current state of the simulated CPU, and
+ * how fast it is running.
  */
 public class StatusPanel extends JPanel {
 
@@ -69,7 +72,17 @@ public class StatusPanel extends JPanel {
     private JTextField xField;
     private JTextField yField;
 
+    private JTextField mhzField;
+    private JTextField targetField;
+    private JTextField mipsField;
+    private JTextField throttleField;
+    private JTextField driftField;
+    private JTextField traceField;
+    private JTextField uiRefreshField;
+    private JTextField crtcField;
+
     private Machine machine;
+    private SimulatorMetrics metrics;
 
     private static final int EMPTY_BORDER = 10;
     private static final Border LABEL_BORDER = BorderFactory.createEmptyBorder(0, 5, 0, 0);
@@ -77,9 +90,10 @@ public class StatusPanel extends JPanel {
     private static final Dimension LARGE_TEXT_FIELD_SIZE = new Dimension(134, 22);
     private static final Dimension SMALL_TEXT_FIELD_SIZE = new Dimension(65, 22);
 
-    public StatusPanel(Machine machine) {
+    public StatusPanel(Machine machine, SimulatorMetrics metrics) {
         super();
         this.machine = machine;
+        this.metrics = metrics;
         createUi();
     }
 
@@ -286,6 +300,87 @@ public class StatusPanel extends JPanel {
         add(xField, constraints);
         constraints.gridx = 1;
         add(yField, constraints);
+
+        createMetricsUi(constraints);
+    }
+
+    private void createMetricsUi(GridBagConstraints constraints) {
+        JLabel mhzLabel = makeLabel("MHz");
+        JLabel targetLabel = makeLabel("Target");
+        JLabel mipsLabel = makeLabel("MIPS");
+        JLabel throttleLabel = makeLabel("Throttle");
+        JLabel driftLabel = makeLabel("Drift");
+        JLabel traceLabel = makeLabel("Trace");
+        JLabel uiRefreshLabel = makeLabel("UI Refresh");
+        JLabel crtcLabel = makeLabel("CRTC Video");
+
+        mhzLabel.setToolTipText("Effective clock speed");
+        targetLabel.setToolTipText("Configured clock speed");
+        mipsLabel.setToolTipText("Millions of instructions per second");
+        throttleLabel.setToolTipText("Time spent waiting to keep to the configured clock speed");
+        driftLabel.setToolTipText("How far the simulated clock is behind the wall clock");
+        traceLabel.setToolTipText("Trace log refreshes per second");
+        uiRefreshLabel.setToolTipText("Status refreshes per second, and the time each one takes");
+        crtcLabel.setToolTipText("Video frames drawn per second, and the time each one takes");
+
+        mhzField = makeTextField(SMALL_TEXT_FIELD_SIZE, false);
+        targetField = makeTextField(SMALL_TEXT_FIELD_SIZE, false);
+        mipsField = makeTextField(SMALL_TEXT_FIELD_SIZE, false);
+        throttleField = makeTextField(SMALL_TEXT_FIELD_SIZE, false);
+        driftField = makeTextField(SMALL_TEXT_FIELD_SIZE, false);
+        traceField = makeTextField(SMALL_TEXT_FIELD_SIZE, false);
+        uiRefreshField = makeTextField(LARGE_TEXT_FIELD_SIZE, false);
+        crtcField = makeTextField(LARGE_TEXT_FIELD_SIZE, false);
+
+        int row = 10;
+        row = addPair(constraints, row, mhzLabel, mhzField, targetLabel, targetField);
+        row = addPair(constraints, row, mipsLabel, mipsField, throttleLabel, throttleField);
+        row = addPair(constraints, row, driftLabel, driftField, traceLabel, traceField);
+        row = addWide(constraints, row, uiRefreshLabel, uiRefreshField);
+        addWide(constraints, row, crtcLabel, crtcField);
+    }
+
+    /**
+     * Add two labelled fields side by side.
+     *
+     * @return The next free grid row.
+     */
+    private int addPair(GridBagConstraints constraints, int row,
+                        JLabel leftLabel, JTextField leftField,
+                        JLabel rightLabel, JTextField rightField) {
+        constraints.gridwidth = 1;
+        constraints.insets = new Insets(5, 0, 0, 0);
+        constraints.gridx = 0;
+        constraints.gridy = row;
+        add(leftLabel, constraints);
+        constraints.gridx = 1;
+        add(rightLabel, constraints);
+
+        constraints.insets = new Insets(2, 2, 2, 2);
+        constraints.gridx = 0;
+        constraints.gridy = row + 1;
+        add(leftField, constraints);
+        constraints.gridx = 1;
+        add(rightField, constraints);
+        return row + 2;
+    }
+
+    /**
+     * Add a labelled field spanning both columns.
+     *
+     * @return The next free grid row.
+     */
+    private int addWide(GridBagConstraints constraints, int row, JLabel label, JTextField field) {
+        constraints.gridwidth = 2;
+        constraints.gridx = 0;
+        constraints.insets = new Insets(5, 0, 0, 0);
+        constraints.gridy = row;
+        add(label, constraints);
+
+        constraints.insets = new Insets(2, 2, 2, 2);
+        constraints.gridy = row + 1;
+        add(field, constraints);
+        return row + 2;
     }
 
     /**
@@ -316,9 +411,31 @@ public class StatusPanel extends JPanel {
         xField.setText(cpu.getXRegisterStatus());
         yField.setText(cpu.getYRegisterStatus());
 
+        updateMetrics();
+
         repaint();
     }
 
+    /**
+     * Update the display of the most recent performance figures.
+     */
+    private void updateMetrics() {
+        mhzField.setText(format("%.2f", metrics.getEffectiveMhz()));
+        targetField.setText(metrics.getTargetMhz() > 0 ? format("%.2f", metrics.getTargetMhz()) : "Max");
+        mipsField.setText(format("%.2f", metrics.getInstructionsPerSecond() / 1e6));
+        throttleField.setText(format("%.0f%%", metrics.getThrottleWaitPercent()));
+        driftField.setText(format("%d us", metrics.getClockDriftNs() / 1000));
+        traceField.setText(format("%.1f/s", metrics.getTraceRefreshesPerSecond()));
+        uiRefreshField.setText(format("%.1f/s, %.2f ms", metrics.getUiRefreshesPerSecond(),
+                                      metrics.getUiRefreshMs()));
+        crtcField.setText(format("%.1f fps, %.2f ms", metrics.getCrtcFramesPerSecond(),
+                                 metrics.getCrtcFrameMs()));
+    }
+
+    private static String format(String format, Object... args) {
+        return String.format(Locale.ENGLISH, format, args);
+    }
+
     private ImageIcon iconForFlag(int state, int flagIndex) {
         ImageIcon imageIcon = null;
 
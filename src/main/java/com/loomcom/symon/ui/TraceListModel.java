@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.ui;
+
+import com.loomcom.symon.CpuState;
+import com.loomcom.symon.util.TraceBuffer;
+
+import javax.swing.*;
+import java.util.Arrays;
+
+/**
+ * A list model over a {@link TraceBuffer}. Rows are formatted only when the
+ * list asks for them, which is normally just for the rows in view.
+ * <p/>
+ * The model shows the entries that were in the buffer at the last call to
+ * {@link #refresh()}, optionally limited to instructions whose address falls
+ * inside a program counter range. Must only be used from the Swing event
+ * thread.
+ */
+public class TraceListModel extends AbstractListModel<String> {
+
+    private final TraceBuffer buffer;
+    private final CpuState scratch = new CpuState();
+
+    /* The sequence number of the first entry in the snapshot. */
+    private long firstSequence;
+
+    /* The number of rows in the snapshot. */
+    private int size;
+
+    /* Offsets from firstSequence of the entries that pass the filter, or null if there is no filter. */
+    private int[] matches;
+
+    private int filterStart = 0x0000;
+    private int filterEnd = 0xffff;
+    private boolean filtering = false;
+
+    public TraceListModel(TraceBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Take a new snapshot of the trace buffer.
+     */
+    public void refresh() {
+        int oldSize = size;
+
+        firstSequence = buffer.firstSequence();
+        int available = (int) (buffer.endSequence() - firstSequence);
+
+        if (filtering) {
+            int[] found = new int[available];
+            int count = 0;
+            for (int i = 0; i < available; i++) {
+                int pc = buffer.pcAt(firstSequence + i);
+                if (pc >= filterStart && pc <= filterEnd) {
+                    found[count++] = i;
+                }
+            }
+            matches = Arrays.copyOf(found, count);
+            size = count;
+        } else {
+            matches = null;
+            size = available;
+        }
+
+        if (oldSize > 0) {
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+        if (size > 0) {
+            fireIntervalAdded(this, 0, size - 1);
+        }
+    }
+
+    /**
+     * Only show instructions at addresses from <code>start</code> to
+     * <code>end</code>, inclusive.
+     */
+    public void setPcFilter(int start, int end) {
+        filterStart = Math.min(start, end);
+        filterEnd = Math.max(start, end);
+        filtering = true;
+        refresh();
+    }
+
+    public void clearPcFilter() {
+        filtering = false;
+        refresh();
+    }
+
+    public boolean isFiltering() {
+        return filtering;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Format one row of the trace.
+     *
+     * @return The formatted trace event, or an empty string if the entry
+     *         was overwritten after the snapshot was taken.
+     */
+    @Override
+    public String getElementAt(int index) {
+        long n = firstSequence + (matches == null ? index : matches[index]);
+        if (!buffer.read(n, scratch)) {
+            return "";
+        }
+        String event = scratch.toTraceEvent();
+        // Strip the trailing newline meant for a text area.
+        return event.substring(0, event.length() - 1);
+    }
+}
@@ -25,26 +25,37 @@
 package com.loomcom.symon.ui;
 
 import com.loomcom.symon.CpuState;
-import com.loomcom.symon.util.FifoRingBuffer;
+import com.loomcom.symon.util.TraceBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 
 /**
- * This frame displays a trace of CPU execution. The most recent <code>TRACE_LENGTH</code> lines
- * are captured in a buffer and rendered to the JFrame's main text area upon request.
+ * This frame displays a trace of CPU execution. The most recent <code>MAX_LOG_LENGTH</code>
+ * instructions are captured in a buffer. The list only formats the rows that are in view,
+ * so refreshing it is cheap no matter how long the trace is.
  */
 public class TraceLog extends JFrame {
 
-    private final FifoRingBuffer<CpuState> traceLog;
-    private final JTextArea                    traceLogTextArea;
+    private static final Logger logger = LoggerFactory.getLogger(TraceLog.class.getName());
+
+    private final TraceBuffer    traceLog;
+    private final TraceListModel traceListModel;
+    private final JList<String>  traceList;
+    private final JTextField     filterStartField;
+    private final JTextField     filterEndField;
 
     private static final Dimension MIN_SIZE       = new Dimension(320, 200);
     private static final Dimension PREFERRED_SIZE = new Dimension(640, 480);
     private static final int       MAX_LOG_LENGTH = 50000;
 
     public TraceLog() {
-        traceLog = new FifoRingBuffer<>(MAX_LOG_LENGTH);
+        traceLog = new TraceBuffer(MAX_LOG_LENGTH);
+        traceListModel = new TraceListModel(traceLog);
         setMinimumSize(MIN_SIZE);
         setPreferredSize(PREFERRED_SIZE);
         setResizable(true);
@@ -52,69 +63,124 @@ public class TraceLog extends JFrame {
 
         setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
 
-        traceLogTextArea = new JTextArea();
-        traceLogTextArea.setFont(new Font(Font.MONOSPACED, Font.BOLD, 12));
-        traceLogTextArea.setEditable(false);
+        traceList = new JList<>(traceListModel);
+        traceList.setFont(new Font(Font.MONOSPACED, Font.BOLD, 12));
+        // A prototype value gives every row the same size, so the list never
+        // has to format rows outside the viewport to lay itself out.
+        traceList.setPrototypeCellValue(
+                "0000  00 00 00  LDA $0000,X   A:00 X:00 Y:00 F:00 S:100 NV-BDIZC");
+
+        JScrollPane scrollableView = new JScrollPane(traceList);
+
+        filterStartField = new JTextField(4);
+        filterEndField = new JTextField(4);
 
-        JScrollPane scrollableView = new JScrollPane(traceLogTextArea);
+        JButton filterButton = new JButton("Filter");
+        filterButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                applyFilter();
+            }
+        });
+
+        JButton clearButton = new JButton("Clear");
+        clearButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                filterStartField.setText("");
+                filterEndField.setText("");
+                traceListModel.clearPcFilter();
+                jumpToEnd();
+            }
+        });
 
-        getContentPane().add(scrollableView);
+        JButton endButton = new JButton("End");
+        endButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                jumpToEnd();
+            }
+        });
+
+        JPanel controlPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controlPanel.add(new JLabel("PC $"));
+        controlPanel.add(filterStartField);
+        controlPanel.add(new JLabel("to $"));
+        controlPanel.add(filterEndField);
+        controlPanel.add(filterButton);
+        controlPanel.add(clearButton);
+        controlPanel.add(endButton);
+
+        getContentPane().setLayout(new BorderLayout());
+        getContentPane().add(scrollableView, BorderLayout.CENTER);
+        getContentPane().add(controlPanel, BorderLayout.SOUTH);
         pack();
     }
 
     /**
-     * Redraw the display with the most recent <code>MAX_LOG_LENGTH</code>
-     * trace events. <strong>CAUTION</strong>: This can be a very expensive
-     * call.
+     * Show the most recent <code>MAX_LOG_LENGTH</code> trace events, and
+     * scroll to the newest one.
      */
     public void refresh() {
-        StringBuilder logString = new StringBuilder();        
-        
-        synchronized(traceLog) {
-            for (CpuState state : traceLog) {
-                logString.append(state.toTraceEvent());
-            }
-        }
-
-        synchronized(traceLogTextArea) {
-            traceLogTextArea.setText(logString.toString());
-        }
+        traceListModel.refresh();
+        jumpToEnd();
     }
 
     /**
      * Reset the log area.
      */
     public void reset() {
-        synchronized(traceLog) {
-            traceLog.reset();
-        }
-        synchronized(traceLogTextArea) {
-            traceLogTextArea.setText("");
-            traceLogTextArea.setEnabled(true);
-        }
+        traceLog.reset();
+        traceListModel.refresh();
+        traceList.setEnabled(true);
     }
 
     /**
-     * Append a CPU State to the trace log.
+     * Append a CPU State to the trace log. Only the simulator thread may
+     * call this; the state is copied, so it may be reused afterward.
      *
      * @param state The CPU State to append.
      */
     public void append(CpuState state) {
-        synchronized(traceLog) {
-            traceLog.push(new CpuState(state));
-        }
+        traceLog.record(state);
     }
 
     public void simulatorDidStart() {
-        traceLogTextArea.setEnabled(false);
+        traceList.setEnabled(false);
     }
 
     public void simulatorDidStop() {
-        traceLogTextArea.setEnabled(true);
+        traceList.setEnabled(true);
     }
 
     public boolean shouldUpdate() {
-        return isVisible() && traceLogTextArea.isEnabled();
+        return isVisible() && traceList.isEnabled();
+    }
+
+    private void jumpToEnd() {
+        int size = traceListModel.getSize();
+        if (size > 0) {
+            traceList.ensureIndexIsVisible(size - 1);
+        }
     }
 
+    private void applyFilter() {
+        String startText = filterStartField.getText().trim();
+        String endText = filterEndField.getText().trim();
+
+        if (startText.isEmpty()) {
+            traceListModel.clearPcFilter();
+            jumpToEnd();
+            return;
+        }
+
+        try {
+            int start = Integer.parseInt(startText, 16) & 0xffff;
+            int end = endText.isEmpty() ? start : Integer.parseInt(endText, 16) & 0xffff;
+            traceListModel.setPcFilter(start, end);
+            jumpToEnd();
+        } catch (NumberFormatException ex) {
+            logger.warn("Can't parse PC range {} to {}", startText, endText);
+        }
+    }
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.ui;
+
+import com.loomcom.symon.devices.Crtc;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static java.lang.System.arraycopy;
+
+/**
+ * Draws the screen of a 6545 CRTC into an image, one character at a time,
+ * from a character generator ROM. The renderer has no window of its own,
+ * so it can also be used without a display.
+ */
+public class VideoRenderer {
+
+    static final int CHAR_WIDTH = 8;
+    static final int CHAR_HEIGHT = 8;
+
+    private final Crtc crtc;
+    private final int[] charRom;
+
+    private BufferedImage image;
+
+    private int horizontalDisplayed;
+    private int verticalDisplayed;
+    private int scanLinesPerRow;
+    private boolean hideCursor;
+
+    public VideoRenderer(Crtc crtc) throws IOException {
+        this.crtc = crtc;
+        this.charRom = loadCharRom("/ascii.rom");
+        this.horizontalDisplayed = crtc.getHorizontalDisplayed();
+        this.verticalDisplayed = crtc.getVerticalDisplayed();
+        this.scanLinesPerRow = crtc.getScanLinesPerRow();
+        buildImage();
+    }
+
+    /**
+     * Pick up changes to the CRTC's screen geometry.
+     *
+     * @return true if the size of the image changed.
+     */
+    public boolean update() {
+        if (horizontalDisplayed == crtc.getHorizontalDisplayed() &&
+                verticalDisplayed == crtc.getVerticalDisplayed() &&
+                scanLinesPerRow == crtc.getScanLinesPerRow()) {
+            return false;
+        }
+        horizontalDisplayed = crtc.getHorizontalDisplayed();
+        verticalDisplayed = crtc.getVerticalDisplayed();
+        scanLinesPerRow = crtc.getScanLinesPerRow();
+        buildImage();
+        return true;
+    }
+
+    /**
+     * Scan video memory and draw every character into the image.
+     *
+     * @return The image, which is reused by the next call.
+     */
+    public BufferedImage render() throws MemoryAccessException {
+        for (int i = 0; i < crtc.getPageSize(); i++) {
+            int address = crtc.getStartAddress() + i;
+            int originX = (i % horizontalDisplayed) * CHAR_WIDTH;
+            int originY = (i / horizontalDisplayed) * scanLinesPerRow;
+            image.getRaster().setPixels(originX, originY, CHAR_WIDTH, scanLinesPerRow, getGlyph(address));
+        }
+        return image;
+    }
+
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    /**
+     * @param hideCursor True to draw the screen without the cursor, for blinking.
+     */
+    public void setCursorHidden(boolean hideCursor) {
+        this.hideCursor = hideCursor;
+    }
+
+    public boolean isCursorHidden() {
+        return hideCursor;
+    }
+
+    /**
+     * Returns an array of pixels (including extra scanlines, if any) corresponding to the
+     * Character ROM plus cursor overlay (if any). The cursor overlay simulates an XOR
+     * of the Character Rom output and the 6545 Cursor output.
+     *
+     * @param address The address of the character being requested.
+     * @return An array of integers representing the pixel data.
+     */
+    private int[] getGlyph(int address) throws MemoryAccessException {
+        int chr = crtc.getCharAtAddress(address);
+        int romOffset = (chr & 0xff) * (CHAR_HEIGHT * CHAR_WIDTH);
+        int[] glyph = new int[CHAR_WIDTH * scanLinesPerRow];
+
+        // Populate the character
+        arraycopy(charRom, romOffset, glyph, 0, CHAR_WIDTH * Math.min(CHAR_HEIGHT, scanLinesPerRow));
+
+        // Overlay the cursor
+        if (!hideCursor && crtc.isCursorEnabled() && crtc.getCursorPosition() == address) {
+            int cursorStart = Math.min(glyph.length, crtc.getCursorStartLine() * CHAR_WIDTH);
+            int cursorStop = Math.min(glyph.length, (crtc.getCursorStopLine() + 1) * CHAR_WIDTH);
+
+            for (int i = cursorStart; i < cursorStop; i++) {
+                glyph[i] ^= 0xff;
+            }
+        }
+
+        return glyph;
+    }
+
+    private void buildImage() {
+        int rasterWidth = CHAR_WIDTH * horizontalDisplayed;
+        int rasterHeight = scanLinesPerRow * verticalDisplayed;
+        this.image = new BufferedImage(rasterWidth, rasterHeight, BufferedImage.TYPE_BYTE_BINARY);
+    }
+
+    /**
+     * Load a Character ROM file and convert it into an array of pixel data usable
+     * by the underlying BufferedImage's Raster.
+     * <p>
+     * Since the BufferedImage is a TYPE_BYTE_BINARY, the data must be converted
+     * into a single byte per pixel, 0 for black and 255 for white.
+
+     * @param resource The ROM file resource to load.
+     * @return An array of glyphs, each ready for insertion.
+     * @throws IOException
+     */
+    private int[] loadCharRom(String resource) throws IOException {
+        BufferedInputStream bis = null;
+        try {
+            bis = new BufferedInputStream(this.getClass().getResourceAsStream(resource));
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            while (bis.available() > 0) {
+                bos.write(bis.read());
+            }
+            bos.flush();
+            bos.close();
+
+            byte[] raw = bos.toByteArray();
+
+            // Now convert the raw ROM image into a format suitable for
+            // insertion directly into the BufferedImage.
+            int[] converted = new int[raw.length * CHAR_WIDTH];
+
+            int romIndex = 0;
+            for (int i = 0; i < converted.length;) {
+                byte charRow = raw[romIndex++];
+
+                for (int j = 7; j >= 0; j--) {
+                    converted[i++] = ((charRow & (1 << j)) == 0) ? 0 : 0xff;
+                }
+            }
+            return converted;
+        } finally {
+            if (bis != null) {
+                bis.close();
+            }
+        }
+    }
+}
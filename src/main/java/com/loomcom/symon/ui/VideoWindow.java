@@ -23,15 +23,13 @@
 
 package com.loomcom.symon.ui;
 
+import com.loomcom.symon.SimulatorMetrics;
 import com.loomcom.symon.devices.Crtc;
 import com.loomcom.symon.devices.DeviceChangeListener;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 
 import javax.swing.*;
 import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -40,12 +38,11 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static java.lang.System.*;
-
 /**
  * VideoWindow represents a graphics framebuffer backed by a 6545 CRTC.
  * Each time the window's VideoPanel is repainted, the video memory is
- * scanned and converted to the appropriate bitmap representation.
+ * scanned and converted to the appropriate bitmap representation by a
+ * {@link VideoRenderer}.
  * <p>
  * The graphical representation of each character is derived from a
  * character generator ROM image. For this simulation, the Commodore PET
@@ -61,23 +58,15 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
 
     private static final Logger logger = Logger.getLogger(VideoWindow.class.getName());
 
-    private static final int CHAR_WIDTH = 8;
-    private static final int CHAR_HEIGHT = 8;
-
     private final int scaleX, scaleY;
     private final boolean shouldScale;
 
-    private BufferedImage image;
-    private int[] charRom;
-
-    private int horizontalDisplayed;
-    private int verticalDisplayed;
-    private int scanLinesPerRow;
+    private final VideoRenderer renderer;
     private int cursorBlinkRate;
-    private boolean hideCursor;
 
     private Dimension dimensions;
     private Crtc crtc;
+    private volatile SimulatorMetrics metrics;
 
     private ScheduledExecutorService scheduler;
     private ScheduledFuture<?> cursorBlinker;
@@ -89,17 +78,16 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
         @Override
         public void paintComponent(Graphics g) {
             try {
-                for (int i = 0; i < crtc.getPageSize(); i++) {
-                    int address = crtc.getStartAddress() + i;
-                    int originX = (i % horizontalDisplayed) * CHAR_WIDTH;
-                    int originY = (i / horizontalDisplayed) * scanLinesPerRow;
-                    image.getRaster().setPixels(originX, originY, CHAR_WIDTH, scanLinesPerRow, getGlyph(address));
-                }
+                long startTime = System.nanoTime();
                 Graphics2D g2d = (Graphics2D) g;
                 if (shouldScale) {
                     g2d.scale(scaleX, scaleY);
                 }
-                g2d.drawImage(image, 0, 0, null);
+                g2d.drawImage(renderer.render(), 0, 0, null);
+                SimulatorMetrics m = metrics;
+                if (m != null) {
+                    m.recordFrame(System.nanoTime() - startTime);
+                }
             } catch (MemoryAccessException ex) {
                 logger.log(Level.SEVERE, "Memory Access Exception, can't paint video window! " + ex.getMessage());
             }
@@ -126,7 +114,7 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
                 @Override
                 public void run() {
                     if (cursorBlinkRate > 0) {
-                        hideCursor = !hideCursor;
+                        renderer.setCursorHidden(!renderer.isCursorHidden());
                         VideoWindow.this.repaint();
                     }
                 }
@@ -139,7 +127,7 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
 
         this.scheduler = Executors.newSingleThreadScheduledExecutor();
         this.crtc = crtc;
-        this.charRom = loadCharRom("/ascii.rom");
+        this.renderer = new VideoRenderer(crtc);
         this.scaleX = scaleX;
         this.scaleY = scaleY;
         this.shouldScale = (scaleX > 1 || scaleY > 1);
@@ -152,42 +140,27 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
                                                                TimeUnit.MILLISECONDS);
         }
 
-        // Capture some state from the CRTC that will define the
-        // window size. When these values change, the window will
-        // need to re-pack and redraw.
-        this.horizontalDisplayed = crtc.getHorizontalDisplayed();
-        this.verticalDisplayed = crtc.getVerticalDisplayed();
-        this.scanLinesPerRow = crtc.getScanLinesPerRow();
-
-        buildImage();
+        updateDimensions();
 
         createAndShowUi();
 
     }
 
+    /**
+     * @param metrics Where to report the time taken to draw each frame.
+     */
+    public void setMetrics(SimulatorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * Called by the CRTC on state change.
      */
     public void deviceStateChanged() {
 
-        boolean repackNeeded = false;
-
-        // TODO: I'm not entirely happy with this pattern, and I'd like to make it a bit DRY-er.
-
-        if (horizontalDisplayed != crtc.getHorizontalDisplayed()) {
-            horizontalDisplayed = crtc.getHorizontalDisplayed();
-            repackNeeded = true;
-        }
-
-        if (verticalDisplayed != crtc.getVerticalDisplayed()) {
-            verticalDisplayed = crtc.getVerticalDisplayed();
-            repackNeeded = true;
-        }
-
-        if (scanLinesPerRow != crtc.getScanLinesPerRow()) {
-            scanLinesPerRow = crtc.getScanLinesPerRow();
-            repackNeeded = true;
-        }
+        // The renderer captures the state that defines the window size.
+        // When it changes, the window will need to re-pack and redraw.
+        boolean repackNeeded = renderer.update();
 
         if (cursorBlinkRate != crtc.getCursorBlinkRate()) {
             cursorBlinkRate = crtc.getCursorBlinkRate();
@@ -195,7 +168,7 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
             if (cursorBlinker != null) {
                 cursorBlinker.cancel(true);
                 cursorBlinker = null;
-                hideCursor = false;
+                renderer.setCursorHidden(false);
             }
 
             if (cursorBlinkRate > 0) {
@@ -207,7 +180,7 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
         }
 
         if (repackNeeded) {
-            buildImage();
+            updateDimensions();
             invalidate();
             pack();
         }
@@ -231,83 +204,7 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
         pack();
     }
 
-    /**
-     * Returns an array of pixels (including extra scanlines, if any) corresponding to the
-     * Character ROM plus cursor overlay (if any). The cursor overlay simulates an XOR
-     * of the Character Rom output and the 6545 Cursor output.
-     *
-     * @param address The address of the character being requested.
-     * @return An array of integers representing the pixel data.
-     */
-    private int[] getGlyph(int address) throws MemoryAccessException {
-        int chr = crtc.getCharAtAddress(address);
-        int romOffset = (chr & 0xff) * (CHAR_HEIGHT * CHAR_WIDTH);
-        int[] glyph = new int[CHAR_WIDTH * scanLinesPerRow];
-
-        // Populate the character
-        arraycopy(charRom, romOffset, glyph, 0, CHAR_WIDTH * Math.min(CHAR_HEIGHT, scanLinesPerRow));
-
-        // Overlay the cursor
-        if (!hideCursor && crtc.isCursorEnabled() && crtc.getCursorPosition() == address) {
-            int cursorStart = Math.min(glyph.length, crtc.getCursorStartLine() * CHAR_WIDTH);
-            int cursorStop = Math.min(glyph.length, (crtc.getCursorStopLine() + 1) * CHAR_WIDTH);
-
-            for (int i = cursorStart; i < cursorStop; i++) {
-                glyph[i] ^= 0xff;
-            }
-        }
-
-        return glyph;
-    }
-
-    private void buildImage() {
-        int rasterWidth = CHAR_WIDTH * horizontalDisplayed;
-        int rasterHeight = scanLinesPerRow * verticalDisplayed;
-        this.image = new BufferedImage(rasterWidth, rasterHeight, BufferedImage.TYPE_BYTE_BINARY);
-        this.dimensions = new Dimension(rasterWidth * scaleX, rasterHeight * scaleY);
-    }
-
-    /**
-     * Load a Character ROM file and convert it into an array of pixel data usable
-     * by the underlying BufferedImage's Raster.
-     * <p>
-     * Since the BufferedImage is a TYPE_BYTE_BINARY, the data must be converted
-     * into a single byte per pixel, 0 for black and 255 for white.
-
-     * @param resource The ROM file resource to load.
-     * @return An array of glyphs, each ready for insertion.
-     * @throws IOException
-     */
-    private int[] loadCharRom(String resource) throws IOException {
-        BufferedInputStream bis = null;
-        try {
-            bis = new BufferedInputStream(this.getClass().getResourceAsStream(resource));
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            while (bis.available() > 0) {
-                bos.write(bis.read());
-            }
-            bos.flush();
-            bos.close();
-
-            byte[] raw = bos.toByteArray();
-
-            // Now convert the raw ROM image into a format suitable for
-            // insertion directly into the BufferedImage.
-            int[] converted = new int[raw.length * CHAR_WIDTH];
-
-            int romIndex = 0;
-            for (int i = 0; i < converted.length;) {
-                byte charRow = raw[romIndex++];
-
-                for (int j = 7; j >= 0; j--) {
-                    converted[i++] = ((charRow & (1 << j)) == 0) ? 0 : 0xff;
-                }
-            }
-            return converted;
-        } finally {
-            if (bis != null) {
-                bis.close();
-            }
-        }
+    private void updateDimensions() {
+        this.dimensions = new Dimension(renderer.getWidth() * scaleX, renderer.getHeight() * scaleY);
     }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded queue of bytes, for exactly one producer thread and one
+ * consumer thread. Neither side ever blocks or locks: each side owns one
+ * volatile index, and only publishes it after the bytes it covers have
+ * been written or read.
+ */
+public class ByteFifo {
+
+    private final byte[] buffer;
+    private final int capacity;
+    private final int mask;
+
+    /* The number of bytes ever taken, written only by the consumer. */
+    private volatile long head = 0;
+
+    /* The number of bytes ever added, written only by the producer. */
+    private volatile long tail = 0;
+
+    public ByteFifo(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least one byte");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.buffer = new byte[size];
+        this.capacity = capacity;
+        this.mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of bytes waiting to be taken.
+     */
+    public int size() {
+        return (int) (tail - head);
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    public boolean isFull() {
+        return tail - head >= capacity;
+    }
+
+    /**
+     * Add a byte. Producer only.
+     *
+     * @return false if the queue is full, in which case the byte is dropped.
+     */
+    public boolean offer(int b) {
+        long t = tail;
+        if (t - head >= capacity) {
+            return false;
+        }
+        buffer[(int) t & mask] = (byte) b;
+        tail = t + 1;
+        return true;
+    }
+
+    /**
+     * Add as many of the remaining bytes of a buffer as fit, advancing its
+     * position past them. Producer only.
+     *
+     * @return The number of bytes added.
+     */
+    public int offer(ByteBuffer src) {
+        long t = tail;
+        int n = (int) Math.min(src.remaining(), capacity - (t - head));
+        for (int i = 0; i < n; i++) {
+            buffer[(int) (t + i) & mask] = src.get();
+        }
+        tail = t + n;
+        return n;
+    }
+
+    /**
+     * Take the oldest byte. Consumer only.
+     *
+     * @return The byte, from 0 to 255, or -1 if the queue is empty.
+     */
+    public int poll() {
+        long h = head;
+        if (h == tail) {
+            return -1;
+        }
+        int b = buffer[(int) h & mask] & 0xff;
+        head = h + 1;
+        return b;
+    }
+
+    /**
+     * Take up to <code>length</code> bytes, oldest first. Consumer only.
+     *
+     * @return The number of bytes taken.
+     */
+    public int drain(byte[] dest, int offset, int length) {
+        long h = head;
+        int n = (int) Math.min(length, tail - h);
+        for (int i = 0; i < n; i++) {
+            dest[offset + i] = buffer[(int) (h + i) & mask];
+        }
+        head = h + n;
+        return n;
+    }
+
+    /**
+     * Copy the waiting bytes, oldest first, without taking them. Only safe
+     * while neither side is running.
+     *
+     * @return The number of bytes copied.
+     */
+    public int peekAll(byte[] dest) {
+        long h = head;
+        int n = (int) Math.min(dest.length, tail - h);
+        for (int i = 0; i < n; i++) {
+            dest[i] = buffer[(int) (h + i) & mask];
+        }
+        return n;
+    }
+
+    /**
+     * Discard every waiting byte. Only safe while neither side is running.
+     */
+    public void clear() {
+        head = tail;
+    }
+
+    public String toString() {
+        return "[ByteFifo: size=" + size() + ", capacity=" + capacity + "]";
+    }
+}
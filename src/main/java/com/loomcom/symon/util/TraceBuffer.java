@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.util;
+
+import com.loomcom.symon.CpuState;
+
+/**
+ * A fixed-size ring buffer of executed instructions, for the trace log.
+ * <p/>
+ * Each field of a traced instruction is kept in its own preallocated column,
+ * so recording an instruction allocates nothing. There must be a single
+ * writer, normally the thread running the simulator. Readers may run on any
+ * thread without locking: a sequence counter tells them which entries exist,
+ * and <code>read()</code> refuses entries that the writer has overwritten
+ * while they were being copied.
+ */
+public class TraceBuffer {
+
+    private final int capacity;
+
+    /* One more slot than the capacity, so the slot being written never holds a readable entry. */
+    private final int slots;
+
+    private final int[] pcs;
+    private final int[] opcodes;
+    private final int[] args0;
+    private final int[] args1;
+    private final int[] as;
+    private final int[] xs;
+    private final int[] ys;
+    private final int[] sps;
+    private final int[] statuses;
+    private final long[] cycles;
+
+    /* The number of entries ever recorded. Entry n is stored at index n % slots. */
+    private volatile long sequence = 0;
+
+    /* The sequence number of the first entry after the most recent reset. */
+    private volatile long start = 0;
+
+    /* Index of the next entry to write, kept by the writer to avoid a division. */
+    private int writeIndex = 0;
+
+    public TraceBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least one entry");
+        }
+        this.capacity = capacity;
+        this.slots = capacity + 1;
+        this.pcs = new int[slots];
+        this.opcodes = new int[slots];
+        this.args0 = new int[slots];
+        this.args1 = new int[slots];
+        this.as = new int[slots];
+        this.xs = new int[slots];
+        this.ys = new int[slots];
+        this.sps = new int[slots];
+        this.statuses = new int[slots];
+        this.cycles = new long[slots];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Record the instruction that the CPU has just executed. Must only be
+     * called by the single writer thread.
+     */
+    public void record(CpuState state) {
+        int i = writeIndex;
+        pcs[i] = state.lastPc;
+        opcodes[i] = state.ir;
+        args0[i] = state.args[0];
+        args1[i] = state.args[1];
+        as[i] = state.a;
+        xs[i] = state.x;
+        ys[i] = state.y;
+        sps[i] = state.sp;
+        statuses[i] = state.getStatusFlag();
+        cycles[i] = state.cycleCounter;
+
+        writeIndex = (i + 1 == slots) ? 0 : i + 1;
+        // Publish the entry.
+        sequence = sequence + 1;
+    }
+
+    /**
+     * Forget all recorded entries. Safe to call from any thread.
+     */
+    public void reset() {
+        start = sequence;
+    }
+
+    /**
+     * @return The sequence number of the oldest entry still in the buffer.
+     */
+    public long firstSequence() {
+        long end = sequence;
+        return Math.max(start, end - capacity);
+    }
+
+    /**
+     * @return The sequence number that the next recorded entry will get. The
+     *         newest entry in the buffer is one less than this.
+     */
+    public long endSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return The number of entries in the buffer.
+     */
+    public int size() {
+        long end = sequence;
+        return (int) (end - Math.max(start, end - capacity));
+    }
+
+    /**
+     * Copy an entry into a CpuState. Only the fields needed to describe the
+     * instruction are filled in: the program counter goes into
+     * <code>lastPc</code>, along with the opcode, operands, registers, status
+     * flags and cycle count.
+     *
+     * @param n    The sequence number of the entry.
+     * @param dest The CpuState to fill in.
+     * @return False if the entry is not in the buffer, in which case
+     *         <code>dest</code> may have been partly changed.
+     */
+    public boolean read(long n, CpuState dest) {
+        if (n < firstSequence() || n >= sequence) {
+            return false;
+        }
+
+        int i = (int) (n % slots);
+        dest.lastPc = pcs[i];
+        dest.ir = opcodes[i];
+        dest.args[0] = args0[i];
+        dest.args[1] = args1[i];
+        dest.a = as[i];
+        dest.x = xs[i];
+        dest.y = ys[i];
+        dest.sp = sps[i];
+        dest.setStatusFlag(statuses[i]);
+        dest.cycleCounter = cycles[i];
+
+        // The writer overwrites entry n while recording entry n + slots,
+        // before publishing it.
+        return n + slots > sequence;
+    }
+
+    /**
+     * @return The program counter of an entry, or -1 if it is not in the
+     *         buffer.
+     */
+    public int pcAt(long n) {
+        if (n < firstSequence() || n >= sequence) {
+            return -1;
+        }
+        int pc = pcs[(int) (n % slots)];
+        return n + slots > sequence ? pc : -1;
+    }
+}
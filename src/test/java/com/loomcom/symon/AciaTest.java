@@ -2,8 +2,13 @@ package com.loomcom.symon;
 
 import com.loomcom.symon.devices.Acia;
 import com.loomcom.symon.devices.Acia6551;
+import com.loomcom.symon.machines.MachineSnapshot;
+import com.loomcom.symon.machines.SymonMachine;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.*;
 
@@ -148,4 +153,152 @@ public class AciaTest {
 
         assertEquals(0x10, acia.read(0x0001));
     }
+
+    @Test
+    public void baudRateDelayShouldBeTimedInCpuCycles() throws Exception {
+        Cpu cpu = new Cpu();
+        Bus bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        Acia acia = new Acia6551(0x0000);
+        bus.addDevice(acia);
+
+        // 9600 baud: 8 bits take 833 cycles at 1 MHz
+        acia.write(3, 0x0e);
+        acia.write(0, 'a');
+        acia.txRead();
+
+        assertEquals(0x00, acia.read(0x0001) & 0x10);
+        cpu.getCpuState().cycleCounter += 832;
+        assertEquals(0x00, acia.read(0x0001) & 0x10);
+        cpu.getCpuState().cycleCounter += 1;
+        assertEquals(0x10, acia.read(0x0001) & 0x10);
+
+        acia.rxWrite('b');
+        acia.read(0x0000);
+        acia.rxWrite('c');
+        assertEquals(0x00, acia.read(0x0001) & 0x08);
+        cpu.getCpuState().cycleCounter += 833;
+        assertEquals(0x08, acia.read(0x0001) & 0x08);
+    }
+
+    @Test
+    public void snapshotShouldKeepBaudRateDelay() throws Exception {
+        SymonMachine machine = new SymonMachine();
+        Acia acia = machine.getAcia();
+        acia.write(3, 0x0e);
+        acia.write(0, 'a');
+        acia.txRead();
+        MachineSnapshot snapshot = machine.snapshot();
+
+        machine.getCpu().getCpuState().cycleCounter += 1000;
+        assertEquals(0x10, acia.read(0x0001) & 0x10);
+
+        machine.restore(snapshot);
+        assertEquals(0x00, acia.read(0x0001) & 0x10);
+    }
+
+    @Test
+    public void fifoShouldQueueReceivedCharacters() throws Exception {
+        Acia acia = new Acia6551(0x0000);
+        acia.setFifoDepth(4);
+
+        acia.rxWrite('a');
+        acia.rxWrite('b');
+        assertEquals(0x08, acia.read(0x0001) & 0x08);
+        assertEquals('a', acia.read(0x0000));
+        assertEquals(0x08, acia.read(0x0001) & 0x08);
+        assertEquals('b', acia.read(0x0000));
+        assertEquals(0x00, acia.read(0x0001) & 0x08);
+        assertEquals(0x00, acia.read(0x0001) & 0x04);
+    }
+
+    @Test
+    public void fifoShouldOverrunWhenFull() throws Exception {
+        Acia acia = new Acia6551(0x0000);
+        acia.setFifoDepth(2);
+
+        acia.rxWrite('a');
+        acia.rxWrite('b');
+        acia.rxWrite('c');
+        assertEquals(0x04, acia.read(0x0001) & 0x04);
+
+        // The character that did not fit is lost.
+        assertEquals('a', acia.read(0x0000));
+        assertEquals('b', acia.read(0x0000));
+        assertEquals(0x00, acia.read(0x0001) & 0x08);
+    }
+
+    @Test
+    public void fifoShouldAcceptWritesUntilFull() throws Exception {
+        Acia acia = new Acia6551(0x0000);
+        acia.setFifoDepth(3);
+
+        for (char c = 'a'; c <= 'c'; c++) {
+            assertEquals(0x10, acia.read(0x0001) & 0x10);
+            acia.write(0, c);
+        }
+        assertEquals(0x00, acia.read(0x0001) & 0x10);
+        assertEquals(3, acia.getTxCount());
+
+        byte[] output = new byte[8];
+        assertEquals(3, acia.drainTx(output));
+        assertEquals("abc", new String(output, 0, 3));
+        assertEquals(0x10, acia.read(0x0001) & 0x10);
+    }
+
+    @Test
+    public void offerRxShouldTakeOnlyWhatFits() throws Exception {
+        Acia acia = new Acia6551(0x0000);
+        ByteBuffer input = ByteBuffer.wrap("hello".getBytes());
+
+        // A single register takes one character at a time, without overrun.
+        assertEquals(1, acia.offerRx(input));
+        assertEquals(0, acia.offerRx(input));
+        assertEquals(0x00, acia.read(0x0001) & 0x04);
+        assertEquals('h', acia.read(0x0000));
+
+        acia.setFifoDepth(16);
+        assertEquals(4, acia.offerRx(input));
+        assertEquals('e', acia.read(0x0000));
+        assertEquals('l', acia.read(0x0000));
+    }
+
+    @Test
+    public void drainTxShouldTakeSingleRegister() throws Exception {
+        Bus mockBus = mock(Bus.class);
+        Acia acia = new Acia6551(0x0000);
+        acia.setBus(mockBus);
+        // Enable TX IRQ
+        acia.write(2, 0x06);
+
+        byte[] output = new byte[4];
+        assertEquals(0, acia.drainTx(output));
+        verify(mockBus, never()).assertIrq();
+
+        acia.write(0, 'x');
+        assertEquals(1, acia.drainTx(output));
+        assertEquals('x', output[0]);
+        verify(mockBus, atLeastOnce()).assertIrq();
+    }
+
+    @Test
+    public void snapshotShouldKeepFifoContents() throws Exception {
+        SymonMachine machine = new SymonMachine();
+        Acia acia = machine.getAcia();
+        acia.setFifoDepth(8);
+        acia.rxWrite('a');
+        acia.rxWrite('b');
+        acia.write(0, 'c');
+        MachineSnapshot snapshot = machine.snapshot();
+
+        SymonMachine copy = new SymonMachine();
+        copy.restore(MachineSnapshot.fromByteArray(snapshot.toByteArray()));
+        Acia restored = copy.getAcia();
+        assertEquals(8, restored.getFifoDepth());
+        assertEquals('a', restored.rxRead());
+        assertEquals('b', restored.rxRead());
+        byte[] output = new byte[8];
+        assertEquals(1, restored.drainTx(output));
+        assertArrayEquals("c".getBytes(), java.util.Arrays.copyOf(output, 1));
+    }
 }
@@ -0,0 +1,195 @@
+package com.loomcom.symon;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class BatchRunnerTest {
+
+    private ByteArrayOutputStream out;
+    private ByteArrayOutputStream err;
+    private BatchRunner runner;
+
+    @Before
+    public void setUp() {
+        out = new ByteArrayOutputStream();
+        err = new ByteArrayOutputStream();
+        runner = new BatchRunner(new ByteArrayInputStream(new byte[0]),
+                                 new PrintStream(out), new PrintStream(err));
+    }
+
+    private String writeProgram(int... program) throws Exception {
+        File file = File.createTempFile("symon", ".prg");
+        file.deleteOnExit();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (int b : program) {
+                fos.write(b);
+            }
+        }
+        return file.getPath();
+    }
+
+    @Test
+    public void shouldPassFunctionalTest() throws Exception {
+        int status = runner.run(new String[] {
+                "--headless", "-program", "samples/tests/6502_functional_test.bin",
+                "-load", "0", "-start", "0x0400", "-success", "$3399", "-engine", "block"});
+
+        assertEquals(BatchRunner.EXIT_SUCCESS, status);
+        assertEquals(BatchRunner.StopReason.TRAP, runner.getStopReason());
+        assertTrue(err.toString().contains("Stopped: trap at $3399"));
+        assertTrue(err.toString().contains("Instructions: 30037270"));
+        assertTrue(err.toString().contains("Cycles: 92606009"));
+    }
+
+    @Test
+    public void shouldFailOnTrapAtWrongAddress() throws Exception {
+        String program = writeProgram(0x4c, 0x00, 0x03); // JMP $0300
+
+        assertEquals(BatchRunner.EXIT_FAILURE,
+                     runner.run(new String[] {"-program", program, "-success", "$0400"}));
+    }
+
+    @Test
+    public void shouldStopAtCycleLimit() throws Exception {
+        String program = writeProgram(0xe8,              // INX
+                                      0x4c, 0x00, 0x03); // JMP $0300
+
+        assertEquals(BatchRunner.EXIT_CYCLE_LIMIT,
+                     runner.run(new String[] {"-program", program, "-trap", "-max-cycles", "1000"}));
+        assertEquals(BatchRunner.StopReason.CYCLE_LIMIT, runner.getStopReason());
+        assertTrue(err.toString().contains("Cycles: 1000"));
+    }
+
+    @Test
+    public void shouldPrintProfile() throws Exception {
+        String program = writeProgram(0xe8,              // INX
+                                      0x4c, 0x00, 0x03); // JMP $0300
+
+        runner.run(new String[] {"-program", program, "-max-cycles", "1000", "-profile", "5"});
+        assertTrue(err.toString().contains("Hot spots by cycles:"));
+        assertTrue(err.toString().contains("JMP $0300"));
+    }
+
+    @Test
+    public void shouldReplayRecordedInput() throws Exception {
+        String program = writeProgram(0xad, 0x01, 0x88,  // LDA $8801
+                                      0x29, 0x08,        // AND #$08
+                                      0xf0, 0xf9,        // BEQ $0300
+                                      0xad, 0x00, 0x88,  // LDA $8800
+                                      0x9d, 0x00, 0x10,  // STA $1000,X
+                                      0xe8,              // INX
+                                      0x4c, 0x00, 0x03); // JMP $0300
+        File recording = File.createTempFile("symon", ".rec");
+        recording.deleteOnExit();
+
+        BatchRunner recorder = new BatchRunner(new ByteArrayInputStream("AB".getBytes()),
+                                               new PrintStream(out), new PrintStream(err));
+        assertEquals(BatchRunner.EXIT_SUCCESS,
+                     recorder.run(new String[] {"-machine", "symon", "-program", program, "-mem", "$1001=$42",
+                                                "-record", recording.getPath()}));
+        String recorded = err.toString();
+        assertTrue(recorded.contains("Recorded 2 events"));
+
+        // The replay gets no input of its own, but stops at the same instruction.
+        err.reset();
+        assertEquals(BatchRunner.EXIT_SUCCESS,
+                     runner.run(new String[] {"-machine", "symon", "-program", program, "-mem", "$1001=$42",
+                                              "-replay", recording.getPath()}));
+        String replayed = err.toString();
+        assertEquals(line(recorded, "Instructions:"), line(replayed, "Instructions:"));
+        assertEquals(line(recorded, "Cycles:"), line(replayed, "Cycles:"));
+    }
+
+    private static String line(String text, String prefix) {
+        for (String line : text.split("\n")) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        fail("No line starting with " + prefix);
+        return null;
+    }
+
+    @Test
+    public void shouldConnectAciaToFiles() throws Exception {
+        String program = writeProgram(0xad, 0x01, 0x88,  // LDA $8801
+                                      0x29, 0x08,        // AND #$08
+                                      0xf0, 0xf9,        // BEQ $0300
+                                      0xad, 0x00, 0x88,  // LDA $8800
+                                      0xc9, 0x2e,        // CMP #'.'
+                                      0xf0, 0x0f,        // BEQ $031D
+                                      0xaa,              // TAX
+                                      0xad, 0x01, 0x88,  // LDA $8801
+                                      0x29, 0x10,        // AND #$10
+                                      0xf0, 0xf9,        // BEQ $030F
+                                      0x8a,              // TXA
+                                      0x8d, 0x00, 0x88,  // STA $8800
+                                      0x4c, 0x00, 0x03,  // JMP $0300
+                                      0x00);             // BRK
+        File input = File.createTempFile("symon", ".in");
+        input.deleteOnExit();
+        File output = File.createTempFile("symon", ".out");
+        output.deleteOnExit();
+        Files.write(input.toPath(), "HELLO.".getBytes("US-ASCII"));
+
+        assertEquals(BatchRunner.EXIT_SUCCESS,
+                     runner.run(new String[] {"-machine", "symon", "-program", program, "-brk",
+                                              "-acia-in", input.getPath(), "-acia-out", output.getPath()}));
+        assertEquals("HELLO", new String(Files.readAllBytes(output.toPath()), "US-ASCII"));
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void shouldStopOnMemoryValue() throws Exception {
+        String program = writeProgram(0xe6, 0x10,        // INC $10
+                                      0x4c, 0x00, 0x02); // JMP $0200
+
+        assertEquals(BatchRunner.EXIT_SUCCESS,
+                     runner.run(new String[] {"-program", program, "-load", "$0200", "-mem", "$10=5"}));
+        assertEquals(BatchRunner.StopReason.MEMORY, runner.getStopReason());
+    }
+
+    @Test
+    public void shouldStopOnBrk() throws Exception {
+        String program = writeProgram(0xea,  // NOP
+                                      0x00); // BRK
+
+        assertEquals(BatchRunner.EXIT_SUCCESS,
+                     runner.run(new String[] {"-program", program, "-engine", "block", "-brk"}));
+        assertEquals(BatchRunner.StopReason.BRK, runner.getStopReason());
+        assertTrue(err.toString().contains("BRK at $0301"));
+    }
+
+    @Test
+    public void shouldRejectBadArguments() throws Exception {
+        assertEquals(BatchRunner.EXIT_ERROR, runner.run(new String[] {"-machine"}));
+        assertEquals(BatchRunner.EXIT_ERROR, runner.run(new String[] {"-bogus"}));
+        assertEquals(BatchRunner.EXIT_ERROR, runner.run(new String[] {"-machine", "apple2"}));
+        assertEquals(BatchRunner.EXIT_ERROR, runner.run(new String[] {"-program", "no-such-file.bin"}));
+        assertEquals(BatchRunner.EXIT_ERROR, runner.run(new String[] {"-metrics", "0"}));
+        assertEquals(BatchRunner.EXIT_ERROR, runner.run(new String[] {"-acia-fifo", "0"}));
+        assertEquals(BatchRunner.EXIT_ERROR, runner.run(new String[] {"-acia-tcp", "70000"}));
+        assertEquals(BatchRunner.EXIT_ERROR,
+                     runner.run(new String[] {"-acia-tcp", "0", "-acia-out", "out.txt"}));
+        assertEquals(BatchRunner.EXIT_ERROR,
+                     runner.run(new String[] {"-machine", "symon", "-acia-in", "no-such-file.txt"}));
+        assertEquals(BatchRunner.EXIT_ERROR,
+                     runner.run(new String[] {"-machine", "symon", "-mem", "$8800=0"}));
+    }
+
+    @Test
+    public void shouldParseNumbers() {
+        assertEquals(0x3399, BatchRunner.parseNumber("$3399"));
+        assertEquals(0x3399, BatchRunner.parseNumber("0x3399"));
+        assertEquals(1024, BatchRunner.parseNumber("1024"));
+    }
+}
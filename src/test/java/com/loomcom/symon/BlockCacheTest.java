@@ -0,0 +1,169 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BlockCacheTest {
+
+    private Cpu cpu;
+    private Bus bus;
+
+    @Before
+    public void setUp() throws Exception {
+        cpu = new Cpu();
+        bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+
+        // All test programs start at 0x0200, and IRQs vector to 0x0300
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x03);
+
+        cpu.reset();
+    }
+
+    @Test
+    public void shouldRunStraightLineCodeUpToBranch() throws Exception {
+        bus.loadProgram(0xa9, 0x01,  // LDA #$01
+                        0xaa,        // TAX
+                        0xe8,        // INX
+                        0xd0, 0xfd); // BNE $0203
+
+        assertEquals(4, cpu.stepBlock());
+        assertEquals(0x02, cpu.getXRegister());
+        assertEquals(0x0203, cpu.getProgramCounter());
+        assertEquals(4, cpu.getCpuState().stepCounter);
+
+        // The loop body is now its own block.
+        assertEquals(2, cpu.stepBlock());
+        assertEquals(0x03, cpu.getXRegister());
+        assertEquals(0x0203, cpu.getProgramCounter());
+    }
+
+    @Test
+    public void shouldMatchSingleSteppedState() throws Exception {
+        bus.loadProgram(0xa2, 0x05,        // LDX #$05
+                        0xa9, 0x10,        // LDA #$10
+                        0x9d, 0x00, 0x10,  // STA $1000,X
+                        0x0a,              // ASL A
+                        0x38,              // SEC
+                        0x69, 0x03,        // ADC #$03
+                        0x4c, 0x00, 0x02); // JMP $0200
+
+        assertEquals(7, cpu.stepBlock());
+        CpuState blockState = new CpuState(cpu.getCpuState());
+
+        cpu.reset();
+        cpu.step(7);
+        CpuState stepState = cpu.getCpuState();
+
+        assertEquals(stepState.a, blockState.a);
+        assertEquals(stepState.x, blockState.x);
+        assertEquals(stepState.pc, blockState.pc);
+        assertEquals(stepState.lastPc, blockState.lastPc);
+        assertEquals(stepState.getStatusFlag(), blockState.getStatusFlag());
+        assertEquals(0x10, bus.read(0x1005));
+    }
+
+    @Test
+    public void shouldInvalidateBlockWhenCodeIsWritten() throws Exception {
+        bus.loadProgram(0xa9, 0x01,        // LDA #$01
+                        0x4c, 0x00, 0x02); // JMP $0200
+
+        cpu.stepBlock();
+        assertEquals(0x01, cpu.getAccumulator());
+
+        // Patch the immediate operand of the cached LDA.
+        bus.write(0x0201, 0x42);
+
+        cpu.stepBlock();
+        assertEquals(0x42, cpu.getAccumulator());
+    }
+
+    @Test
+    public void shouldPatchOperandWrittenByBlock() throws Exception {
+        bus.loadProgram(0xa9, 0x42,        // LDA #$42
+                        0x8d, 0x06, 0x02,  // STA $0206
+                        0xa2, 0x01,        // LDX #$01 (patched to LDX #$42)
+                        0x4c, 0x00, 0x02); // JMP $0200
+
+        assertEquals(4, cpu.stepBlock());
+        assertEquals(0x42, cpu.getXRegister());
+    }
+
+    @Test
+    public void shouldPatchAddressWrittenByBlock() throws Exception {
+        bus.loadProgram(0xa9, 0x10,        // LDA #$10
+                        0x8d, 0x08, 0x02,  // STA $0208
+                        0xa9, 0x77,        // LDA #$77
+                        0x8d, 0x00, 0x30,  // STA $3000 (patched to STA $3010)
+                        0x4c, 0x00, 0x02); // JMP $0200
+
+        assertEquals(5, cpu.stepBlock());
+        assertEquals(0x77, bus.read(0x3010));
+        assertEquals(0x00, bus.read(0x3000));
+    }
+
+    @Test
+    public void shouldOnlyBuildCacheWhenBlockStepping() throws Exception {
+        bus.loadProgram(0xe8,              // INX
+                        0x4c, 0x00, 0x02); // JMP $0200
+
+        cpu.step(2);
+        assertNull(cpu.getBlockCache());
+
+        cpu.stepBlock();
+        assertNotNull(cpu.getBlockCache());
+
+        // Writes made after the cache was built still reach it.
+        bus.write(0x0200, 0xc8);           // INY
+        cpu.stepBlock();
+        assertEquals(0x01, cpu.getYRegister());
+    }
+
+    @Test
+    public void shouldStopWhenBlockOverwritesOpcode() throws Exception {
+        bus.loadProgram(0xa9, 0xe8,        // LDA #$E8
+                        0x8d, 0x05, 0x02,  // STA $0205
+                        0xea,              // NOP (patched to INX)
+                        0x4c, 0x00, 0x02); // JMP $0200
+
+        assertEquals(2, cpu.stepBlock());
+        assertEquals(0x0205, cpu.getProgramCounter());
+
+        cpu.stepBlock();
+        assertEquals(0x01, cpu.getXRegister());
+    }
+
+    @Test
+    public void shouldEndBlockAtBoundary() throws Exception {
+        bus.loadProgram(0xe8,  // INX
+                        0xe8,  // INX
+                        0xe8,  // INX
+                        0x00); // BRK
+
+        cpu.addBlockBoundary(0x0202);
+
+        assertEquals(2, cpu.stepBlock());
+        assertEquals(0x0202, cpu.getProgramCounter());
+        assertEquals(0x02, cpu.getXRegister());
+    }
+
+    @Test
+    public void shouldServiceInterruptsAtBlockStart() throws Exception {
+        bus.loadProgram(0xe8,              // INX
+                        0x4c, 0x00, 0x02); // JMP $0200
+
+        cpu.stepBlock();
+        cpu.assertIrq();
+        cpu.stepBlock();
+
+        assertEquals(0x0300, cpu.getCpuState().lastPc);
+        assertTrue(cpu.getIrqDisableFlag());
+    }
+}
@@ -0,0 +1,108 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BreakpointsTest {
+
+    private Breakpoints breakpoints;
+
+    @Before
+    public void setUp() {
+        breakpoints = new Breakpoints(null);
+    }
+
+    private Cpu makeCpu() throws Exception {
+        Cpu cpu = new Cpu();
+        Bus bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+        return cpu;
+    }
+
+    @Test
+    public void shouldStartEmpty() {
+        assertTrue(breakpoints.isEmpty());
+        assertEquals(0, breakpoints.getRowCount());
+        for (int address = 0; address <= 0xffff; address++) {
+            assertFalse(breakpoints.contains(address));
+        }
+    }
+
+    @Test
+    public void shouldFindAddedBreakpointsOnly() {
+        breakpoints.addBreakpoint(0x0000);
+        breakpoints.addBreakpoint(0x1040);
+        breakpoints.addBreakpoint(0xffff);
+
+        assertFalse(breakpoints.isEmpty());
+        for (int address = 0; address <= 0xffff; address++) {
+            boolean expected = address == 0x0000 || address == 0x1040 || address == 0xffff;
+            assertEquals(expected, breakpoints.contains(address));
+        }
+    }
+
+    @Test
+    public void shouldForgetRemovedBreakpoints() {
+        breakpoints.addBreakpoint(0x1040);
+        breakpoints.addBreakpoint(0x1041);
+
+        breakpoints.removeBreakpoint(0x1040);
+        assertFalse(breakpoints.contains(0x1040));
+        assertTrue(breakpoints.contains(0x1041));
+        assertFalse(breakpoints.isEmpty());
+
+        breakpoints.removeBreakpointAtIndex(0);
+        assertFalse(breakpoints.contains(0x1041));
+        assertTrue(breakpoints.isEmpty());
+    }
+
+    @Test
+    public void shouldOnlyBreakWhenConditionIsTrue() throws Exception {
+        Cpu cpu = makeCpu();
+        cpu.setProgramCounter(0x1000);
+        breakpoints.addBreakpoint(new Breakpoints.Breakpoint(0x1000, Condition.parse("A==$41"), 1));
+
+        cpu.setAccumulator(0x40);
+        assertFalse(breakpoints.shouldBreak(cpu));
+
+        cpu.setAccumulator(0x41);
+        assertTrue(breakpoints.shouldBreak(cpu));
+
+        cpu.setProgramCounter(0x1001);
+        assertFalse(breakpoints.shouldBreak(cpu));
+    }
+
+    @Test
+    public void shouldBreakAfterHitCount() throws Exception {
+        Cpu cpu = makeCpu();
+        cpu.setProgramCounter(0x2000);
+        breakpoints.addBreakpoint(new Breakpoints.Breakpoint(0x2000, null, 3));
+
+        assertFalse(breakpoints.shouldBreak(cpu));
+        assertFalse(breakpoints.shouldBreak(cpu));
+        assertTrue(breakpoints.shouldBreak(cpu));
+        assertEquals(3, breakpoints.getBreakpoint(0x2000).getHits());
+
+        breakpoints.resetHits();
+        assertEquals(0, breakpoints.getBreakpoint(0x2000).getHits());
+        assertFalse(breakpoints.shouldBreak(cpu));
+    }
+
+    @Test
+    public void shouldOnlyCountHitsWhenConditionIsTrue() throws Exception {
+        Cpu cpu = makeCpu();
+        cpu.setProgramCounter(0x3000);
+        breakpoints.addBreakpoint(new Breakpoints.Breakpoint(0x3000, Condition.parse("X==1"), 2));
+
+        cpu.setXRegister(0);
+        assertFalse(breakpoints.shouldBreak(cpu));
+        assertFalse(breakpoints.shouldBreak(cpu));
+        cpu.setXRegister(1);
+        assertFalse(breakpoints.shouldBreak(cpu));
+        assertTrue(breakpoints.shouldBreak(cpu));
+    }
+}
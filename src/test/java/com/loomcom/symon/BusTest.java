@@ -135,4 +135,65 @@ public class BusTest extends TestCase {
         assertFalse(c.getCpuState().nmiAsserted);
     }
 
+    public void testReadAndWriteMemoryPages() throws Exception {
+        Memory ram = new Memory(0x1000, 0x1fff);
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(ram);
+
+        b.write(0x1234, 0x1ab);
+        assertEquals(0xab, b.read(0x1234));
+        assertEquals((byte) 0xab, ram.getPage(0x2)[0x34]);
+
+        ram.getPage(0x2)[0xff] = 0x5a;
+        assertEquals(0x5a, b.read(0x12ff));
+    }
+
+    public void testDevicesSharingAPage() throws Exception {
+        Memory low = new Memory(0x0000, 0x00ef);
+        Memory high = new Memory(0x00f0, 0x00ff);
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(low);
+        b.addDevice(high);
+
+        b.write(0x00ef, 0x11);
+        b.write(0x00f0, 0x22);
+
+        assertEquals(0x11, b.read(0x00ef));
+        assertEquals(0x22, b.read(0x00f0));
+        assertEquals((byte) 0x11, low.getPage(0)[0xef]);
+        assertEquals((byte) 0x22, high.getPage(0)[0x00]);
+    }
+
+    public void testWriteToReadOnlyPage() throws Exception {
+        Memory rom = new Memory(0xff00, 0xffff, true);
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(rom);
+
+        assertEquals(0x00, b.read(0xff80));
+
+        try {
+            b.write(0xff80, 0x01);
+            fail("Should have thrown a MemoryAccessException");
+        } catch (MemoryAccessException expected) {
+            // Expected
+        }
+        assertEquals(0x00, b.read(0xff80));
+    }
+
+    public void testRemoveDeviceUnmapsPages() throws Exception {
+        Memory ram = new Memory(0x0000, 0x0fff);
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(ram);
+        b.write(0x0100, 0x42);
+
+        b.removeDevice(ram);
+
+        try {
+            b.read(0x0100);
+            fail("Should have thrown a MemoryAccessException");
+        } catch (MemoryAccessException expected) {
+            // Expected
+        }
+    }
+
 }
@@ -0,0 +1,95 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.util.ByteFifo;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ByteFifoTest {
+
+    @Test
+    public void shouldTakeBytesInOrder() {
+        ByteFifo fifo = new ByteFifo(4);
+        assertTrue(fifo.isEmpty());
+        assertEquals(-1, fifo.poll());
+
+        assertTrue(fifo.offer('a'));
+        assertTrue(fifo.offer(0xff));
+        assertEquals(2, fifo.size());
+        assertEquals('a', fifo.poll());
+        assertEquals(0xff, fifo.poll());
+        assertTrue(fifo.isEmpty());
+    }
+
+    @Test
+    public void shouldRefuseBytesWhenFull() {
+        // Capacities need not be a power of two.
+        ByteFifo fifo = new ByteFifo(3);
+        assertTrue(fifo.offer(1));
+        assertTrue(fifo.offer(2));
+        assertTrue(fifo.offer(3));
+        assertTrue(fifo.isFull());
+        assertFalse(fifo.offer(4));
+
+        assertEquals(1, fifo.poll());
+        assertTrue(fifo.offer(5));
+        assertEquals(2, fifo.poll());
+        assertEquals(3, fifo.poll());
+        assertEquals(5, fifo.poll());
+    }
+
+    @Test
+    public void shouldMoveBytesInBulk() {
+        ByteFifo fifo = new ByteFifo(5);
+        ByteBuffer src = ByteBuffer.wrap("abcdefg".getBytes());
+
+        assertEquals(5, fifo.offer(src));
+        assertEquals(5, src.position());
+        assertEquals(0, fifo.offer(src));
+
+        byte[] dest = new byte[3];
+        assertEquals(3, fifo.drain(dest, 0, dest.length));
+        assertArrayEquals("abc".getBytes(), dest);
+
+        // Wrap around the end of the buffer.
+        assertEquals(2, fifo.offer(src));
+        dest = new byte[10];
+        assertEquals(4, fifo.drain(dest, 1, 9));
+        assertEquals("defg", new String(dest, 1, 4));
+        assertTrue(fifo.isEmpty());
+    }
+
+    @Test
+    public void shouldPassBytesBetweenThreads() throws Exception {
+        final ByteFifo fifo = new ByteFifo(16);
+        final int count = 100000;
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    while (!fifo.offer(i & 0xff)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        for (int i = 0; i < count; i++) {
+            int b;
+            while ((b = fifo.poll()) < 0) {
+                Thread.yield();
+            }
+            assertEquals(i & 0xff, b);
+        }
+        producer.join();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectEmptyFifo() {
+        new ByteFifo(0);
+    }
+}
@@ -0,0 +1,93 @@
+package com.loomcom.symon;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ClockThrottleTest {
+
+    @Test
+    public void timeSliceShouldPaceToClockSpeed() {
+        ClockThrottle throttle = new ClockThrottle(1000);
+        throttle.setSliceCycles(1000);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 4000; i++) {
+            throttle.beginStep();
+            throttle.endStep(5);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // 20,000 cycles at 1 MHz
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void timeSliceShouldNotWaitBeforeSliceIsFull() {
+        ClockThrottle throttle = new ClockThrottle(TimeUnit.MILLISECONDS.toNanos(1));
+        throttle.setSliceCycles(1000);
+
+        long start = System.nanoTime();
+        throttle.beginStep();
+        throttle.endStep(999);
+        long elapsed = System.nanoTime() - start;
+
+        assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void timeSliceShouldReportDriftAndResyncWhenFarBehind() throws Exception {
+        ClockThrottle throttle = new ClockThrottle(1);
+        throttle.setSliceCycles(10);
+
+        throttle.beginStep();
+        Thread.sleep(10);
+        throttle.endStep(10);
+
+        assertTrue(throttle.getLastDriftNs() >= TimeUnit.MILLISECONDS.toNanos(9));
+        assertEquals(throttle.getLastDriftNs(), throttle.getMaxDriftNs());
+        assertEquals(1, throttle.getLagResets());
+
+        throttle.reset();
+        assertEquals(0, throttle.getMaxDriftNs());
+        assertEquals(0, throttle.getLagResets());
+    }
+
+    @Test
+    public void busyWaitShouldDelayEveryStep() {
+        ClockThrottle throttle = new ClockThrottle(1000);
+        throttle.setMode(ClockThrottle.Mode.BUSY_WAIT);
+
+        long start = System.nanoTime();
+        throttle.beginStep();
+        throttle.endStep(1000);
+        long elapsed = System.nanoTime() - start;
+
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    public void shouldCountTimeSpentWaiting() {
+        ClockThrottle throttle = new ClockThrottle(1000);
+        throttle.setSliceCycles(1000);
+
+        for (int i = 0; i < 4000; i++) {
+            throttle.beginStep();
+            throttle.endStep(5);
+        }
+        long waited = throttle.getTotalWaitNs();
+        assertTrue(waited > 0);
+        assertTrue(waited <= TimeUnit.SECONDS.toNanos(1));
+
+        // Unlike drift, the total survives a reset.
+        throttle.reset();
+        assertEquals(waited, throttle.getTotalWaitNs());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectEmptySlice() {
+        new ClockThrottle(1000).setSliceCycles(0);
+    }
+}
@@ -0,0 +1,125 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.exceptions.ConditionSyntaxException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConditionTest {
+
+    private Cpu cpu;
+    private Bus bus;
+
+    @Before
+    public void setUp() throws Exception {
+        cpu = new Cpu();
+        bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0x7fff));
+    }
+
+    private boolean isTrue(String text) throws Exception {
+        return Condition.parse(text).isTrue(cpu);
+    }
+
+    @Test
+    public void shouldCompareRegisters() throws Exception {
+        cpu.setAccumulator(0x41);
+        cpu.setXRegister(5);
+        cpu.setYRegister(0);
+
+        assertTrue(isTrue("A==$41"));
+        assertTrue(isTrue("a == 0x41"));
+        assertTrue(isTrue("A==65"));
+        assertTrue(isTrue("A==%01000001"));
+        assertFalse(isTrue("A!=$41"));
+        assertTrue(isTrue("X>3"));
+        assertTrue(isTrue("X>=5"));
+        assertFalse(isTrue("X<5"));
+        assertTrue(isTrue("X<=5"));
+        assertTrue(isTrue("Y==0"));
+    }
+
+    @Test
+    public void shouldCombineWithLogicalOperators() throws Exception {
+        cpu.setAccumulator(0x41);
+        cpu.setXRegister(5);
+
+        assertTrue(isTrue("A==$41 && X>3"));
+        assertFalse(isTrue("A==$41 && X>5"));
+        assertTrue(isTrue("A==$42 || X==5"));
+        assertTrue(isTrue("!(A==$42)"));
+        assertTrue(isTrue("A==$42 || (X==5 && A==$41)"));
+    }
+
+    @Test
+    public void shouldDoArithmeticAndBitOperations() throws Exception {
+        cpu.setAccumulator(0x41);
+        cpu.setXRegister(5);
+
+        assertTrue(isTrue("(A & $0F) == 1"));
+        assertTrue(isTrue("(A | $80) == $C1"));
+        assertTrue(isTrue("(A ^ $41) == 0"));
+        assertTrue(isTrue("X + 1 == 6"));
+        assertTrue(isTrue("X - 6 == -1"));
+        assertTrue(isTrue("(~A & $FF) == $BE"));
+    }
+
+    @Test
+    public void shouldReadFlagsAndProgramCounter() throws Exception {
+        cpu.setProgramCounter(0x1234);
+        cpu.setCarryFlag();
+        cpu.clearZeroFlag();
+
+        assertTrue(isTrue("PC==$1234"));
+        assertTrue(isTrue("C"));
+        assertFalse(isTrue("Z"));
+        assertTrue(isTrue("(P & 1) == 1"));
+        assertTrue(isTrue("SP==S"));
+    }
+
+    @Test
+    public void shouldReadMemory() throws Exception {
+        bus.write(0x00ff, 0x80);
+        bus.write(0x0010, 0x20);
+        cpu.setXRegister(0x10);
+
+        assertTrue(isTrue("mem[$00FF]!=0"));
+        assertTrue(isTrue("MEM[$00FF]==$80"));
+        assertTrue(isTrue("mem[X]==$20"));
+        assertTrue(isTrue("mem[$00FF + 1]==0"));
+    }
+
+    @Test
+    public void shouldReadUnmappedAddressesAsZero() throws Exception {
+        assertTrue(isTrue("mem[$9000]==0"));
+    }
+
+    @Test
+    public void shouldFoldConstantConditions() throws Exception {
+        assertTrue(Condition.parse("1 + 2 == 3").isConstant());
+        assertTrue(Condition.parse("(4 & 5) || 0").isConstant());
+        assertFalse(Condition.parse("A == 3").isConstant());
+        assertFalse(Condition.parse("mem[$10] == 3").isConstant());
+    }
+
+    @Test
+    public void shouldKeepTextOfCondition() throws Exception {
+        assertEquals("A==$41 && X>3", Condition.parse("  A==$41 && X>3 ").toString());
+    }
+
+    @Test
+    public void shouldRejectBadConditions() {
+        String[] bad = {"", "A==", "A==$", "(A==1", "A==1)", "Q==1", "mem[1", "A=1", "A==$41 &&"};
+        for (String text : bad) {
+            try {
+                Condition.parse(text);
+                fail("Expected a syntax error for \"" + text + "\"");
+            } catch (ConditionSyntaxException expected) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.ui.ConsoleOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConsoleOutputStreamTest {
+
+    private List<String> printed;
+    private ConsoleOutputStream out;
+
+    @Before
+    public void setUp() {
+        printed = new ArrayList<>();
+        out = new ConsoleOutputStream(null) {
+            @Override
+            protected void print(String s) {
+                printed.add(s);
+            }
+        };
+    }
+
+    @Test
+    public void shouldPrintEachFrameAtOnce() throws Exception {
+        assertFalse(out.refresh());
+
+        out.write('H');
+        out.write("ello".getBytes("US-ASCII"));
+        out.write('\r');
+        assertEquals(6, out.getPendingCount());
+        assertTrue(printed.isEmpty());
+
+        assertTrue(out.refresh());
+        assertEquals(1, printed.size());
+        assertEquals("Hello\r", printed.get(0));
+        assertEquals(0, out.getPendingCount());
+        assertFalse(out.refresh());
+    }
+
+    @Test
+    public void shouldDiscardPendingOutput() throws Exception {
+        out.write("lost".getBytes("US-ASCII"));
+        out.discard();
+        assertFalse(out.refresh());
+        assertTrue(printed.isEmpty());
+    }
+
+    @Test
+    public void writerShouldWaitForRoom() throws Exception {
+        final byte[] data = new byte[40000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                out.write(data, 0, data.length);
+            }
+        });
+        writer.start();
+
+        StringBuilder received = new StringBuilder();
+        while (writer.isAlive() || out.getPendingCount() > 0) {
+            if (out.refresh()) {
+                received.append(printed.remove(0));
+            }
+            Thread.sleep(1);
+        }
+        assertEquals(new String(data, "US-ASCII"), received.toString());
+    }
+
+    @Test
+    public void writingFromEventDispatchThreadShouldNotBlock() throws Exception {
+        final byte[] data = new byte[40000];
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                out.write(data, 0, data.length);
+                out.refresh();
+            }
+        });
+
+        int total = 0;
+        for (String s : printed) {
+            total += s.length();
+        }
+        assertEquals(data.length, total);
+    }
+}
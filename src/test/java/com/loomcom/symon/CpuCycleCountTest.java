@@ -0,0 +1,134 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the cycle counter, including page crossing and branch penalties,
+ * both single-stepping and running blocks.
+ */
+public class CpuCycleCountTest {
+
+    private Cpu cpu;
+    private Bus bus;
+
+    @Before
+    public void setUp() throws Exception {
+        cpu = new Cpu();
+        bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+
+        bus.write(0xfffc, Bus.DEFAULT_LOAD_ADDRESS & 0x00ff);
+        bus.write(0xfffd, (Bus.DEFAULT_LOAD_ADDRESS & 0xff00) >>> 8);
+
+        cpu.reset();
+        assertEquals(0, cpu.getCpuState().cycleCounter);
+    }
+
+    private long cyclesFor(int... program) throws Exception {
+        bus.loadProgram(program);
+        long start = cpu.getCpuState().cycleCounter;
+        cpu.step();
+        return cpu.getCpuState().cycleCounter - start;
+    }
+
+    @Test
+    public void shouldCountBaseCycles() throws Exception {
+        assertEquals(2, cyclesFor(0xa9, 0x01));        // LDA #$01
+        cpu.reset();
+        assertEquals(4, cyclesFor(0xad, 0x00, 0x10));  // LDA $1000
+        cpu.reset();
+        assertEquals(7, cyclesFor(0x00));              // BRK
+    }
+
+    @Test
+    public void absoluteXReadShouldCostExtraCycleOnPageCrossing() throws Exception {
+        cpu.setXRegister(0x01);
+        assertEquals(4, cyclesFor(0xbd, 0x00, 0x10));  // LDA $1000,X
+        cpu.reset();
+        cpu.setXRegister(0x01);
+        assertEquals(5, cyclesFor(0xbd, 0xff, 0x10));  // LDA $10FF,X
+    }
+
+    @Test
+    public void absoluteYReadShouldCostExtraCycleOnPageCrossing() throws Exception {
+        cpu.setYRegister(0x10);
+        assertEquals(5, cyclesFor(0xbe, 0xf8, 0x10));  // LDX $10F8,Y
+        cpu.reset();
+        cpu.setYRegister(0x10);
+        assertEquals(5, cyclesFor(0x79, 0xf8, 0x10));  // ADC $10F8,Y
+    }
+
+    @Test
+    public void indirectIndexedReadShouldCostExtraCycleOnPageCrossing() throws Exception {
+        bus.write(0x0010, 0x80);
+        bus.write(0x0011, 0x10);
+        cpu.setYRegister(0x10);
+        assertEquals(5, cyclesFor(0xb1, 0x10));        // LDA ($10),Y
+        cpu.reset();
+        cpu.setYRegister(0x90);
+        assertEquals(6, cyclesFor(0xb1, 0x10));        // LDA ($10),Y
+    }
+
+    @Test
+    public void storesAndModifiesShouldNotCostExtraCycle() throws Exception {
+        cpu.setXRegister(0x01);
+        assertEquals(5, cyclesFor(0x9d, 0xff, 0x10));  // STA $10FF,X
+        cpu.reset();
+        cpu.setXRegister(0x01);
+        assertEquals(7, cyclesFor(0xfe, 0xff, 0x10));  // INC $10FF,X
+    }
+
+    @Test
+    public void branchesShouldCostExtraCyclesWhenTaken() throws Exception {
+        // Not taken
+        cpu.setZeroFlag();
+        assertEquals(2, cyclesFor(0xd0, 0x10));        // BNE $0212 (Z set)
+        cpu.reset();
+        cpu.clearZeroFlag();
+        // Taken, same page
+        assertEquals(3, cyclesFor(0xd0, 0x10));        // BNE $0212
+        cpu.reset();
+        cpu.clearZeroFlag();
+        // Taken, crossing to page 1
+        assertEquals(4, cyclesFor(0xd0, 0xf0));        // BNE $01F2
+    }
+
+    @Test
+    public void interruptsShouldBeCounted() throws Exception {
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x03);
+        bus.write(0x0300, 0xea); // NOP
+        cpu.assertIrq();
+        cpu.step();
+        assertEquals(Cpu.INTERRUPT_CLOCKS + 2, cpu.getCpuState().cycleCounter);
+    }
+
+    @Test
+    public void blocksShouldCountTheSameCycles() throws Exception {
+        bus.write(0x0010, 0xf0);
+        bus.write(0x0011, 0x10);
+        bus.loadProgram(0xa0, 0x20,        // LDY #$20
+                        0xb1, 0x10,        // LDA ($10),Y
+                        0xbd, 0xff, 0x10,  // LDA $10FF,X
+                        0x88,              // DEY
+                        0xd0, 0xf7);       // BNE $0202
+
+        for (int i = 0; i < 20; i++) {
+            cpu.step();
+        }
+        long stepCycles = cpu.getCpuState().cycleCounter;
+
+        cpu.reset();
+        while (cpu.getCpuState().stepCounter < 20) {
+            cpu.stepBlock();
+        }
+
+        assertEquals(20, cpu.getCpuState().stepCounter);
+        assertEquals(stepCycles, cpu.getCpuState().cycleCounter);
+    }
+}
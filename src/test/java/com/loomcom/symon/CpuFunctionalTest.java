@@ -0,0 +1,71 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs Klaus Dormann's 6502 functional test suite against each CPU engine.
+ * The suite loops on the same instruction when it finishes, and it only
+ * reaches the success trap if every documented opcode behaves correctly.
+ */
+public class CpuFunctionalTest {
+
+    private static final File FUNCTIONAL_TEST = new File("samples/tests/6502_functional_test.bin");
+    private static final int START_ADDRESS = 0x0400;
+    private static final int SUCCESS_ADDRESS = 0x3399;
+    private static final long SUCCESS_CYCLES = 92606009L;
+
+    private Cpu cpu;
+    private Bus bus;
+
+    @Before
+    public void setUp() throws Exception {
+        cpu = new Cpu();
+        bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+
+        byte[] image = Files.readAllBytes(FUNCTIONAL_TEST.toPath());
+        for (int i = 0; i < image.length; i++) {
+            bus.write(i, image[i] & 0xff);
+        }
+
+        cpu.reset();
+        cpu.setClockPeriodInNs(0);
+    }
+
+    @Test
+    public void interpreterShouldPassFunctionalTest() throws Exception {
+        assertEquals(SUCCESS_ADDRESS, runUntilTrapped());
+        assertEquals(SUCCESS_CYCLES, cpu.getCpuState().cycleCounter);
+    }
+
+    @Test
+    public void blockCacheShouldPassFunctionalTest() throws Exception {
+        cpu.setProgramCounter(START_ADDRESS);
+        do {
+            cpu.stepBlock();
+        } while (cpu.getProgramCounter() != cpu.getCpuState().lastPc);
+        assertEquals(SUCCESS_ADDRESS, cpu.getProgramCounter());
+        assertEquals(SUCCESS_CYCLES, cpu.getCpuState().cycleCounter);
+    }
+
+    /**
+     * Run from the start of the suite until the CPU jumps to itself.
+     *
+     * @return The address of the trap.
+     */
+    private int runUntilTrapped() throws Exception {
+        cpu.setProgramCounter(START_ADDRESS);
+        do {
+            cpu.step();
+        } while (cpu.getProgramCounter() != cpu.getCpuState().lastPc);
+        return cpu.getProgramCounter();
+    }
+}
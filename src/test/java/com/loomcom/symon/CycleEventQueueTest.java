@@ -0,0 +1,108 @@
+package com.loomcom.symon;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CycleEventQueueTest {
+
+    private CycleEventQueue queue;
+    private List<String> fired;
+
+    @Before
+    public void setUp() {
+        queue = new CycleEventQueue();
+        fired = new ArrayList<>();
+    }
+
+    private CycleEventQueue.Event event(final String name) {
+        return new CycleEventQueue.Event() {
+            @Override
+            public void fire(long cycle) {
+                fired.add(name + "@" + cycle);
+            }
+        };
+    }
+
+    @Test
+    public void shouldFireEventsInCycleOrder() {
+        assertEquals(Long.MAX_VALUE, queue.getNextCycle());
+
+        queue.schedule(event("c"), 300);
+        queue.schedule(event("a"), 100);
+        queue.schedule(event("b"), 200);
+        queue.schedule(event("b2"), 200);
+        assertEquals(100, queue.getNextCycle());
+
+        queue.runDue(99);
+        assertTrue(fired.isEmpty());
+
+        queue.runDue(250);
+        assertEquals("[a@100, b@200, b2@200]", fired.toString());
+        assertEquals(300, queue.getNextCycle());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void shouldRescheduleAndCancel() {
+        CycleEventQueue.Event a = event("a");
+        CycleEventQueue.Event b = event("b");
+        queue.schedule(a, 100);
+        queue.schedule(b, 150);
+        queue.schedule(a, 200);
+        assertEquals(2, queue.size());
+        assertEquals(150, queue.getNextCycle());
+
+        queue.cancel(b);
+        assertFalse(b.isScheduled());
+        assertEquals(200, queue.getNextCycle());
+
+        queue.runDue(1000);
+        assertEquals("[a@200]", fired.toString());
+        assertFalse(a.isScheduled());
+        assertEquals(Long.MAX_VALUE, queue.getNextCycle());
+    }
+
+    @Test
+    public void eventsMayScheduleThemselvesAgain() {
+        CycleEventQueue.Event periodic = new CycleEventQueue.Event() {
+            @Override
+            public void fire(long cycle) {
+                fired.add("tick@" + cycle);
+                queue.schedule(this, cycle + 100);
+            }
+        };
+        queue.schedule(periodic, 100);
+
+        queue.runDue(350);
+        assertEquals("[tick@100, tick@200, tick@300]", fired.toString());
+        assertEquals(400, queue.getNextCycle());
+    }
+
+    @Test
+    public void shouldShiftEvents() {
+        CycleEventQueue.Event a = event("a");
+        queue.schedule(a, 1100);
+        queue.shift(-1000);
+        assertEquals(100, a.getCycle());
+        assertEquals(100, queue.getNextCycle());
+    }
+
+    @Test
+    public void cpuResetShouldKeepEventsTheSameDistanceAway() throws Exception {
+        Cpu cpu = new Cpu();
+        Bus bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new com.loomcom.symon.devices.Memory(0x0000, 0xffff));
+
+        cpu.getCpuState().cycleCounter = 5000;
+        CycleEventQueue.Event a = event("a");
+        cpu.getEventQueue().schedule(a, 5300);
+        cpu.reset();
+        assertEquals(300, a.getCycle());
+    }
+}
@@ -0,0 +1,166 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.SimpleMachine;
+import com.loomcom.symon.machines.SymonMachine;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class EventRecordingTest {
+
+    // $0300: set the ACIA to 9600 baud, then copy received characters to
+    // $1000,X, counting each poll of the status register in $20.
+    private static final int[] ECHO_PROGRAM = {
+            0xa9, 0x1e,             // LDA #$1E
+            0x8d, 0x03, 0x88,       // STA $8803
+            0xad, 0x01, 0x88,       // loop: LDA $8801
+            0x29, 0x08,             // AND #$08
+            0xf0, 0x07,             // BEQ idle
+            0xad, 0x00, 0x88,       // LDA $8800
+            0x9d, 0x00, 0x10,       // STA $1000,X
+            0xe8,                   // INX
+            0xe6, 0x20,             // idle: INC $20
+            0x4c, 0x05, 0x03        // JMP loop
+    };
+
+    /**
+     * Makes characters available at unpredictable moments.
+     */
+    private static class RandomInputStream extends InputStream {
+        private final Random random;
+        private final byte[] text;
+        private int position = 0;
+
+        RandomInputStream(String text, long seed) {
+            this.text = text.getBytes();
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public int available() {
+            return position < text.length && random.nextInt(20) == 0 ? 1 : 0;
+        }
+
+        @Override
+        public int read() {
+            return position < text.length ? text[position++] : -1;
+        }
+    }
+
+    private static void load(Machine machine, int address, int[] program) throws Exception {
+        for (int i = 0; i < program.length; i++) {
+            machine.getBus().write(address + i, program[i]);
+        }
+        machine.getCpu().setProgramCounter(address);
+    }
+
+    private static EventRecording roundTrip(EventRecording recording) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        recording.writeTo(bytes);
+        return EventRecording.readFrom(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static void assertSameMachine(Machine expected, Machine actual, int memoryEnd) throws Exception {
+        CpuState e = expected.getCpu().getCpuState();
+        CpuState a = actual.getCpu().getCpuState();
+        assertEquals(e.stepCounter, a.stepCounter);
+        assertEquals(e.cycleCounter, a.cycleCounter);
+        assertEquals(e.pc, a.pc);
+        assertEquals(e.a, a.a);
+        assertEquals(e.x, a.x);
+        assertEquals(e.y, a.y);
+        assertEquals(e.sp, a.sp);
+        assertEquals(e.getStatusFlag(), a.getStatusFlag());
+        for (int address = 0; address <= memoryEnd; address++) {
+            assertEquals("Memory at " + address, expected.getBus().read(address), actual.getBus().read(address));
+        }
+    }
+
+    @Test
+    public void replayShouldRepeatConsoleInputExactly() throws Exception {
+        SymonMachine original = new SymonMachine();
+        SimulatorEngine engine = new SimulatorEngine(original);
+        original.getCpu().setClockPeriodInNs(0);
+        load(original, 0x0300, ECHO_PROGRAM);
+
+        engine.setAciaInput(new RandomInputStream("HELLO, WORLD", System.nanoTime()));
+        engine.startRecording();
+        engine.step(50000);
+        EventRecording recording = engine.stopRecording();
+
+        assertEquals(12, recording.size());
+        assertEquals(EventRecording.RX_CHAR, recording.getType(0));
+        assertEquals('H', recording.getValue(0));
+        assertEquals('H', original.getBus().read(0x1000));
+        assertEquals(12, original.getCpu().getXRegister());
+
+        // Replay twice, on new machines, with different input that must be ignored.
+        for (int run = 0; run < 2; run++) {
+            SymonMachine copy = new SymonMachine();
+            SimulatorEngine replayEngine = new SimulatorEngine(copy);
+            replayEngine.setAciaInput(new RandomInputStream("IGNORED", run));
+            replayEngine.startReplay(roundTrip(recording));
+
+            replayEngine.step(50000);
+
+            assertTrue(replayEngine.isReplayComplete());
+            assertSameMachine(original, copy, 0x7fff);
+        }
+    }
+
+    @Test
+    public void replayShouldRepeatInterrupts() throws Exception {
+        SimpleMachine original = new SimpleMachine();
+        SimulatorEngine engine = new SimulatorEngine(original);
+        // $0300: CLI / JMP $0301; IRQ handler at $0400: INC $30 / RTI
+        load(original, 0x0400, new int[] {0xe6, 0x30, 0x40});
+        original.getBus().write(0xfffe, 0x00);
+        original.getBus().write(0xffff, 0x04);
+        load(original, 0x0300, new int[] {0x58, 0x4c, 0x01, 0x03});
+
+        engine.startRecording();
+        engine.step(10);
+        engine.assertIrq();
+        engine.step(3);
+        engine.clearIrq();
+        engine.step(17);
+        engine.assertNmi();
+        engine.step(1);
+        engine.clearNmi();
+        engine.step(10);
+        EventRecording recording = engine.stopRecording();
+
+        assertEquals(4, recording.size());
+        assertEquals(EventRecording.IRQ_ASSERT, recording.getType(0));
+        assertEquals(EventRecording.NMI_CLEAR, recording.getType(3));
+        assertTrue(original.getBus().read(0x30) > 0);
+
+        SimpleMachine copy = new SimpleMachine();
+        SimulatorEngine replayEngine = new SimulatorEngine(copy);
+        replayEngine.startReplay(roundTrip(recording));
+        // Requests made while replaying are ignored.
+        replayEngine.assertIrq();
+        replayEngine.step(41);
+
+        assertSameMachine(original, copy, 0xffff);
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectDataThatIsNotARecording() throws Exception {
+        EventRecording.readFrom(new ByteArrayInputStream(new byte[] {0x53, 0x59, 0x4d, 0x53, 0, 1}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void eventsShouldBeInCycleOrder() throws Exception {
+        EventRecording recording = new EventRecording(new SimpleMachine().snapshot());
+        recording.add(100, EventRecording.RX_CHAR, 'a');
+        recording.add(99, EventRecording.RX_CHAR, 'b');
+    }
+}
@@ -0,0 +1,199 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.MachineSnapshot;
+import com.loomcom.symon.machines.MulticompMachine;
+import com.loomcom.symon.machines.SimpleMachine;
+import com.loomcom.symon.machines.SymonMachine;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class MachineSnapshotTest {
+
+    private static void load(Bus bus, int address, int... program) throws Exception {
+        for (int i = 0; i < program.length; i++) {
+            bus.write(address + i, program[i]);
+        }
+    }
+
+    @Test
+    public void shouldRestoreCpuAndMemory() throws Exception {
+        SimpleMachine machine = new SimpleMachine();
+        Bus bus = machine.getBus();
+        Cpu cpu = machine.getCpu();
+
+        // $0300: INX / STX $10 / JMP $0300
+        load(bus, 0x0300, 0xe8, 0x86, 0x10, 0x4c, 0x00, 0x03);
+        cpu.setProgramCounter(0x0300);
+        cpu.step(30);
+
+        MachineSnapshot snapshot = machine.snapshot();
+        CpuState saved = new CpuState(cpu.getCpuState());
+        int savedValue = bus.read(0x10);
+
+        cpu.step(30);
+        bus.write(0x8000, 0x55);
+        assertNotEquals(saved.x, cpu.getXRegister());
+
+        machine.restore(snapshot);
+
+        assertEquals(saved.x, cpu.getXRegister());
+        assertEquals(saved.pc, cpu.getProgramCounter());
+        assertEquals(saved.cycleCounter, cpu.getCpuState().cycleCounter);
+        assertEquals(saved.stepCounter, cpu.getCpuState().stepCounter);
+        assertEquals(saved.getStatusFlag(), cpu.getCpuState().getStatusFlag());
+        assertEquals(savedValue, bus.read(0x10));
+        assertEquals(0, bus.read(0x8000));
+
+        // Running on from the restored state gives the same result again.
+        cpu.step(30);
+        assertEquals((saved.x + 10) & 0xff, cpu.getXRegister());
+    }
+
+    @Test
+    public void shouldRestoreOneSnapshotManyTimes() throws Exception {
+        SimpleMachine machine = new SimpleMachine();
+        Bus bus = machine.getBus();
+        load(bus, 0x0300, 0xe8, 0x86, 0x10, 0x4c, 0x00, 0x03);
+        machine.getCpu().setProgramCounter(0x0300);
+
+        MachineSnapshot snapshot = machine.snapshot();
+        for (int i = 0; i < 3; i++) {
+            machine.restore(snapshot);
+            machine.getCpu().step(6);
+            assertEquals(2, bus.read(0x10));
+        }
+    }
+
+    @Test
+    public void shouldRestoreBlockCachedCode() throws Exception {
+        SimpleMachine machine = new SimpleMachine();
+        Bus bus = machine.getBus();
+        Cpu cpu = machine.getCpu();
+
+        // $0300: LDA #$01 / STA $10 / JMP $0300
+        load(bus, 0x0300, 0xa9, 0x01, 0x85, 0x10, 0x4c, 0x00, 0x03);
+        cpu.setProgramCounter(0x0300);
+        MachineSnapshot snapshot = machine.snapshot();
+
+        // Patch the immediate operand and let the block cache pick it up.
+        bus.write(0x0301, 0x02);
+        cpu.stepBlock();
+        assertEquals(2, bus.read(0x10));
+
+        machine.restore(snapshot);
+        cpu.stepBlock();
+        assertEquals(1, bus.read(0x10));
+    }
+
+    @Test
+    public void shouldRoundTripThroughBinaryFormat() throws Exception {
+        SymonMachine machine = new SymonMachine();
+        Bus bus = machine.getBus();
+        Cpu cpu = machine.getCpu();
+
+        load(bus, 0x0300, 0xe8, 0x86, 0x10, 0x4c, 0x00, 0x03);
+        bus.write(0x7fff, 0xaa);
+        cpu.setProgramCounter(0x0300);
+        cpu.step(10);
+        // Program the ACIA: 19200 baud, with a character waiting.
+        bus.write(0x8803, 0x1f);
+        machine.getAcia().rxWrite('A');
+
+        byte[] bytes = machine.snapshot().toByteArray();
+        // Mostly zero pages, so the image is far smaller than the RAM.
+        assertTrue("Snapshot is " + bytes.length + " bytes", bytes.length < 1024);
+
+        SymonMachine other = new SymonMachine();
+        other.restore(MachineSnapshot.fromByteArray(bytes));
+
+        assertEquals(cpu.getProgramCounter(), other.getCpu().getProgramCounter());
+        assertEquals(cpu.getXRegister(), other.getCpu().getXRegister());
+        assertEquals(cpu.getCpuState().cycleCounter, other.getCpu().getCpuState().cycleCounter);
+        for (int address = 0; address < 0x8000; address++) {
+            assertEquals(bus.read(address), other.getBus().read(address));
+        }
+
+        Acia acia = other.getAcia();
+        assertEquals(19200, acia.getBaudRate());
+        assertTrue(acia.hasRxChar());
+        assertEquals('A', acia.rxRead());
+        assertEquals(0x1f, other.getBus().read(0x8803));
+    }
+
+    @Test
+    public void shouldRoundTripMulticompDevices() throws Exception {
+        MulticompMachine machine = new MulticompMachine();
+        machine.getAcia().rxWrite('Z');
+
+        MulticompMachine other = new MulticompMachine();
+        other.restore(MachineSnapshot.fromByteArray(machine.snapshot().toByteArray()));
+
+        assertTrue(other.getAcia().hasRxChar());
+        assertEquals('Z', other.getAcia().rxRead());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectSnapshotOfOtherMachine() throws Exception {
+        MachineSnapshot snapshot = new SimpleMachine().snapshot();
+        new SymonMachine().restore(snapshot);
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectDataThatIsNotASnapshot() throws Exception {
+        MachineSnapshot.readFrom(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 0, 1}));
+    }
+
+    @Test
+    public void shouldRestoreQuickly() throws Exception {
+        SimpleMachine machine = new SimpleMachine();
+        MachineSnapshot snapshot = machine.snapshot();
+
+        // Warm up, then time many restores of a 64K machine.
+        for (int i = 0; i < 1000; i++) {
+            machine.restore(snapshot);
+        }
+        int count = 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            machine.restore(snapshot);
+        }
+        long averageNs = (System.nanoTime() - start) / count;
+        assertTrue("Restore took " + averageNs + " ns", averageNs < 1000000L);
+    }
+
+    @Test
+    public void forksShouldRunIndependently() throws Exception {
+        SymonMachine parent = new SymonMachine();
+        Bus bus = parent.getBus();
+
+        // $0300: INX / STX $10 / JMP $0300
+        load(bus, 0x0300, 0xe8, 0x86, 0x10, 0x4c, 0x00, 0x03);
+        parent.getCpu().setProgramCounter(0x0300);
+        parent.getCpu().step(30);
+
+        Machine child = parent.fork();
+        assertNotSame(parent.getRom(), child.getRom());
+        assertEquals(parent.getCpu().getProgramCounter(), child.getCpu().getProgramCounter());
+        assertEquals(10, child.getBus().read(0x10));
+
+        child.getCpu().setXRegister(0x80);
+        child.getCpu().step(30);
+        parent.getCpu().step(3);
+
+        assertEquals(0x8a, child.getBus().read(0x10));
+        assertEquals(11, bus.read(0x10));
+
+        // Code patched in one machine does not reach the other.
+        child.getBus().write(0x0300, 0xca);
+        child.getCpu().step(30);
+        parent.getCpu().step(3);
+        assertEquals(0x80, child.getBus().read(0x10));
+        assertEquals(12, bus.read(0x10));
+    }
+}
@@ -0,0 +1,203 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class MemoryTest {
+
+    @Test
+    public void shouldStoreBytes() throws Exception {
+        Memory memory = new Memory(0x0000, 0x00ff);
+        memory.write(0x10, 0x1ff);
+        assertEquals(0xff, memory.read(0x10));
+        assertEquals(1, memory.getPageCount());
+        assertEquals(256, memory.getPage(0).length);
+    }
+
+    @Test
+    public void shouldReadAndWriteRanges() throws Exception {
+        Memory memory = new Memory(0x1000, 0x1fff);
+        memory.writeRange(0x100, new byte[] {0x01, 0x02, (byte) 0x83, 0x04}, 1, 3);
+
+        assertEquals(0x02, memory.read(0x100));
+        assertEquals(0x83, memory.read(0x101));
+        assertEquals(0x04, memory.read(0x102));
+
+        byte[] dest = new byte[4];
+        memory.readRange(0x0ff, dest, 0, 4);
+        assertArrayEquals(new byte[] {0x00, 0x02, (byte) 0x83, 0x04}, dest);
+    }
+
+    @Test
+    public void shouldCopyFromBuffer() throws Exception {
+        Memory memory = new Memory(0x0000, 0x00ff);
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {0x11, 0x22, 0x33});
+        buffer.get();
+
+        memory.copyFrom(0x80, buffer);
+
+        assertFalse(buffer.hasRemaining());
+        assertEquals(0x22, memory.read(0x80));
+        assertEquals(0x33, memory.read(0x81));
+    }
+
+    @Test
+    public void shouldFillRange() throws Exception {
+        Memory memory = new Memory(0x0000, 0x00ff);
+        memory.fill(0x10, 0x20, 0xea);
+
+        assertEquals(0x00, memory.read(0x0f));
+        assertEquals(0xea, memory.read(0x10));
+        assertEquals(0xea, memory.read(0x2f));
+        assertEquals(0x00, memory.read(0x30));
+    }
+
+    @Test(expected = MemoryAccessException.class)
+    public void shouldRejectRangesOutsideMemory() throws Exception {
+        new Memory(0x0000, 0x00ff).writeRange(0xfe, new byte[4], 0, 4);
+    }
+
+    @Test(expected = MemoryAccessException.class)
+    public void shouldRejectBulkWritesToReadOnlyMemory() throws Exception {
+        new Memory(0x0000, 0x00ff, true).copyFrom(0, ByteBuffer.wrap(new byte[] {0x01}));
+    }
+
+    @Test
+    public void shouldLoadFromFile() throws Exception {
+        File file = File.createTempFile("symon", ".rom");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] {(byte) 0xa9, 0x42, 0x60});
+        }
+
+        Memory rom = Memory.makeROM(0xff00, 0xffff, file);
+
+        assertEquals(0xa9, rom.read(0));
+        assertEquals(0x42, rom.read(1));
+        assertEquals(0x60, rom.read(2));
+        assertEquals(0x00, rom.read(3));
+    }
+
+    @Test
+    public void romsFromTheSameFileShouldShareTheirImage() throws Exception {
+        File file = File.createTempFile("symon", ".rom");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] {0x01, 0x02});
+        }
+
+        Memory first = Memory.makeROM(0xff00, 0xffff, file);
+        Memory second = Memory.makeROM(0xff00, 0xffff, file);
+
+        assertTrue(first.isShared());
+        assertSame(first.getPage(0), second.getPage(0));
+
+        // A changed file is loaded again.
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] {0x03, 0x04, 0x05});
+        }
+        file.setLastModified(file.lastModified() + 2000);
+
+        Memory third = Memory.makeROM(0xff00, 0xffff, file);
+        assertNotSame(first.getPage(0), third.getPage(0));
+        assertEquals(0x03, third.read(0));
+        assertEquals(0x01, first.read(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sharedRomsShouldNotBeFilled() throws Exception {
+        File file = File.createTempFile("symon", ".rom");
+        file.deleteOnExit();
+
+        Memory.makeROM(0xff00, 0xffff, file).fill(0xea);
+    }
+
+    @Test
+    public void bulkWritesShouldInvalidateCachedCode() throws Exception {
+        Cpu cpu = new Cpu();
+        Bus bus = new Bus(0x0000, 0xffff);
+        Memory memory = new Memory(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(memory);
+
+        memory.writeRange(0x0200, new byte[] {(byte) 0xa9, 0x01, 0x4c, 0x00, 0x02}, 0, 5);
+        cpu.setProgramCounter(0x0200);
+        cpu.stepBlock();
+        assertEquals(0x01, cpu.getAccumulator());
+
+        memory.writeRange(0x0200, new byte[] {(byte) 0xa2, 0x07}, 0, 2);
+        cpu.stepBlock();
+        assertEquals(0x07, cpu.getXRegister());
+    }
+
+    @Test
+    public void forkedMemoryShouldCopyPagesOnWrite() throws Exception {
+        Memory parent = new Memory(0x0000, 0x0fff);
+        parent.write(0x123, 0x42);
+        parent.write(0x456, 0x43);
+
+        Memory child = parent.fork();
+        assertSame(parent.getPage(1), child.getPage(1));
+        assertTrue(parent.isPageShared(1));
+
+        child.write(0x124, 0x99);
+        assertNotSame(parent.getPage(1), child.getPage(1));
+        assertSame(parent.getPage(4), child.getPage(4));
+        assertEquals(0x42, child.read(0x123));
+        assertEquals(0x99, child.read(0x124));
+        assertEquals(0x00, parent.read(0x124));
+
+        parent.write(0x456, 0x44);
+        assertEquals(0x44, parent.read(0x456));
+        assertEquals(0x43, child.read(0x456));
+    }
+
+    @Test
+    public void forkedMemoryShouldBeWrittenThroughTheBus() throws Exception {
+        Memory memory = new Memory(0x0000, 0xffff);
+        Bus parentBus = new Bus(0x0000, 0xffff);
+        parentBus.addDevice(memory);
+        parentBus.write(0x0300, 0x01);
+
+        Memory forked = memory.fork();
+        Bus childBus = new Bus(0x0000, 0xffff);
+        childBus.addDevice(forked);
+
+        // Both buses must notice that the page is now shared.
+        parentBus.write(0x0300, 0x02);
+        childBus.write(0x0300, 0x03);
+        parentBus.write(0x0301, 0x04);
+
+        assertEquals(0x02, parentBus.read(0x0300));
+        assertEquals(0x03, childBus.read(0x0300));
+        assertEquals(0x04, parentBus.read(0x0301));
+        assertEquals(0x00, childBus.read(0x0301));
+    }
+
+    @Test
+    public void adoptedPagesShouldKeepTheirContents() throws Exception {
+        Memory memory = new Memory(0x0000, 0x01ff);
+        memory.write(0x10, 0x55);
+        byte[][] pages = memory.sharePages();
+
+        memory.write(0x10, 0x66);
+        memory.fill(0x100, 0x10, 0xea);
+        assertEquals(0x55, pages[0][0x10] & 0xff);
+
+        memory.adoptPages(pages);
+        assertEquals(0x55, memory.read(0x10));
+        assertEquals(0x00, memory.read(0x100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectPagesOfAnotherSize() throws Exception {
+        new Memory(0x0000, 0x01ff).adoptPages(new byte[3][]);
+    }
+}
@@ -0,0 +1,145 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.*;
+
+public class ProfilerTest {
+
+    private Cpu cpu;
+    private Bus bus;
+    private Profiler profiler;
+
+    @Before
+    public void setUp() throws Exception {
+        cpu = new Cpu();
+        bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+        cpu.reset();
+        cpu.setClockPeriodInNs(0);
+
+        profiler = new Profiler();
+        cpu.setProfiler(profiler);
+    }
+
+    private void load(int address, int... program) throws Exception {
+        for (int i = 0; i < program.length; i++) {
+            bus.write(address + i, program[i]);
+        }
+    }
+
+    @Test
+    public void shouldCountInstructionsAndCyclesPerAddress() throws Exception {
+        // $0300: LDX #$03 / DEX / BNE $0302 / NOP
+        load(0x0300, 0xa2, 0x03, 0xca, 0xd0, 0xfd, 0xea);
+        cpu.setProgramCounter(0x0300);
+        cpu.step(8);
+
+        assertEquals(1, profiler.getInstructionCount(0x0300));
+        assertEquals(3, profiler.getInstructionCount(0x0302));
+        assertEquals(3, profiler.getInstructionCount(0x0303));
+        assertEquals(1, profiler.getInstructionCount(0x0305));
+
+        assertEquals(2, profiler.getCycleCount(0x0300));
+        assertEquals(6, profiler.getCycleCount(0x0302));
+        // Two taken branches at 3 cycles, one not taken at 2.
+        assertEquals(8, profiler.getCycleCount(0x0303));
+
+        assertEquals(3, profiler.getOpcodeCount(0xca));
+        assertEquals(8, profiler.getTotalInstructions());
+        assertEquals(cpu.getCpuState().cycleCounter, profiler.getTotalCycles());
+    }
+
+    @Test
+    public void shouldAttributeInclusiveCyclesToSubroutines() throws Exception {
+        // $0300: JSR $0400 / JSR $0400 / NOP
+        load(0x0300, 0x20, 0x00, 0x04, 0x20, 0x00, 0x04, 0xea);
+        // $0400: JSR $0500 / RTS
+        load(0x0400, 0x20, 0x00, 0x05, 0x60);
+        // $0500: NOP / RTS
+        load(0x0500, 0xea, 0x60);
+        cpu.setProgramCounter(0x0300);
+        cpu.step(10);
+
+        assertEquals(0x0306, cpu.getProgramCounter());
+        assertEquals(2, profiler.getCallCount(0x0400));
+        assertEquals(2, profiler.getCallCount(0x0500));
+
+        // NOP (2) + RTS (6), plus the JSR (6) that called it.
+        assertEquals(2 * 14, profiler.getInclusiveCycles(0x0500));
+        // The JSR that called it (6), the call to $0500 (14) and RTS (6).
+        assertEquals(2 * (6 + 14 + 6), profiler.getInclusiveCycles(0x0400));
+    }
+
+    @Test
+    public void shouldCountRecursiveCallsOnce() throws Exception {
+        // $0300: JSR $0400
+        load(0x0300, 0x20, 0x00, 0x04);
+        // $0400: DEX / BEQ $0406 / JSR $0400 / RTS
+        load(0x0400, 0xca, 0xf0, 0x03, 0x20, 0x00, 0x04, 0x60);
+        cpu.setXRegister(2);
+        cpu.setProgramCounter(0x0300);
+        // JSR, DEX, BEQ, JSR, DEX, BEQ, RTS, RTS
+        cpu.step(8);
+
+        assertEquals(0x0303, cpu.getProgramCounter());
+        assertEquals(2, profiler.getCallCount(0x0400));
+        assertEquals(cpu.getCpuState().cycleCounter, profiler.getInclusiveCycles(0x0400));
+    }
+
+    @Test
+    public void shouldProfileWhileBlockStepping() throws Exception {
+        load(0x0300, 0xa2, 0x03, 0xca, 0xd0, 0xfd, 0xea);
+        cpu.setProgramCounter(0x0300);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(1, cpu.stepBlock());
+        }
+        assertEquals(3, profiler.getInstructionCount(0x0302));
+    }
+
+    @Test
+    public void shouldResetCounters() throws Exception {
+        load(0x0300, 0xea, 0xea);
+        cpu.setProgramCounter(0x0300);
+        cpu.step(2);
+        profiler.reset();
+        assertEquals(0, profiler.getInstructionCount(0x0300));
+        assertEquals(0, profiler.getOpcodeCount(0xea));
+        assertEquals(0, profiler.getTotalCycles());
+    }
+
+    @Test
+    public void shouldSortTopEntries() {
+        long[] counters = new long[16];
+        counters[3] = 10;
+        counters[7] = 30;
+        counters[9] = 20;
+        counters[12] = 20;
+
+        assertArrayEquals(new int[] {7, 9, 12}, Profiler.topEntries(counters, 3));
+        assertArrayEquals(new int[] {7, 9, 12, 3}, Profiler.topEntries(counters, 10));
+        assertArrayEquals(new int[0], Profiler.topEntries(new long[16], 10));
+    }
+
+    @Test
+    public void shouldWriteReportWithDisassembly() throws Exception {
+        load(0x0300, 0xa2, 0x03, 0xca, 0xd0, 0xfd, 0xea);
+        cpu.setProgramCounter(0x0300);
+        cpu.step(8);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        profiler.writeReport(new PrintStream(bytes, true), cpu, 2);
+        String report = bytes.toString();
+
+        assertTrue(report.contains("Profile: 8 instructions"));
+        assertTrue(report.contains("$0303"));
+        assertTrue(report.contains("BNE"));
+        assertTrue(report.contains("DEX"));
+    }
+}
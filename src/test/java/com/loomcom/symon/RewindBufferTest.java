@@ -0,0 +1,199 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.SimpleMachine;
+import com.loomcom.symon.machines.SymonMachine;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RewindBufferTest {
+
+    private SimpleMachine machine;
+    private SimulatorEngine engine;
+    private Bus bus;
+    private Cpu cpu;
+
+    @Before
+    public void setUp() throws Exception {
+        machine = new SimpleMachine();
+        engine = new SimulatorEngine(machine);
+        bus = machine.getBus();
+        cpu = machine.getCpu();
+        cpu.setClockPeriodInNs(0);
+
+        // $0300: INX / STX $10 / TXA / STA $1000,X / JMP $0300
+        load(0x0300, 0xe8, 0x86, 0x10, 0x8a, 0x9d, 0x00, 0x10, 0x4c, 0x00, 0x03);
+        cpu.setProgramCounter(0x0300);
+    }
+
+    private void load(int address, int... program) throws Exception {
+        for (int i = 0; i < program.length; i++) {
+            bus.write(address + i, program[i]);
+        }
+    }
+
+    private byte[] ram() throws Exception {
+        byte[] contents = new byte[0x10000];
+        machine.getRam().readRange(0, contents, 0, contents.length);
+        return contents;
+    }
+
+    private static void assertSameState(CpuState expected, CpuState actual) {
+        assertEquals(expected.a, actual.a);
+        assertEquals(expected.x, actual.x);
+        assertEquals(expected.y, actual.y);
+        assertEquals(expected.sp, actual.sp);
+        assertEquals(expected.pc, actual.pc);
+        assertEquals(expected.getStatusFlag(), actual.getStatusFlag());
+        assertEquals(expected.stepCounter, actual.stepCounter);
+        assertEquals(expected.cycleCounter, actual.cycleCounter);
+    }
+
+    @Test
+    public void shouldStepBack() throws Exception {
+        engine.setRewindBuffer(new RewindBuffer(machine, 50, 16, 1024));
+
+        engine.step(100);
+        CpuState before = new CpuState(cpu.getCpuState());
+        byte[] ramBefore = ram();
+
+        engine.step(37);
+        assertTrue(engine.stepBack(37));
+
+        assertSameState(before, cpu.getCpuState());
+        assertArrayEquals(ramBefore, ram());
+
+        // Running on repeats the same history.
+        engine.step(37);
+        CpuState after = new CpuState(cpu.getCpuState());
+        assertTrue(engine.stepBack(1));
+        engine.step(1);
+        assertSameState(after, cpu.getCpuState());
+    }
+
+    @Test
+    public void shouldStepBackToTheStart() throws Exception {
+        engine.setRewindBuffer(new RewindBuffer(machine, 50, 16, 1024));
+        CpuState start = new CpuState(cpu.getCpuState());
+        byte[] ramAtStart = ram();
+
+        engine.step(60);
+        assertTrue(engine.stepBack(60));
+
+        assertSameState(start, cpu.getCpuState());
+        assertArrayEquals(ramAtStart, ram());
+        assertFalse(engine.stepBack(1));
+    }
+
+    @Test
+    public void shouldRewindToCycle() throws Exception {
+        engine.setRewindBuffer(new RewindBuffer(machine, 100, 16, 1024));
+        long startCycle = cpu.getCpuState().cycleCounter;
+
+        engine.step(200);
+        assertTrue(engine.rewindToCycle(startCycle + 301));
+
+        long cycle = cpu.getCpuState().cycleCounter;
+        assertTrue(cycle >= startCycle + 301);
+        assertTrue(cycle < startCycle + 301 + 4);
+    }
+
+    @Test
+    public void shouldNotRewindIntoTheFuture() throws Exception {
+        engine.setRewindBuffer(new RewindBuffer(machine));
+        engine.step(10);
+        long steps = cpu.getCpuState().stepCounter;
+
+        assertFalse(engine.rewindToCycle(cpu.getCpuState().cycleCounter + 1));
+        assertEquals(steps, cpu.getCpuState().stepCounter);
+    }
+
+    @Test
+    public void shouldForgetStepsOutsideTheJournal() throws Exception {
+        // Each pass around the loop makes two writes, so 64 entries last
+        // about 32 passes, or 160 steps.
+        RewindBuffer rewind = new RewindBuffer(machine, 20, 64, 64);
+        engine.setRewindBuffer(rewind);
+
+        engine.step(1000);
+        long steps = cpu.getCpuState().stepCounter;
+        long oldest = rewind.getOldestStep();
+
+        assertTrue(oldest > steps - 200);
+        assertFalse(engine.stepBack((int) (steps - oldest) + 1));
+        assertEquals(steps, cpu.getCpuState().stepCounter);
+        assertTrue(engine.stepBack((int) (steps - oldest)));
+        assertEquals(oldest, cpu.getCpuState().stepCounter);
+    }
+
+    @Test
+    public void shouldKeepALimitedNumberOfCheckpoints() throws Exception {
+        RewindBuffer rewind = new RewindBuffer(machine, 10, 4, 1 << 16);
+        engine.setRewindBuffer(rewind);
+
+        engine.step(500);
+
+        assertEquals(4, rewind.getCheckpointCount());
+        assertTrue(rewind.getOldestCycle() > cpu.getCpuState().cycleCounter - 60);
+    }
+
+    @Test
+    public void shouldUndoSelfModifiedCode() throws Exception {
+        engine.setRewindBuffer(new RewindBuffer(machine, 50, 16, 1024));
+        engine.setBlockStepping(true);
+        engine.step(20);
+        CpuState before = new CpuState(cpu.getCpuState());
+
+        // Turn the INX into a DEX.
+        bus.write(0x0300, 0xca);
+        engine.step(20);
+        assertTrue(engine.stepBack((int) (cpu.getCpuState().stepCounter - before.stepCounter)));
+
+        assertEquals(0xe8, bus.read(0x0300));
+        engine.step(1);
+        assertEquals((before.x + 1) & 0xff, cpu.getXRegister());
+    }
+
+    @Test
+    public void shouldRestoreDeviceState() throws Exception {
+        SymonMachine symon = new SymonMachine();
+        SimulatorEngine symonEngine = new SimulatorEngine(symon);
+        symon.getCpu().setClockPeriodInNs(0);
+        symonEngine.setRewindBuffer(new RewindBuffer(symon, 10, 16, 1024));
+
+        // $0300: LDA #$1F / STA $8803 (ACIA control) / JMP $0305
+        Bus symonBus = symon.getBus();
+        int[] program = {0xa9, 0x1f, 0x8d, 0x03, 0x88, 0x4c, 0x05, 0x03};
+        for (int i = 0; i < program.length; i++) {
+            symonBus.write(0x0300 + i, program[i]);
+        }
+        symon.getCpu().setProgramCounter(0x0300);
+        symonEngine.getRewindBuffer().reset();
+        int baudRate = symon.getAcia().getBaudRate();
+
+        symonEngine.step(10);
+        assertEquals(19200, symon.getAcia().getBaudRate());
+
+        assertTrue(symonEngine.stepBack(10));
+        assertEquals(baudRate, symon.getAcia().getBaudRate());
+    }
+
+    @Test
+    public void shouldStartAgainAfterReset() throws Exception {
+        RewindBuffer rewind = new RewindBuffer(machine, 50, 16, 1024);
+        engine.setRewindBuffer(rewind);
+        engine.step(100);
+
+        engine.reset(false);
+        cpu.setProgramCounter(0x0300);
+
+        assertFalse(engine.stepBack(1));
+        assertEquals(cpu.getCpuState().stepCounter, rewind.getOldestStep());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRequireAPowerOfTwoJournal() {
+        new RewindBuffer(machine, 100, 16, 1000);
+    }
+}
@@ -0,0 +1,169 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.SymonMachine;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SimulatorEngineTest {
+
+    private SimulatorEngine engine;
+    private SymonMachine machine;
+
+    @Before
+    public void setUp() throws Exception {
+        machine = new SymonMachine();
+        engine = new SimulatorEngine(machine);
+        machine.getCpu().setClockPeriodInNs(0);
+    }
+
+    @Test
+    public void shouldWriteAciaOutputToStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        engine.setAciaOutput(out);
+
+        engine.loadProgram(new byte[] {(byte) 0xa9, 0x48,        // LDA #'H'
+                                       (byte) 0x8d, 0x00, (byte) 0x88, // STA $8800
+                                       (byte) 0xa9, 0x69,        // LDA #'i'
+                                       (byte) 0x8d, 0x00, (byte) 0x88}, // STA $8800
+                           0x0300);
+        engine.step(4);
+
+        assertEquals("Hi", out.toString("US-ASCII"));
+    }
+
+    @Test
+    public void shouldSendFifoOutputInBatches() throws Exception {
+        final java.util.List<Integer> writes = new java.util.ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                writes.add(len);
+                super.write(b, off, len);
+            }
+        };
+        engine.setAciaOutput(out);
+        machine.getAcia().setFifoDepth(16);
+
+        byte[] program = new byte[30];
+        for (int i = 0; i < 6; i++) {
+            program[i * 5] = (byte) 0xa9;                // LDA #'a'+i
+            program[i * 5 + 1] = (byte) ('a' + i);
+            program[i * 5 + 2] = (byte) 0x8d;            // STA $8800
+            program[i * 5 + 3] = 0x00;
+            program[i * 5 + 4] = (byte) 0x88;
+        }
+        engine.loadProgram(program, 0x0300);
+        engine.step(12);
+        assertEquals(0, out.size());
+
+        // Running the engine sends whatever is left when it stops.
+        engine.setStopCondition(new SimulatorEngine.StopCondition() {
+            @Override
+            public boolean shouldStop(Cpu cpu) {
+                return true;
+            }
+        });
+        engine.run();
+        assertEquals("abcdef", out.toString("US-ASCII"));
+        assertEquals(1, writes.size());
+    }
+
+    @Test
+    public void shouldFeedAciaFifoFromInputStream() throws Exception {
+        engine.setAciaInput(new ByteArrayInputStream("ABC".getBytes("US-ASCII")));
+        machine.getAcia().setFifoDepth(16);
+
+        byte[] nops = new byte[256];
+        java.util.Arrays.fill(nops, (byte) 0xea);
+        engine.loadProgram(nops, 0x0300);
+        engine.step(100);
+
+        assertEquals('A', machine.getAcia().rxRead());
+        assertEquals('B', machine.getAcia().rxRead());
+        assertEquals('C', machine.getAcia().rxRead());
+    }
+
+    @Test
+    public void shouldFeedAciaFromInputStream() throws Exception {
+        engine.setAciaInput(new ByteArrayInputStream("AB".getBytes("US-ASCII")));
+
+        byte[] nops = new byte[256];
+        java.util.Arrays.fill(nops, (byte) 0xea);
+        engine.loadProgram(nops, 0x0300);
+        engine.step(200);
+
+        assertTrue(machine.getAcia().hasRxChar());
+        assertEquals('A', machine.getAcia().rxRead());
+
+        engine.step(100);
+        assertEquals('B', machine.getAcia().rxRead());
+    }
+
+    @Test
+    public void shouldRunUntilStopConditionIsMet() throws Exception {
+        final AtomicInteger steps = new AtomicInteger();
+        final AtomicInteger starts = new AtomicInteger();
+        final AtomicInteger stops = new AtomicInteger();
+
+        engine.addListener(new SimulatorEngine.Listener() {
+            public void simulatorDidStart() {
+                starts.incrementAndGet();
+            }
+
+            public void simulatorDidStop() {
+                stops.incrementAndGet();
+            }
+
+            public void simulatorDidStep(CpuState state) {
+                steps.incrementAndGet();
+            }
+        });
+        engine.setStopCondition(new SimulatorEngine.StopCondition() {
+            public boolean shouldStop(Cpu cpu) {
+                return cpu.getProgramCounter() == 0x0306;
+            }
+        });
+
+        engine.loadProgram(new byte[] {(byte) 0xe8,              // INX
+                                       (byte) 0xe0, 0x10,        // CPX #$10
+                                       (byte) 0xd0, (byte) 0xfb, // BNE $0300
+                                       (byte) 0xea,              // NOP
+                                       (byte) 0xea},             // NOP
+                           0x0300);
+        engine.run();
+
+        assertFalse(engine.isRunning());
+        assertEquals(0x10, machine.getCpu().getXRegister());
+        assertEquals(0x0306, machine.getCpu().getProgramCounter());
+        assertEquals(49, steps.get());
+        assertEquals(1, starts.get());
+        assertEquals(1, stops.get());
+    }
+
+    @Test
+    public void shouldStopRunningThread() throws Exception {
+        engine.loadProgram(new byte[] {0x4c, 0x00, 0x03}, 0x0300); // JMP $0300
+        engine.start();
+        assertTrue(engine.isRunning());
+
+        engine.stop();
+        assertFalse(engine.isRunning());
+    }
+
+    @Test
+    public void coldResetShouldClearRam() throws Exception {
+        machine.getBus().write(0x1000, 0x42);
+
+        engine.reset(false);
+        assertEquals(0x42, machine.getBus().read(0x1000));
+
+        engine.reset(true);
+        assertEquals(0x00, machine.getBus().read(0x1000));
+    }
+}
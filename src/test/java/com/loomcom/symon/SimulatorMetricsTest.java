@@ -0,0 +1,131 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.SimpleMachine;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class SimulatorMetricsTest {
+
+    private SimpleMachine machine;
+    private SimulatorEngine engine;
+    private SimulatorMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        machine = new SimpleMachine();
+        engine = new SimulatorEngine(machine);
+        metrics = engine.getMetrics();
+        machine.getCpu().setClockPeriodInNs(0);
+
+        // JMP $0300
+        engine.loadProgram(new byte[] {0x4c, 0x00, 0x03}, 0x0300);
+    }
+
+    @Test
+    public void shouldMeasureSpeedOfRun() throws Exception {
+        runSteps(100000);
+
+        assertEquals(100000, metrics.getTotalInstructions());
+        assertEquals(300000, metrics.getTotalCycles());
+        assertTrue(metrics.getEffectiveMhz() > 0);
+        assertTrue(metrics.getInstructionsPerSecond() > 0);
+        // JMP takes 3 cycles, so the clock runs at three times the instruction rate.
+        assertEquals(3.0, metrics.getEffectiveMhz() * 1e6 / metrics.getInstructionsPerSecond(), 0.001);
+        assertEquals(0.0, metrics.getTargetMhz(), 0.0);
+    }
+
+    @Test
+    public void shouldMeasureThrottleWaiting() throws Exception {
+        machine.getCpu().setClockPeriodInNs(1000);
+        runSteps(10000);
+
+        assertEquals(1.0, metrics.getTargetMhz(), 0.001);
+        // 30,000 cycles at 1 MHz take 30 ms, almost all of it spent waiting.
+        assertTrue(metrics.getEffectiveMhz() < 1.5);
+        assertTrue(metrics.getThrottleWaitPercent() > 10);
+        assertTrue(metrics.getThrottleWaitPercent() <= 100);
+    }
+
+    @Test
+    public void shouldAverageUiEvents() throws Exception {
+        engine.addListener(new SimulatorEngine.Listener() {
+            @Override
+            public void simulatorDidStart() {
+            }
+
+            @Override
+            public void simulatorDidStop() {
+            }
+
+            @Override
+            public void simulatorDidStep(CpuState state) {
+                if (state.stepCounter == 500) {
+                    metrics.recordUiRefresh(1000000);
+                    metrics.recordUiRefresh(3000000);
+                    metrics.recordFrame(500000);
+                    metrics.recordTraceRefresh();
+                }
+            }
+        });
+        runSteps(1000);
+
+        assertEquals(2.0, metrics.getUiRefreshMs(), 0.001);
+        assertEquals(0.5, metrics.getCrtcFrameMs(), 0.001);
+        assertTrue(metrics.getUiRefreshesPerSecond() > 0);
+        assertTrue(metrics.getCrtcFramesPerSecond() > 0);
+        assertTrue(metrics.getTraceRefreshesPerSecond() > 0);
+    }
+
+    @Test
+    public void shouldNotCountEventsFromBeforeRun() throws Exception {
+        runSteps(1000);
+        metrics.recordUiRefresh(1000000);
+        // The next run starts measuring afresh, so the refresh belongs to the gap between runs.
+        runSteps(1000);
+
+        assertEquals(0.0, metrics.getUiRefreshesPerSecond(), 0.0);
+        assertEquals(0.0, metrics.getUiRefreshMs(), 0.0);
+    }
+
+    @Test
+    public void shouldRegisterWithJmx() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(SimulatorMetrics.OBJECT_NAME);
+
+        metrics.register();
+        try {
+            runSteps(1000);
+            assertEquals(1000L, server.getAttribute(name, "TotalInstructions"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void shouldDescribeSample() throws Exception {
+        machine.getCpu().setClockPeriodInNs(1000);
+        runSteps(1000);
+
+        String description = metrics.describe();
+        assertTrue(description, description.contains("of 1.00 MHz target"));
+        assertTrue(description, description.contains("MIPS"));
+    }
+
+    private void runSteps(final long steps) {
+        final long end = machine.getCpu().getCpuState().stepCounter + steps;
+        engine.setStopCondition(new SimulatorEngine.StopCondition() {
+            @Override
+            public boolean shouldStop(Cpu cpu) {
+                return cpu.getCpuState().stepCounter >= end;
+            }
+        });
+        engine.run();
+    }
+}
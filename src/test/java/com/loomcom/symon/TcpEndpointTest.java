@@ -0,0 +1,179 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.io.TcpEndpoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+public class TcpEndpointTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private TcpEndpoint endpoint;
+
+    @Before
+    public void setUp() throws Exception {
+        endpoint = new TcpEndpoint(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        endpoint.close();
+    }
+
+    private Socket connect() throws Exception {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), endpoint.getPort());
+        socket.setSoTimeout((int) TIMEOUT_MS);
+        return socket;
+    }
+
+    /**
+     * Poll the endpoint, as the engine does, until input arrives.
+     */
+    private int awaitInput(int count) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        int available;
+        while ((available = endpoint.getInputStream().available()) < count) {
+            assertTrue("Timed out waiting for input", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        return available;
+    }
+
+    private void awaitClients(int count) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (endpoint.getClientCount() != count) {
+            assertTrue("Timed out waiting for clients", System.currentTimeMillis() < deadline);
+            endpoint.getInputStream().available();
+            Thread.sleep(1);
+        }
+    }
+
+    private static String readFully(InputStream in, int length) throws Exception {
+        byte[] data = new byte[length];
+        int n = 0;
+        while (n < length) {
+            int read = in.read(data, n, length - n);
+            assertTrue(read > 0);
+            n += read;
+        }
+        return new String(data, "US-ASCII");
+    }
+
+    @Test
+    public void shouldNotBlockWithoutInput() throws Exception {
+        assertEquals(0, endpoint.getInputStream().available());
+        assertEquals(0, endpoint.getClientCount());
+        // Output with nobody connected is discarded.
+        endpoint.getOutputStream().write("ignored".getBytes("US-ASCII"));
+    }
+
+    @Test
+    public void shouldReceiveClientInput() throws Exception {
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write("RUN\r".getBytes("US-ASCII"));
+
+            byte[] data = new byte[16];
+            assertEquals(4, awaitInput(4));
+            assertEquals(4, endpoint.getInputStream().read(data, 0, data.length));
+            assertEquals("RUN\r", new String(data, 0, 4, "US-ASCII"));
+            assertEquals(0, endpoint.getInputStream().available());
+        }
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void shouldBlockReadUntilInputArrives() throws Exception {
+        final Socket[] client = new Socket[1];
+        Thread typist = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    client[0] = connect();
+                    client[0].getOutputStream().write('A');
+                } catch (Exception ex) {
+                    // The read below times out.
+                }
+            }
+        };
+        typist.start();
+        try {
+            assertEquals('A', endpoint.getInputStream().read());
+        } finally {
+            typist.join(TIMEOUT_MS);
+            if (client[0] != null) {
+                client[0].close();
+            }
+        }
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void shouldEndInputWhenClosed() throws Exception {
+        Thread closer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    endpoint.close();
+                } catch (Exception ex) {
+                    // The read below times out.
+                }
+            }
+        };
+        closer.start();
+        assertEquals(-1, endpoint.getInputStream().read(new byte[16], 0, 16));
+        closer.join();
+        assertEquals(-1, endpoint.getInputStream().read());
+    }
+
+    @Test
+    public void shouldSendOutputToEveryClient() throws Exception {
+        try (Socket first = connect(); Socket second = connect()) {
+            awaitClients(2);
+
+            OutputStream out = endpoint.getOutputStream();
+            out.write("READY".getBytes("US-ASCII"));
+            out.write('\r');
+
+            assertEquals("READY\r", readFully(first.getInputStream(), 6));
+            assertEquals("READY\r", readFully(second.getInputStream(), 6));
+        }
+    }
+
+    @Test
+    public void shouldForgetDisconnectedClients() throws Exception {
+        Socket socket = connect();
+        awaitClients(1);
+        socket.close();
+        awaitClients(0);
+    }
+
+    @Test
+    public void shouldDropClientThatStopsReading() throws Exception {
+        try (Socket socket = connect()) {
+            awaitClients(1);
+
+            // Each write returns at once; the client is dropped once its
+            // socket and its backlog are full.
+            byte[] data = new byte[4096];
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (endpoint.getClientCount() > 0) {
+                assertTrue("Timed out waiting for the client to be dropped", System.currentTimeMillis() < deadline);
+                endpoint.getOutputStream().write(data);
+            }
+        }
+    }
+
+    @Test
+    public void shouldDescribeItself() {
+        assertTrue(endpoint.getPort() > 0);
+        assertEquals("localhost:" + endpoint.getPort(), endpoint.getDescription());
+    }
+}
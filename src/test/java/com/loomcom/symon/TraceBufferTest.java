@@ -0,0 +1,107 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.util.TraceBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TraceBufferTest {
+
+    private CpuState stateAt(int pc) {
+        CpuState state = new CpuState();
+        state.lastPc = pc;
+        state.ir = 0xad;
+        state.args[0] = pc & 0xff;
+        state.args[1] = 0x12;
+        state.a = 0x01;
+        state.x = 0x02;
+        state.y = 0x03;
+        state.sp = 0xfd;
+        state.carryFlag = true;
+        state.negativeFlag = true;
+        state.cycleCounter = pc * 4L;
+        return state;
+    }
+
+    @Test
+    public void shouldStartEmpty() {
+        TraceBuffer buffer = new TraceBuffer(4);
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.firstSequence());
+        assertEquals(0, buffer.endSequence());
+        assertFalse(buffer.read(0, new CpuState()));
+    }
+
+    @Test
+    public void shouldRecordAndReadBackEntries() {
+        TraceBuffer buffer = new TraceBuffer(4);
+        buffer.record(stateAt(0x1000));
+        buffer.record(stateAt(0x1003));
+
+        assertEquals(2, buffer.size());
+
+        CpuState state = new CpuState();
+        assertTrue(buffer.read(1, state));
+        assertEquals(0x1003, state.lastPc);
+        assertEquals(0xad, state.ir);
+        assertEquals(0x03, state.args[0]);
+        assertEquals(0x12, state.args[1]);
+        assertEquals(0x01, state.a);
+        assertEquals(0x02, state.x);
+        assertEquals(0x03, state.y);
+        assertEquals(0xfd, state.sp);
+        assertTrue(state.carryFlag);
+        assertTrue(state.negativeFlag);
+        assertFalse(state.zeroFlag);
+        assertEquals(0x1003 * 4L, state.cycleCounter);
+        assertEquals(0x1003, buffer.pcAt(1));
+    }
+
+    @Test
+    public void shouldOverwriteOldestEntriesWhenFull() {
+        TraceBuffer buffer = new TraceBuffer(4);
+        for (int i = 0; i < 6; i++) {
+            buffer.record(stateAt(0x2000 + i));
+        }
+
+        assertEquals(4, buffer.size());
+        assertEquals(2, buffer.firstSequence());
+        assertEquals(6, buffer.endSequence());
+
+        CpuState state = new CpuState();
+        assertFalse(buffer.read(1, state));
+        assertEquals(-1, buffer.pcAt(1));
+        for (long n = 2; n < 6; n++) {
+            assertTrue(buffer.read(n, state));
+            assertEquals(0x2000 + n, state.lastPc);
+        }
+    }
+
+    @Test
+    public void shouldForgetEntriesOnReset() {
+        TraceBuffer buffer = new TraceBuffer(4);
+        buffer.record(stateAt(0x3000));
+        buffer.record(stateAt(0x3001));
+        buffer.reset();
+
+        assertEquals(0, buffer.size());
+        assertFalse(buffer.read(1, new CpuState()));
+
+        buffer.record(stateAt(0x3002));
+        assertEquals(1, buffer.size());
+        assertEquals(2, buffer.firstSequence());
+        assertEquals(0x3002, buffer.pcAt(2));
+    }
+
+    @Test
+    public void shouldNotKeepReferencesToRecordedStates() {
+        TraceBuffer buffer = new TraceBuffer(4);
+        CpuState state = stateAt(0x4000);
+        buffer.record(state);
+        state.lastPc = 0x5000;
+        buffer.record(state);
+
+        assertEquals(0x4000, buffer.pcAt(0));
+        assertEquals(0x5000, buffer.pcAt(1));
+    }
+}
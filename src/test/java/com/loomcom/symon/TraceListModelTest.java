@@ -0,0 +1,76 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.ui.TraceListModel;
+import com.loomcom.symon.util.TraceBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TraceListModelTest {
+
+    private TraceBuffer buffer;
+    private TraceListModel model;
+
+    @Before
+    public void setUp() {
+        buffer = new TraceBuffer(8);
+        model = new TraceListModel(buffer);
+    }
+
+    private void record(int pc) {
+        CpuState state = new CpuState();
+        state.lastPc = pc;
+        state.ir = 0xea; // NOP
+        buffer.record(state);
+    }
+
+    @Test
+    public void shouldShowSnapshotTakenAtRefresh() {
+        record(0x1000);
+        record(0x1001);
+        assertEquals(0, model.getSize());
+
+        model.refresh();
+        assertEquals(2, model.getSize());
+
+        record(0x1002);
+        assertEquals(2, model.getSize());
+    }
+
+    @Test
+    public void shouldFormatRowsWithoutTrailingNewline() {
+        record(0x1234);
+        model.refresh();
+        String row = model.getElementAt(0);
+        assertTrue(row.startsWith("1234  EA"));
+        assertFalse(row.endsWith("\n"));
+    }
+
+    @Test
+    public void shouldOnlyKeepNewestEntries() {
+        for (int i = 0; i < 10; i++) {
+            record(0x2000 + i);
+        }
+        model.refresh();
+        assertEquals(8, model.getSize());
+        assertTrue(model.getElementAt(0).startsWith("2002"));
+        assertTrue(model.getElementAt(7).startsWith("2009"));
+    }
+
+    @Test
+    public void shouldFilterByPcRange() {
+        for (int i = 0; i < 6; i++) {
+            record(0x3000 + i);
+        }
+        model.setPcFilter(0x3004, 0x3002);
+        assertTrue(model.isFiltering());
+        assertEquals(3, model.getSize());
+        assertTrue(model.getElementAt(0).startsWith("3002"));
+        assertTrue(model.getElementAt(2).startsWith("3004"));
+
+        model.clearPcFilter();
+        assertFalse(model.isFiltering());
+        assertEquals(6, model.getSize());
+    }
+}
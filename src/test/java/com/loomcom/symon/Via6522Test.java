@@ -0,0 +1,261 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.devices.Via6522;
+import com.loomcom.symon.machines.MachineSnapshot;
+import com.loomcom.symon.machines.SymonMachine;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class Via6522Test {
+
+    private static final int VIA_BASE = 0x8000;
+
+    private static final int T1C_L = 4;
+    private static final int T1C_H = 5;
+    private static final int T1L_L = 6;
+    private static final int T2C_L = 8;
+    private static final int T2C_H = 9;
+    private static final int ACR = 11;
+    private static final int IFR = 13;
+    private static final int IER = 14;
+
+    private static final int IRQ_T1 = 0x40;
+    private static final int IRQ_T2 = 0x20;
+
+    private Cpu cpu;
+    private Bus bus;
+    private Via6522 via;
+
+    @Before
+    public void setUp() throws Exception {
+        cpu = new Cpu();
+        bus = new Bus(0x0000, 0xffff);
+        via = new Via6522(VIA_BASE);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0x7fff));
+        bus.addDevice(via);
+        bus.addDevice(new Memory(0x9000, 0xffff));
+        cpu.reset();
+    }
+
+    /**
+     * Move the clock forward without running any instructions.
+     */
+    private void advanceTo(long cycle) {
+        cpu.getCpuState().cycleCounter = cycle;
+        cpu.getEventQueue().runDue(cycle);
+    }
+
+    private int timer1() throws Exception {
+        return via.read(T1C_L) | (via.read(T1C_H) << 8);
+    }
+
+    @Test
+    public void portsShouldReadOutputsAndFloatingInputs() throws Exception {
+        via.write(2, 0x0f);   // DDRB: low nybble output
+        via.write(0, 0x5a);   // ORB
+        assertEquals(0xfa, via.read(0));
+        assertEquals(0x0f, via.read(2));
+
+        via.write(3, 0xff);   // DDRA: all outputs
+        via.write(1, 0x42);   // ORA
+        assertEquals(0x42, via.read(1));
+        assertEquals(0x42, via.read(15));
+    }
+
+    @Test
+    public void timer1ShouldCountDownAndFireOnceInOneShotMode() throws Exception {
+        via.write(T1C_L, 0x00);
+        via.write(T1C_H, 0x01);   // 256, starting at cycle 0
+
+        advanceTo(1);
+        assertEquals(0x100, timer1());
+        advanceTo(101);
+        assertEquals(0x100 - 100, timer1());
+        assertEquals(0, via.read(IFR));
+
+        advanceTo(258);
+        assertEquals(IRQ_T1, via.read(IFR) & 0x40);
+        assertFalse(cpu.getCpuState().irqAsserted);
+
+        // Reading the low counter byte clears the flag.
+        via.read(T1C_L);
+        assertEquals(0, via.read(IFR));
+
+        // The timer reloads, but does not set the flag again.
+        advanceTo(258 * 3);
+        assertEquals(0, via.read(IFR));
+    }
+
+    @Test
+    public void timer1ShouldInterruptRepeatedlyInFreeRunMode() throws Exception {
+        via.write(ACR, 0x40);
+        via.write(IER, 0x80 | IRQ_T1);
+        assertEquals(0x80 | IRQ_T1, via.read(IER));
+        via.write(T1C_L, 98);
+        via.write(T1C_H, 0);      // A period of 100 cycles
+
+        for (int i = 1; i <= 3; i++) {
+            advanceTo(i * 100 - 1);
+            assertFalse(cpu.getCpuState().irqAsserted);
+            advanceTo(i * 100);
+            assertTrue(cpu.getCpuState().irqAsserted);
+            assertEquals(0x80 | IRQ_T1, via.read(IFR));
+
+            // Acknowledge by writing the flag back.
+            via.write(IFR, IRQ_T1);
+            assertEquals(0, via.read(IFR));
+            cpu.clearIrq();
+        }
+    }
+
+    @Test
+    public void disablingInterruptShouldOnlyLeaveFlag() throws Exception {
+        via.write(IER, 0x80 | IRQ_T2);
+        via.write(IER, IRQ_T2);
+        assertEquals(0x80, via.read(IER));
+
+        via.write(T2C_L, 10);
+        via.write(T2C_H, 0);
+        advanceTo(12);
+        assertEquals(IRQ_T2, via.read(IFR));
+        assertFalse(cpu.getCpuState().irqAsserted);
+
+        // Enabling an interrupt that is already flagged raises it.
+        via.write(IER, 0x80 | IRQ_T2);
+        assertTrue(cpu.getCpuState().irqAsserted);
+    }
+
+    @Test
+    public void timer2ShouldFireOnceAndKeepCounting() throws Exception {
+        via.write(T2C_L, 0x10);
+        via.write(T2C_H, 0x00);
+
+        advanceTo(5);
+        assertEquals(0x0c, via.read(T2C_L) | (via.read(T2C_H) << 8));
+        advanceTo(0x12);
+        assertEquals(IRQ_T2, via.read(IFR));
+        via.read(T2C_L);
+        assertEquals(0, via.read(IFR));
+
+        advanceTo(0x12 + 0x101);
+        assertEquals(0xfefe, via.read(T2C_L) | (via.read(T2C_H) << 8));
+        advanceTo(0x12 + 0x10000);
+        assertEquals(0, via.read(IFR));
+    }
+
+    @Test
+    public void timer2ShouldStopWhenCountingPulses() throws Exception {
+        via.write(ACR, 0x20);
+        via.write(T2C_L, 0x34);
+        via.write(T2C_H, 0x12);
+        advanceTo(100000);
+        assertEquals(0x1234, via.read(T2C_L) | (via.read(T2C_H) << 8));
+        assertEquals(0, via.read(IFR));
+    }
+
+    @Test
+    public void latchesShouldReadBack() throws Exception {
+        via.write(T1L_L, 0xcd);
+        via.write(7, 0xab);
+        assertEquals(0xcd, via.read(T1L_L));
+        assertEquals(0xab, via.read(7));
+        // Timer 1 has not been started.
+        assertEquals(0xabcd, timer1());
+    }
+
+    /*
+     * Sets up timer 1 to interrupt every 1000 cycles, and runs a loop of
+     * NOPs. The handler counts interrupts in $10, and saves the low byte of
+     * the interrupted PC in $11.
+     */
+    private void loadInterruptProgram() throws Exception {
+        write(0x0300, 0x78,              // SEI
+                      0xa9, 0x40,        // LDA #$40
+                      0x8d, 0x0b, 0x80,  // STA $800B (ACR: free-running T1)
+                      0xa9, 0xc0,        // LDA #$C0
+                      0x8d, 0x0e, 0x80,  // STA $800E (IER: enable T1)
+                      0xa9, 0xe6,        // LDA #$E6
+                      0x8d, 0x04, 0x80,  // STA $8004
+                      0xa9, 0x03,        // LDA #$03
+                      0x8d, 0x05, 0x80,  // STA $8005 (998, a period of 1000)
+                      0x58);             // CLI
+        for (int i = 0; i < 20; i++) {
+            bus.write(0x0316 + i, 0xea);   // NOP
+        }
+        write(0x032a, 0x4c, 0x16, 0x03);  // JMP $0316
+
+        write(0x0400, 0xad, 0x04, 0x80,  // LDA $8004
+                      0xba,              // TSX
+                      0xbd, 0x02, 0x01,  // LDA $0102,X
+                      0x85, 0x11,        // STA $11
+                      0xe6, 0x10,        // INC $10
+                      0x40);             // RTI
+        write(0xfffe, 0x00, 0x04);
+
+        cpu.reset();
+        cpu.setProgramCounter(0x0300);
+    }
+
+    private void write(int address, int... data) throws Exception {
+        for (int i = 0; i < data.length; i++) {
+            bus.write(address + i, data[i]);
+        }
+    }
+
+    @Test
+    public void timerShouldDriveInterruptHandler() throws Exception {
+        loadInterruptProgram();
+        while (cpu.getCpuState().cycleCounter < 100000) {
+            cpu.step();
+        }
+        // The timer starts at cycle 26, and runs out at 1026, 2026, ... 99026.
+        assertEquals(99, bus.read(0x10));
+    }
+
+    @Test
+    public void blockEngineShouldTakeInterruptsAtSameInstructions() throws Exception {
+        loadInterruptProgram();
+        int[] interpreted = new int[40];
+        for (int count = 0; count < interpreted.length; ) {
+            cpu.step();
+            if (bus.read(0x10) != count) {
+                interpreted[count++] = bus.read(0x11);
+            }
+        }
+
+        setUp();
+        loadInterruptProgram();
+        int[] blocks = new int[40];
+        for (int count = 0; count < blocks.length; ) {
+            cpu.stepBlock();
+            if (bus.read(0x10) != count) {
+                blocks[count++] = bus.read(0x11);
+            }
+        }
+
+        assertArrayEquals(interpreted, blocks);
+    }
+
+    @Test
+    public void snapshotShouldKeepRunningTimers() throws Exception {
+        SymonMachine machine = new SymonMachine();
+        Bus machineBus = machine.getBus();
+        machineBus.write(VIA_BASE + ACR, 0x40);
+        machineBus.write(VIA_BASE + T1C_L, 98);
+        machineBus.write(VIA_BASE + T1C_H, 0);
+        machine.getCpu().getCpuState().cycleCounter = 40;
+        MachineSnapshot snapshot = machine.snapshot();
+
+        SymonMachine copy = new SymonMachine();
+        copy.restore(MachineSnapshot.fromByteArray(snapshot.toByteArray()));
+        assertEquals(59, copy.getBus().read(VIA_BASE + T1C_L));
+
+        copy.getCpu().getCpuState().cycleCounter = 100;
+        copy.getCpu().getEventQueue().runDue(100);
+        assertEquals(IRQ_T1, copy.getBus().read(VIA_BASE + IFR) & IRQ_T1);
+    }
+}
@@ -0,0 +1,128 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WatchpointsTest {
+
+    private Cpu cpu;
+    private Bus bus;
+    private Watchpoints watchpoints;
+
+    @Before
+    public void setUp() throws Exception {
+        cpu = new Cpu();
+        bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+        watchpoints = new Watchpoints();
+        bus.setWatchpoints(watchpoints);
+        cpu.reset();
+    }
+
+    @Test
+    public void shouldNotTriggerWithoutWatchpoints() throws Exception {
+        bus.write(0x0200, 0x12);
+        bus.read(0x0200);
+        assertTrue(watchpoints.isEmpty());
+        assertFalse(watchpoints.isTriggered());
+    }
+
+    @Test
+    public void shouldTriggerOnWatchedWrite() throws Exception {
+        watchpoints.addWatchpoint(0x0200, 0x020f, Watchpoints.WRITE);
+        bus.applyWatchpointChanges();
+
+        bus.write(0x01ff, 0x01);
+        bus.write(0x0210, 0x01);
+        bus.read(0x0205);
+        assertFalse(watchpoints.isTriggered());
+
+        bus.write(0x0205, 0x41);
+        assertTrue(watchpoints.isTriggered());
+        assertEquals(0x0205, watchpoints.getTriggerAddress());
+        assertEquals(0x41, watchpoints.getTriggerValue());
+        assertTrue(watchpoints.getTriggerWasWrite());
+        assertEquals("Write of $41 to $0205", watchpoints.getTriggerDescription());
+        assertEquals(0x41, bus.read(0x0205));
+    }
+
+    @Test
+    public void shouldTriggerOnWatchedRead() throws Exception {
+        bus.write(0x0300, 0x99);
+        watchpoints.addWatchpoint(0x0300, 0x0300, Watchpoints.READ);
+        bus.applyWatchpointChanges();
+
+        bus.write(0x0300, 0x98);
+        assertFalse(watchpoints.isTriggered());
+
+        assertEquals(0x98, bus.read(0x0300));
+        assertTrue(watchpoints.isTriggered());
+        assertFalse(watchpoints.getTriggerWasWrite());
+    }
+
+    @Test
+    public void shouldKeepFirstTriggerUntilCleared() throws Exception {
+        watchpoints.addWatchpoint(0x0200, 0x02ff, Watchpoints.READ | Watchpoints.WRITE);
+        bus.applyWatchpointChanges();
+
+        bus.write(0x0201, 0x01);
+        bus.write(0x0202, 0x02);
+        assertEquals(0x0201, watchpoints.getTriggerAddress());
+
+        watchpoints.clearTriggered();
+        assertFalse(watchpoints.isTriggered());
+        bus.read(0x0202);
+        assertEquals(0x0202, watchpoints.getTriggerAddress());
+    }
+
+    @Test
+    public void shouldStopWatchingRemovedRanges() throws Exception {
+        watchpoints.addWatchpoint(0x0200, 0x0200, Watchpoints.WRITE);
+        watchpoints.removeWatchpointAtIndex(0);
+        bus.applyWatchpointChanges();
+
+        bus.write(0x0200, 0x01);
+        assertFalse(watchpoints.isTriggered());
+        assertEquals(0x01, bus.read(0x0200));
+    }
+
+    @Test
+    public void shouldTriggerFromRunningCode() throws Exception {
+        watchpoints.addWatchpoint(0x0400, 0x0400, Watchpoints.WRITE);
+        bus.applyWatchpointChanges();
+
+        // LDA #$55 / STA $0400
+        bus.loadProgram(0xa9, 0x55, 0x8d, 0x00, 0x04);
+        cpu.step();
+        assertFalse(watchpoints.isTriggered());
+        cpu.step();
+        assertTrue(watchpoints.isTriggered());
+        assertEquals(0x55, watchpoints.getTriggerValue());
+    }
+
+    @Test
+    public void shouldWaitForStepBoundaryBeforeWatchingPages() throws Exception {
+        bus.write(0x0500, 0x00);
+        watchpoints.addWatchpoint(0x0500, 0x0500, Watchpoints.WRITE);
+
+        // The page tables still send this write down the fast path.
+        bus.write(0x0500, 0x01);
+        assertFalse(watchpoints.isTriggered());
+
+        bus.applyWatchpointChanges();
+        bus.write(0x0500, 0x02);
+        assertTrue(watchpoints.isTriggered());
+    }
+
+    @Test
+    public void shouldNotTriggerOnPeek() throws Exception {
+        watchpoints.addWatchpoint(0x0200, 0x0200, Watchpoints.READ);
+        bus.applyWatchpointChanges();
+        bus.peek(0x0200);
+        assertFalse(watchpoints.isTriggered());
+    }
+}